@@ -0,0 +1,80 @@
+package com.lambdaworks.crypto;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares {@link PBKDF#pbkdf2HmacSHA256} with {@link PBKDF#pbkdf2(String, byte[], byte[], int, int)}
+ * with "HmacSHA256" on random inputs, then measures both for one iteration over a long salt,
+ * as in scrypt, and for many iterations over a short one.
+ *
+ * The random cases cover keys longer than the 64-byte block, which are hashed first,
+ * key lengths that are not a multiple of 32 and c=1. The known-answer vectors are checked
+ * by {@link HmacSHA256} itself when it is loaded.
+ *
+ * Run from the repository root after compiling the sources into out:
+ * <pre>
+ * javac -encoding UTF-8 -cp out -d out-bench bench/com/lambdaworks/crypto/HmacSHA256Benchmark.java
+ * java -cp out:out-bench com.lambdaworks.crypto.HmacSHA256Benchmark [cases]
+ * </pre>
+ */
+public class HmacSHA256Benchmark {
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        int cases = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Random random = new Random(1);
+
+        int failures = 0;
+        for (int i = 0; i < cases; i++) {
+            byte[] P = new byte[random.nextInt(4) == 0 ? 65 + random.nextInt(200) : 1 + random.nextInt(64)];
+            byte[] S = new byte[random.nextInt(4) == 0 ? 1024 + random.nextInt(4096) : random.nextInt(100)];
+            random.nextBytes(P);
+            random.nextBytes(S);
+            int c = random.nextInt(3) == 0 ? 1 : 1 + random.nextInt(50);
+            int dkLen = 1 + random.nextInt(150);
+
+            if (!Arrays.equals(PBKDF.pbkdf2("HmacSHA256", P, S, c, dkLen), PBKDF.pbkdf2HmacSHA256(P, S, c, dkLen))) {
+                System.out.println("Mismatch: key " + P.length + " bytes, salt " + S.length +
+                        " bytes, c=" + c + ", dkLen=" + dkLen);
+                failures++;
+            }
+        }
+
+        System.out.println(failures == 0 ? "All " + cases + " cases match" : failures + " mismatches");
+
+        byte[] password = "benchmark password".getBytes("UTF-8");
+        byte[] longSalt = new byte[1024];
+        byte[] shortSalt = "benchmark salt".getBytes("UTF-8");
+        for (int round = 0; round < 3; round++) {
+            int calls = 20000;
+            long mac = measure(calls, () -> PBKDF.pbkdf2("HmacSHA256", password, longSalt, 1, 64));
+            long own = measure(calls, () -> PBKDF.pbkdf2HmacSHA256(password, longSalt, 1, 64));
+            System.out.printf("Round %d, c=1, 1 KB salt: Mac %.2f us, HmacSHA256 %.2f us%n",
+                    round + 1, mac / 1e3 / calls, own / 1e3 / calls);
+
+            calls = 20;
+            mac = measure(calls, () -> PBKDF.pbkdf2("HmacSHA256", password, shortSalt, 100000, 32));
+            own = measure(calls, () -> PBKDF.pbkdf2HmacSHA256(password, shortSalt, 100000, 32));
+            System.out.printf("Round %d, c=100000: Mac %.2f ms, HmacSHA256 %.2f ms%n",
+                    round + 1, mac / 1e6 / calls, own / 1e6 / calls);
+        }
+
+        if (failures > 0)
+            System.exit(1);
+    }
+
+    private static long measure(int calls, Call call) throws Exception {
+        for (int i = 0; i < calls; i++)
+            sink += call.run()[0];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++)
+            sink += call.run()[0];
+        return System.nanoTime() - start;
+    }
+
+    private interface Call {
+        byte[] run() throws Exception;
+    }
+}
@@ -0,0 +1,98 @@
+package com.lambdaworks.crypto;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares {@link SCryptEngine#scrypt} with {@link SCrypt#scryptJ} over several (N, r, p, dkLen)
+ * sets: checks that both produce the same key and measures the time per call.
+ *
+ * Before measuring, the engine is called on one thread with the sets in the order
+ * large, small, large and so on, so per-thread buffers left by a larger call are reused
+ * by a smaller one and grown again, and every result is checked against scryptJ.
+ *
+ * Run from the repository root after compiling the sources into out:
+ * <pre>
+ * javac -encoding UTF-8 -cp out -d out-bench bench/com/lambdaworks/crypto/SCryptEngineBenchmark.java
+ * java -cp out:out-bench com.lambdaworks.crypto.SCryptEngineBenchmark [iterations]
+ * </pre>
+ */
+public class SCryptEngineBenchmark {
+    private static final int[][] PARAMETERS = {
+            // N, r, p, dkLen
+            {16384, 8, 1, 64},
+            {1024, 8, 1, 32},
+            {16384, 8, 1, 64},
+            {16, 1, 1, 64},
+            {4096, 8, 4, 37},
+            {2, 1, 1, 1},
+            {1024, 1, 16, 64},
+            {16384, 8, 1, 64},
+    };
+
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        Random random = new Random(1);
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        int failures = 0;
+        for (int round = 0; round < 2; round++) {
+            for (int[] set : PARAMETERS) {
+                byte[] passwd = new byte[1 + random.nextInt(100)];
+                byte[] salt = new byte[random.nextInt(64)];
+                random.nextBytes(passwd);
+                random.nextBytes(salt);
+
+                byte[] expected = SCrypt.scryptJ(passwd, salt, set[0], set[1], set[2], set[3]);
+                if (!Arrays.equals(expected, SCryptEngine.scrypt(passwd, salt, set[0], set[1], set[2], set[3]))) {
+                    System.out.println("Mismatch: " + describe(set));
+                    failures++;
+                }
+                if (!Arrays.equals(expected, SCryptEngine.scrypt(passwd, salt, set[0], set[1], set[2], set[3], pool))) {
+                    System.out.println("Mismatch with lanes in a pool: " + describe(set));
+                    failures++;
+                }
+            }
+        }
+        System.out.println(failures == 0 ? "All keys match scryptJ" : failures + " mismatches");
+
+        for (int[] set : PARAMETERS) {
+            byte[] passwd = "benchmark password".getBytes("UTF-8");
+            byte[] salt = "benchmark salt".getBytes("UTF-8");
+            int n = Math.max(1, (int) ((long) iterations * 16384 * 8 / ((long) set[0] * set[1] * set[2])));
+            n = Math.min(n, iterations * 100);
+
+            long reference = measure(n, () -> SCrypt.scryptJ(passwd, salt, set[0], set[1], set[2], set[3]));
+            long engine = measure(n, () -> SCryptEngine.scrypt(passwd, salt, set[0], set[1], set[2], set[3]));
+            System.out.printf(
+                    "%s: scryptJ %.3f ms, engine %.3f ms, %.2fx%n",
+                    describe(set), reference / 1e6 / n, engine / 1e6 / n, (double) reference / engine
+            );
+        }
+
+        pool.shutdown();
+        if (failures > 0)
+            System.exit(1);
+    }
+
+    private static long measure(int iterations, Call call) throws Exception {
+        for (int i = 0; i < Math.max(1, iterations / 2); i++)
+            sink += call.run()[0];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            sink += call.run()[0];
+        return System.nanoTime() - start;
+    }
+
+    private static String describe(int[] set) {
+        return "N=" + set[0] + " r=" + set[1] + " p=" + set[2] + " dkLen=" + set[3];
+    }
+
+    private interface Call {
+        byte[] run() throws Exception;
+    }
+}
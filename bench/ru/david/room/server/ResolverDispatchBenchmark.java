@@ -0,0 +1,87 @@
+package ru.david.room.server;
+
+import ru.david.room.Utils;
+import ru.david.room.server.resolvers.RequiresAuthorization;
+import ru.david.room.server.resolvers.Resolver;
+import ru.david.room.server.resolvers.UpdatesTokenLifetime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Сравнивает поиск решателя по таблице {@link ResolverRegistry} с прежним способом,
+ * когда на каждый запрос вызывались Utils.toCamelCase, Class.forName, newInstance
+ * и проверки instanceof, а неизвестная команда обрабатывалась через исключение.
+ *
+ * Запуск (из корня репозитория, после сборки исходников в out):
+ * <pre>
+ * javac -encoding UTF-8 -cp out -d out-bench bench/ru/david/room/server/ResolverDispatchBenchmark.java
+ * java -cp out:out-bench ru.david.room.server.ResolverDispatchBenchmark [итераций]
+ * </pre>
+ */
+public class ResolverDispatchBenchmark {
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+        ResolverRegistry registry = ResolverRegistry.createDefault();
+        List<String> commands = new ArrayList<>(registry.getCommands());
+        commands.add("unknown_command");
+        String[] mix = commands.toArray(new String[0]);
+
+        for (int round = 0; round < 3; round++) {
+            long reflective = measure(mix, iterations, ResolverDispatchBenchmark::dispatchReflective);
+            long table = measure(mix, iterations, command -> dispatchTable(registry, command));
+            System.out.printf(
+                    "Раунд %d: Class.forName %.1f нс/запрос, таблица %.1f нс/запрос%n",
+                    round + 1, (double) reflective / iterations, (double) table / iterations
+            );
+        }
+    }
+
+    private static long measure(String[] mix, int iterations, Dispatcher dispatcher) throws Exception {
+        for (int i = 0; i < iterations / 10; i++)
+            sink += dispatcher.dispatch(mix[i % mix.length]);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            sink += dispatcher.dispatch(mix[i % mix.length]);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Прежний способ поиска решателя
+     */
+    @SuppressWarnings("deprecation")
+    private static int dispatchReflective(String command) throws Exception {
+        try {
+            Class<?> clazz = Class.forName("ru.david.room.server.resolvers." + Utils.toCamelCase(command) + "Resolver");
+            Resolver resolver = (Resolver) clazz.newInstance();
+            int flags = 1;
+            if (resolver instanceof RequiresAuthorization)
+                flags |= 2;
+            if (resolver instanceof UpdatesTokenLifetime)
+                flags |= 4;
+            return flags;
+        } catch (ClassNotFoundException e) {
+            return 0;
+        }
+    }
+
+    private static int dispatchTable(ResolverRegistry registry, String command) {
+        ResolverRegistry.Entry entry = registry.get(command);
+        if (entry == null)
+            return 0;
+        int flags = 1;
+        if (entry.requiresAuthorization)
+            flags |= 2;
+        if (entry.updatesTokenLifetime)
+            flags |= 4;
+        return flags;
+    }
+
+    private interface Dispatcher {
+        int dispatch(String command) throws Exception;
+    }
+}
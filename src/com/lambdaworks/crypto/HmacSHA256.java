@@ -0,0 +1,190 @@
+package com.lambdaworks.crypto;
+
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * HMAC-SHA256 specialized for PBKDF2. The key xor ipad and key xor opad blocks are hashed
+ * into two SHA-256 digests once in {@link #init(byte[])}, and every HMAC after that starts
+ * from clones of them. A PBKDF2 iteration over a 32-byte U is then exactly two compressions,
+ * where {@link javax.crypto.Mac} spends four because it rehashes the padded key on every reset.
+ *
+ * The digests come from {@link MessageDigest#getInstance(String)}, so compression runs
+ * in the JDK's SHA-256, which the JVM compiles to CPU instructions where it can.
+ * U and T are kept between calls, and the class checks itself against known PBKDF2-HMAC-SHA256
+ * vectors when it is loaded, see {@link #checkKnownAnswers()}.
+ *
+ * An instance is not thread-safe.
+ */
+final class HmacSHA256 {
+    static final int HASH_LENGTH = 32;
+    private static final int BLOCK_LENGTH = 64;
+
+    static {
+        checkKnownAnswers();
+    }
+
+    /**
+     * Digests that have consumed the key xor ipad and the key xor opad blocks
+     */
+    private final MessageDigest inner;
+    private final MessageDigest outer;
+
+    private final byte[] block = new byte[BLOCK_LENGTH];
+    private final byte[] U = new byte[HASH_LENGTH];
+    private final byte[] T = new byte[HASH_LENGTH];
+    private final byte[] index = new byte[4];
+
+    HmacSHA256() {
+        try {
+            inner = MessageDigest.getInstance("SHA-256");
+            outer = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Keys the instance
+     *
+     * @param key   HMAC key, any length.
+     */
+    void init(byte[] key) {
+        Arrays.fill(block, (byte) 0);
+        if (key.length > BLOCK_LENGTH) {
+            inner.reset();
+            System.arraycopy(inner.digest(key), 0, block, 0, HASH_LENGTH);
+        } else {
+            System.arraycopy(key, 0, block, 0, key.length);
+        }
+
+        for (int i = 0; i < BLOCK_LENGTH; i++)
+            block[i] ^= 0x36;
+        inner.reset();
+        inner.update(block);
+
+        for (int i = 0; i < BLOCK_LENGTH; i++)
+            block[i] ^= 0x36 ^ 0x5c;
+        outer.reset();
+        outer.update(block);
+
+        Arrays.fill(block, (byte) 0);
+    }
+
+    /**
+     * PBKDF2 (RFC 2898) with this HMAC as the pseudorandom function.
+     *
+     * @param   S       Salt.
+     * @param   c       Iteration count.
+     * @param   DK      Byte array that derived key will be placed in.
+     * @param   dkLen   Intended length, in octets, of the derived key.
+     */
+    void pbkdf2(byte[] S, int c, byte[] DK, int dkLen) {
+        int l = (dkLen + HASH_LENGTH - 1) / HASH_LENGTH;
+
+        for (int i = 1; i <= l; i++) {
+            index[0] = (byte) (i >>> 24);
+            index[1] = (byte) (i >>> 16);
+            index[2] = (byte) (i >>> 8);
+            index[3] = (byte) i;
+
+            // U1 = HMAC(S || INT(i))
+            MessageDigest digest = copy(inner);
+            digest.update(S);
+            digest.update(index);
+            finish(digest);
+            System.arraycopy(U, 0, T, 0, HASH_LENGTH);
+
+            for (int j = 1; j < c; j++) {
+                digest = copy(inner);
+                digest.update(U);
+                finish(digest);
+
+                for (int k = 0; k < HASH_LENGTH; k++)
+                    T[k] ^= U[k];
+            }
+
+            int offset = (i - 1) * HASH_LENGTH;
+            System.arraycopy(T, 0, DK, offset, Math.min(HASH_LENGTH, dkLen - offset));
+        }
+    }
+
+    /**
+     * Finishes the HMAC: U = SHA256(key xor opad || inner hash)
+     */
+    private void finish(MessageDigest innerDigest) {
+        try {
+            innerDigest.digest(U, 0, HASH_LENGTH);
+            MessageDigest digest = copy(outer);
+            digest.update(U);
+            digest.digest(U, 0, HASH_LENGTH);
+        } catch (DigestException e) {
+            // U is exactly one hash long
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest copy(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("SHA-256 digest of " + digest.getProvider() + " cannot be cloned", e);
+        }
+    }
+
+    /**
+     * Compares PBKDF2-HMAC-SHA256 with published vectors: the one from RFC 7914, section 11,
+     * and the RFC 6070 inputs, which cover c=1, c greater than 1, keys and salts with zero bytes
+     * and dkLen that is not a multiple of 32. None of them has a key longer than the 64-byte block,
+     * which is hashed first, so that case is compared with {@link javax.crypto.Mac}.
+     *
+     * @throws IllegalStateException if any result does not match
+     */
+    static void checkKnownAnswers() {
+        check("passwd", "salt", 1, 64,
+                "55ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc" +
+                "49ca9cccf179b645991664b39d77ef317c71b845b1e30bd509112041d3a19783");
+        check("password", "salt", 1, 32, "120fb6cffcf8b32c43e7225256c4f837a86548c92ccc35480805987cb70be17b");
+        check("password", "salt", 2, 32, "ae4d0c95af6b46d32d0adff928f06dd02a303f8ef3c251dfd6e2d85a95474c43");
+        check("password", "salt", 4096, 32, "c5e478d59288c841aa530db6845c4c8d962893a001ce4e11a4963873aa98134a");
+        check("passwordPASSWORDpassword", "saltSALTsaltSALTsaltSALTsaltSALTsalt", 4096, 40,
+                "348c89dbcbd32b2f32d814b8116e84cf2b17347ebc1800181c4e2a1fb8dd53e1c635518c7dac47e9");
+        check("pass\0word", "sa\0lt", 4096, 16, "89b69d0516f829893c696226650a8687");
+
+        byte[] longKey = new byte[100];
+        byte[] salt = new byte[300];
+        for (int i = 0; i < longKey.length; i++)
+            longKey[i] = (byte) (i * 7 + 1);
+        for (int i = 0; i < salt.length; i++)
+            salt[i] = (byte) (i * 13);
+        HmacSHA256 hmac = new HmacSHA256();
+        hmac.init(longKey);
+        byte[] DK = new byte[70];
+        hmac.pbkdf2(salt, 3, DK, DK.length);
+        try {
+            if (!Arrays.equals(DK, PBKDF.pbkdf2("HmacSHA256", longKey, salt, 3, DK.length)))
+                throw new IllegalStateException("PBKDF2-HMAC-SHA256 mismatch with javax.crypto.Mac for a 100-byte key");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void check(String P, String S, int c, int dkLen, String expected) {
+        HmacSHA256 hmac = new HmacSHA256();
+        hmac.init(P.getBytes(US_ASCII));
+        byte[] DK = new byte[dkLen];
+        hmac.pbkdf2(S.getBytes(US_ASCII), c, DK, dkLen);
+
+        StringBuilder actual = new StringBuilder();
+        for (byte b : DK)
+            actual.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        if (!actual.toString().equals(expected))
+            throw new IllegalStateException("PBKDF2-HMAC-SHA256 mismatch for P=\"" + P + "\", c=" + c + ": " + actual);
+    }
+}
@@ -35,6 +35,27 @@ public class PBKDF {
         return DK;
     }
 
+    /**
+     * Implementation of PBKDF2 (RFC2898) with HMAC-SHA256. Produces the same key as
+     * {@link #pbkdf2(String, byte[], byte[], int, int)} with "HmacSHA256", but the padded
+     * key is hashed once instead of on every iteration, so an iteration costs two SHA-256
+     * compressions instead of four.
+     *
+     * @param   P       Password.
+     * @param   S       Salt.
+     * @param   c       Iteration count.
+     * @param   dkLen   Intended length, in octets, of the derived key.
+     *
+     * @return  The derived key.
+     */
+    public static byte[] pbkdf2HmacSHA256(byte[] P, byte[] S, int c, int dkLen) {
+        byte[] DK = new byte[dkLen];
+        HmacSHA256 hmac = new HmacSHA256();
+        hmac.init(P);
+        hmac.pbkdf2(S, c, DK, dkLen);
+        return DK;
+    }
+
     /**
      * Implementation of PBKDF2 (RFC2898).
      *
@@ -7,6 +7,7 @@ import com.lambdaworks.jni.*;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
 
 import static java.lang.Integer.MAX_VALUE;
 import static java.lang.System.arraycopy;
@@ -31,7 +32,8 @@ public class SCrypt {
     /**
      * Implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>.
      * Calls the native implementation {@link #scryptN} when the native library was successfully
-     * loaded, otherwise calls {@link #scryptJ}.
+     * loaded, otherwise calls {@link SCryptEngine#scrypt}, which produces the same output as
+     * {@link #scryptJ} but reuses its work buffers.
      *
      * @param passwd    Password.
      * @param salt      Salt.
@@ -45,7 +47,28 @@ public class SCrypt {
      * @throws GeneralSecurityException when HMAC_SHA256 is not available.
      */
     public static byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
-        return native_library_loaded ? scryptN(passwd, salt, N, r, p, dkLen) : scryptJ(passwd, salt, N, r, p, dkLen);
+        return scrypt(passwd, salt, N, r, p, dkLen, null);
+    }
+
+    /**
+     * Implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a> that may
+     * compute the p lanes concurrently. Calls the native implementation {@link #scryptN} when the native
+     * library was successfully loaded, otherwise calls {@link SCryptEngine#scrypt} with the given pool.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     * @param pool      Pool to run the lanes in, or null to run them one after another.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen, ForkJoinPool pool) throws GeneralSecurityException {
+        return native_library_loaded ? scryptN(passwd, salt, N, r, p, dkLen) : SCryptEngine.scrypt(passwd, salt, N, r, p, dkLen, pool);
     }
 
     /**
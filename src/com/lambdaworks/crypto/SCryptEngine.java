@@ -0,0 +1,289 @@
+package com.lambdaworks.crypto;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static java.lang.Integer.MAX_VALUE;
+import static java.lang.System.arraycopy;
+
+/**
+ * Pure Java <a href="http://www.tarsnap.com/scrypt/scrypt.pdf">scrypt</a> that produces the same
+ * output as {@link SCrypt#scryptJ} without allocating its work arrays on every call.
+ *
+ * The differences from {@link SCrypt#scryptJ} are:
+ * <ul>
+ * <li>blocks are kept as little-endian 32-bit words, so bytes are converted once per lane
+ *     instead of on every salsa20/8 call;</li>
+ * <li>salsa20/8 state lives in local variables and is carried from block to block inside
+ *     {@link #blockmix_salsa8}, which writes even and odd blocks straight to their final places;</li>
+ * <li>the first smix loop mixes each block straight into the next slot of V, and the second loop
+ *     alternates between the two halves of XY, so there are no per-iteration copies;</li>
+ * <li>PBKDF2 before and after the lanes uses {@link HmacSHA256} with the password
+ *     hashed into its inner and outer states once;</li>
+ * <li>V, XY, B and the HMAC instance are kept per thread and reused by subsequent calls
+ *     with the same or smaller parameters.</li>
+ * </ul>
+ *
+ * Reused buffers stay reachable for the lifetime of the thread (128 * r * N bytes for V),
+ * so the engine is meant to be called from a bounded set of threads, such as a hashing pool.
+ * {@link #releaseBuffers()} drops the buffers of the calling thread.
+ *
+ * The p lanes of scrypt are independent of each other, so
+ * {@link #scrypt(byte[], byte[], int, int, int, int, ForkJoinPool)} can compute them concurrently.
+ * Each lane then runs in a worker of the given pool with that worker's own V, so up to
+ * min(p, parallelism) * 128 * r * N bytes are in use at once. The output does not depend on the pool.
+ */
+public final class SCryptEngine {
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private SCryptEngine() {}
+
+    /**
+     * Allocation-free implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf">scrypt KDF</a>.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     *
+     * @return The derived key, bit-identical to {@link SCrypt#scryptJ}.
+     */
+    public static byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) {
+        return scrypt(passwd, salt, N, r, p, dkLen, null);
+    }
+
+    /**
+     * Allocation-free implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf">scrypt KDF</a>
+     * that computes the p lanes concurrently.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     * @param pool      Pool to run the lanes in, or null to run them one after another in the calling thread.
+     *
+     * @return The derived key, bit-identical to {@link SCrypt#scryptJ}.
+     */
+    public static byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen, ForkJoinPool pool) {
+        if (N < 2 || (N & (N - 1)) != 0) throw new IllegalArgumentException("N must be a power of 2 greater than 1");
+
+        if (N > MAX_VALUE / 128 / r) throw new IllegalArgumentException("Parameter N is too large");
+        if (r > MAX_VALUE / 128 / p) throw new IllegalArgumentException("Parameter r is too large");
+
+        Buffers buffers = BUFFERS.get();
+        HmacSHA256 hmac = buffers.hmac;
+        hmac.init(passwd);
+
+        byte[] B = buffers.B(128 * r * p);
+
+        hmac.pbkdf2(salt, 1, B, B.length);
+
+        if (pool == null || p == 1) {
+            for (int i = 0; i < p; i++)
+                lane(B, i, N, r);
+        } else {
+            pool.invoke(new Lanes(B, 0, p, N, r));
+        }
+
+        byte[] DK = new byte[dkLen];
+        hmac.pbkdf2(B, 1, DK, dkLen);
+        return DK;
+    }
+
+    /**
+     * Drops the work buffers kept for the calling thread
+     */
+    public static void releaseBuffers() {
+        BUFFERS.remove();
+    }
+
+    /**
+     * Mixes lane i of B in place using the work buffers of the current thread
+     */
+    static void lane(byte[] B, int i, int N, int r) {
+        Buffers buffers = BUFFERS.get();
+        int words = 32 * r;
+        int[] XY = buffers.XY(2 * words);
+        int[] V = buffers.V(words * N);
+
+        int Bi = i * 128 * r;
+        decode(B, Bi, XY, 0, words);
+        smix(XY, V, N, r);
+        encode(XY, 0, B, Bi, words);
+    }
+
+    /**
+     * ROMix of one lane. The lane is read from and written back to the first 32 * r words of XY.
+     *
+     * @param XY    Lane followed by 32 * r words of scratch space.
+     * @param V     At least 32 * r * N words.
+     * @param N     CPU cost parameter.
+     * @param r     Memory cost parameter.
+     */
+    static void smix(int[] XY, int[] V, int N, int r) {
+        int words = 32 * r;
+
+        arraycopy(XY, 0, V, 0, words);
+        for (int i = 0; i < N - 1; i++)
+            blockmix_salsa8(V, i * words, V, (i + 1) * words, r);
+        blockmix_salsa8(V, (N - 1) * words, XY, 0, r);
+
+        int Xi = 0;
+        int Yi = words;
+        int last = (2 * r - 1) * 16;
+        for (int i = 0; i < N; i++) {
+            int Vj = (XY[Xi + last] & (N - 1)) * words;
+            for (int k = 0; k < words; k++)
+                XY[Xi + k] ^= V[Vj + k];
+            blockmix_salsa8(XY, Xi, XY, Yi, r);
+
+            int t = Xi;
+            Xi = Yi;
+            Yi = t;
+        }
+
+        if (Xi != 0)
+            arraycopy(XY, Xi, XY, 0, words);
+    }
+
+    /**
+     * BlockMix with salsa20/8 from words B[Bi..Bi + 32 * r) to Y[Yi..Yi + 32 * r).
+     * Even output blocks go to the first half of Y and odd ones to the second,
+     * so the result needs no shuffling. The ranges must not overlap.
+     */
+    static void blockmix_salsa8(int[] B, int Bi, int[] Y, int Yi, int r) {
+        int last = Bi + (2 * r - 1) * 16;
+        int x0  = B[last],      x1  = B[last + 1],  x2  = B[last + 2],  x3  = B[last + 3];
+        int x4  = B[last + 4],  x5  = B[last + 5],  x6  = B[last + 6],  x7  = B[last + 7];
+        int x8  = B[last + 8],  x9  = B[last + 9],  x10 = B[last + 10], x11 = B[last + 11];
+        int x12 = B[last + 12], x13 = B[last + 13], x14 = B[last + 14], x15 = B[last + 15];
+
+        for (int i = 0; i < 2 * r; i++) {
+            int b = Bi + i * 16;
+            int j0  = x0  ^ B[b],      j1  = x1  ^ B[b + 1],  j2  = x2  ^ B[b + 2],  j3  = x3  ^ B[b + 3];
+            int j4  = x4  ^ B[b + 4],  j5  = x5  ^ B[b + 5],  j6  = x6  ^ B[b + 6],  j7  = x7  ^ B[b + 7];
+            int j8  = x8  ^ B[b + 8],  j9  = x9  ^ B[b + 9],  j10 = x10 ^ B[b + 10], j11 = x11 ^ B[b + 11];
+            int j12 = x12 ^ B[b + 12], j13 = x13 ^ B[b + 13], j14 = x14 ^ B[b + 14], j15 = x15 ^ B[b + 15];
+
+            x0 = j0; x1 = j1; x2 = j2; x3 = j3; x4 = j4; x5 = j5; x6 = j6; x7 = j7;
+            x8 = j8; x9 = j9; x10 = j10; x11 = j11; x12 = j12; x13 = j13; x14 = j14; x15 = j15;
+
+            // salsa20/8
+            for (int round = 8; round > 0; round -= 2) {
+                x4  ^= Integer.rotateLeft(x0  + x12,  7);  x8  ^= Integer.rotateLeft(x4  + x0,   9);
+                x12 ^= Integer.rotateLeft(x8  + x4,  13);  x0  ^= Integer.rotateLeft(x12 + x8,  18);
+                x9  ^= Integer.rotateLeft(x5  + x1,   7);  x13 ^= Integer.rotateLeft(x9  + x5,   9);
+                x1  ^= Integer.rotateLeft(x13 + x9,  13);  x5  ^= Integer.rotateLeft(x1  + x13, 18);
+                x14 ^= Integer.rotateLeft(x10 + x6,   7);  x2  ^= Integer.rotateLeft(x14 + x10,  9);
+                x6  ^= Integer.rotateLeft(x2  + x14, 13);  x10 ^= Integer.rotateLeft(x6  + x2,  18);
+                x3  ^= Integer.rotateLeft(x15 + x11,  7);  x7  ^= Integer.rotateLeft(x3  + x15,  9);
+                x11 ^= Integer.rotateLeft(x7  + x3,  13);  x15 ^= Integer.rotateLeft(x11 + x7,  18);
+                x1  ^= Integer.rotateLeft(x0  + x3,   7);  x2  ^= Integer.rotateLeft(x1  + x0,   9);
+                x3  ^= Integer.rotateLeft(x2  + x1,  13);  x0  ^= Integer.rotateLeft(x3  + x2,  18);
+                x6  ^= Integer.rotateLeft(x5  + x4,   7);  x7  ^= Integer.rotateLeft(x6  + x5,   9);
+                x4  ^= Integer.rotateLeft(x7  + x6,  13);  x5  ^= Integer.rotateLeft(x4  + x7,  18);
+                x11 ^= Integer.rotateLeft(x10 + x9,   7);  x8  ^= Integer.rotateLeft(x11 + x10,  9);
+                x9  ^= Integer.rotateLeft(x8  + x11, 13);  x10 ^= Integer.rotateLeft(x9  + x8,  18);
+                x12 ^= Integer.rotateLeft(x15 + x14,  7);  x13 ^= Integer.rotateLeft(x12 + x15,  9);
+                x14 ^= Integer.rotateLeft(x13 + x12, 13);  x15 ^= Integer.rotateLeft(x14 + x13, 18);
+            }
+
+            x0 += j0; x1 += j1; x2 += j2; x3 += j3; x4 += j4; x5 += j5; x6 += j6; x7 += j7;
+            x8 += j8; x9 += j9; x10 += j10; x11 += j11; x12 += j12; x13 += j13; x14 += j14; x15 += j15;
+
+            int y = Yi + ((i & 1) == 0 ? (i >> 1) : r + (i >> 1)) * 16;
+            Y[y]      = x0;  Y[y + 1]  = x1;  Y[y + 2]  = x2;  Y[y + 3]  = x3;
+            Y[y + 4]  = x4;  Y[y + 5]  = x5;  Y[y + 6]  = x6;  Y[y + 7]  = x7;
+            Y[y + 8]  = x8;  Y[y + 9]  = x9;  Y[y + 10] = x10; Y[y + 11] = x11;
+            Y[y + 12] = x12; Y[y + 13] = x13; Y[y + 14] = x14; Y[y + 15] = x15;
+        }
+    }
+
+    /**
+     * Reads count little-endian words from bytes
+     */
+    static void decode(byte[] src, int si, int[] dst, int di, int count) {
+        for (int i = 0; i < count; i++, si += 4) {
+            dst[di + i] = (src[si] & 0xff)
+                    | (src[si + 1] & 0xff) << 8
+                    | (src[si + 2] & 0xff) << 16
+                    | (src[si + 3] & 0xff) << 24;
+        }
+    }
+
+    /**
+     * Writes count words as little-endian bytes
+     */
+    static void encode(int[] src, int si, byte[] dst, int di, int count) {
+        for (int i = 0; i < count; i++, di += 4) {
+            int w = src[si + i];
+            dst[di]     = (byte) w;
+            dst[di + 1] = (byte) (w >>> 8);
+            dst[di + 2] = (byte) (w >>> 16);
+            dst[di + 3] = (byte) (w >>> 24);
+        }
+    }
+
+    /**
+     * Lanes [from, to) of B, split in halves until each task has one lane.
+     * Lanes write to disjoint ranges of B, and {@link ForkJoinPool#invoke} makes their
+     * writes visible to the calling thread.
+     */
+    private static final class Lanes extends RecursiveAction {
+        private static final long serialVersionUID = 3684757327513491640L;
+
+        private final byte[] B;
+        private final int from, to, N, r;
+
+        private Lanes(byte[] B, int from, int to, int N, int r) {
+            this.B = B;
+            this.from = from;
+            this.to = to;
+            this.N = N;
+            this.r = r;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                lane(B, from, N, r);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Lanes(B, from, middle, N, r), new Lanes(B, middle, to, N, r));
+        }
+    }
+
+    /**
+     * Work buffers of one thread. V and XY grow to the largest size requested so far,
+     * B has to match exactly because it is used whole as the salt of the final PBKDF2.
+     */
+    private static final class Buffers {
+        private int[] V = new int[0];
+        private int[] XY = new int[0];
+        private byte[] B = new byte[0];
+        private final HmacSHA256 hmac = new HmacSHA256();
+
+        private int[] V(int length) {
+            if (V.length < length)
+                V = new int[length];
+            return V;
+        }
+
+        private int[] XY(int length) {
+            if (XY.length < length)
+                XY = new int[length];
+            return XY;
+        }
+
+        private byte[] B(int length) {
+            if (B.length != length)
+                B = new byte[length];
+            return B;
+        }
+    }
+}
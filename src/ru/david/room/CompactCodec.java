@@ -0,0 +1,757 @@
+package ru.david.room;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+import static ru.david.room.MessageOutputStream.HEADER_SIZE;
+
+/**
+ * Формат версии 1: компактное двоичное представление сообщения.
+ *
+ * Тело кадра устроено так:
+ * <ul>
+ *     <li>код команды (varint): номер в {@link #COMMANDS}, начиная с единицы,
+ *     или 0, после которого идёт сама команда строкой;</li>
+ *     <li>байт флагов: 1 - есть токен, 2 - есть id пользователя, 4 - есть id запроса;</li>
+ *     <li>токен, id пользователя и id запроса (zigzag-varint), если они есть;</li>
+ *     <li>приложение: байт-тип и значение, см. константы TYPE_*.</li>
+ * </ul>
+ *
+ * Числа пишутся в формате varint: по 7 бит в байте, старший бит означает продолжение.
+ * Знаковые числа перед этим переводятся в zigzag, чтобы небольшие отрицательные
+ * значения тоже занимали мало места. Строки пишутся как длина в байтах UTF-8 плюс один
+ * (0 означает null) и сами байты. Приложения, для которых нет отдельного кодировщика,
+ * сериализуются стандартными средствами Java, так что передать можно любой объект.
+ *
+ * Таблицы {@link #COMMANDS} и {@link #PROPERTY_KEYS} можно только дополнять в конец:
+ * номера уже существующих записей менять нельзя, иначе сломается совместимость.
+ */
+class CompactCodec extends MessageCodec {
+    /**
+     * Известные команды и ответы. Номер команды на проводе - индекс в массиве плюс один.
+     */
+    private static final String[] COMMANDS = {
+            "login", "logout", "register", "confirm_registration", "request_password_reset",
+            "reset_password", "i_am_alive", "request_users", "request_creatures", "create_creature",
+            "modify_creature", "delete_creature", "disconnect", "subscribe", "unsubscribe",
+
+            "OK", "WRONG", "BAD_REQUEST", "AUTH_FAILED", "COMMAND_NOT_SUPPORTED", "INTERNAL_ERROR",
+            "BUSY", "SHORT_PASSWORD", "WEAK_PASSWORD", "INCORRECT_NAME", "INCORRECT_EMAIL",
+            "EMAIL_EXISTS", "EMAIL_IN_USE", "EMAIL_NOT_EXIST",
+
+            "disconnected", "users_list_updated", "creature_added", "creature_deleted",
+            "creature_modified", "creatures_list_updated", "resync", "creatures_changed",
+
+            "set_viewport", "creatures_chunk", "sync_creatures", "creatures_synced",
+
+            "user_joined", "user_left"
+    };
+
+    /**
+     * Известные ключи {@link Properties}. Кодируются так же, как команды.
+     */
+    private static final String[] PROPERTY_KEYS = {
+            "id", "name", "color", "email", "password", "confirmation", "x", "y", "radius",
+            "userid", "user_name", "user_color", "user_token", "send_response",
+            "locale-language", "locale-country",
+
+            "width", "height", "reset", "chunked", "sync"
+    };
+
+    private static final Map<String, Integer> COMMAND_CODES = indexOf(COMMANDS);
+    private static final Map<String, Integer> PROPERTY_KEY_CODES = indexOf(PROPERTY_KEYS);
+
+    private static final int FLAG_TOKEN = 1;
+    private static final int FLAG_USERID = 2;
+    private static final int FLAG_REQUEST_ID = 4;
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_LONG = 2;
+    private static final int TYPE_INTEGER = 3;
+    private static final int TYPE_PROPERTIES = 4;
+    private static final int TYPE_CREATURE = 5;
+    private static final int TYPE_CREATURES = 6;
+    private static final int TYPE_USERS = 7;
+    private static final int TYPE_SET = 8;
+    private static final int TYPE_SERIALIZED = 9;
+    private static final int TYPE_CREATURE_CHANGES = 10;
+    private static final int TYPE_VIEWPORT_CHANGES = 11;
+    private static final int TYPE_CREATURES_CHUNK = 12;
+    private static final int TYPE_CREATURE_DIGESTS = 13;
+    private static final int TYPE_CREATURES_SYNC = 14;
+
+    /**
+     * Наибольшая вложенность множеств в приложении
+     */
+    private static final int MAX_DEPTH = 8;
+
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+    @Override
+    public byte[] toFrame(Message message) throws IOException {
+        Writer writer = new Writer();
+        writeCode(writer, message.getText(), COMMAND_CODES);
+
+        int flags = 0;
+        if (message.getToken() != null)
+            flags |= FLAG_TOKEN;
+        if (message.getUserid() != null)
+            flags |= FLAG_USERID;
+        if (message.getRequestId() != null)
+            flags |= FLAG_REQUEST_ID;
+        writer.writeByte(flags);
+
+        if (message.getToken() != null)
+            writer.writeSignedVarInt(message.getToken());
+        if (message.getUserid() != null)
+            writer.writeSignedVarInt(message.getUserid());
+        if (message.getRequestId() != null)
+            writer.writeSignedVarInt(message.getRequestId());
+
+        writeValue(writer, message.getAttachment());
+
+        byte[] frame = writer.toByteArray();
+        writeHeader(frame);
+        return frame;
+    }
+
+    @Override
+    public Message fromPayload(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+        Reader reader = new Reader(payload, offset, length);
+        String text = readCode(reader, COMMANDS);
+        if (text == null)
+            throw new StreamCorruptedException("В сообщении нет команды");
+
+        int flags = reader.readByte();
+        Integer token = (flags & FLAG_TOKEN) != 0 ? reader.readSignedVarInt() : null;
+        Integer userid = (flags & FLAG_USERID) != 0 ? reader.readSignedVarInt() : null;
+        Integer requestId = (flags & FLAG_REQUEST_ID) != 0 ? reader.readSignedVarInt() : null;
+
+        Message message = new Message(text, readValue(reader, 0));
+        message.setToken(token);
+        message.setUserid(userid);
+        message.setRequestId(requestId);
+
+        if (reader.remaining() != 0)
+            throw new StreamCorruptedException("После сообщения остались лишние байты: " + reader.remaining());
+        return message;
+    }
+
+    private static void writeValue(Writer writer, Serializable value) throws IOException {
+        if (value == null) {
+            writer.writeByte(TYPE_NULL);
+        } else if (value instanceof String) {
+            writer.writeByte(TYPE_STRING);
+            writer.writeString((String) value);
+        } else if (value instanceof Long) {
+            writer.writeByte(TYPE_LONG);
+            writer.writeSignedVarLong((Long) value);
+        } else if (value instanceof Integer) {
+            writer.writeByte(TYPE_INTEGER);
+            writer.writeSignedVarInt((Integer) value);
+        } else if (value.getClass() == Properties.class) {
+            writer.writeByte(TYPE_PROPERTIES);
+            writeProperties(writer, (Properties) value);
+        } else if (value.getClass() == CreatureModel.class) {
+            writer.writeByte(TYPE_CREATURE);
+            writeCreature(writer, (CreatureModel) value);
+        } else if (value.getClass() == CreatureChanges.class) {
+            CreatureChanges changes = (CreatureChanges) value;
+            // Пачка без входов и выходов пишется по-старому, чтобы её понимали и старые клиенты
+            boolean viewport = !changes.getEntered().isEmpty() || !changes.getLeft().isEmpty();
+            writer.writeByte(viewport ? TYPE_VIEWPORT_CHANGES : TYPE_CREATURE_CHANGES);
+            writeCreatureChanges(writer, changes, viewport);
+        } else if (value.getClass() == CreaturesChunk.class) {
+            writer.writeByte(TYPE_CREATURES_CHUNK);
+            writeCreaturesChunk(writer, (CreaturesChunk) value);
+        } else if (value.getClass() == CreatureDigests.class) {
+            writer.writeByte(TYPE_CREATURE_DIGESTS);
+            writeCreatureDigests(writer, (CreatureDigests) value);
+        } else if (value.getClass() == CreaturesSync.class) {
+            writer.writeByte(TYPE_CREATURES_SYNC);
+            CreaturesSync sync = (CreaturesSync) value;
+            writeIdSet(writer, sync.getBuckets());
+            writeCreatureSet(writer, sync.getCreatures());
+        } else if (value instanceof Set) {
+            writeSet(writer, (Set<?>) value);
+        } else {
+            writer.writeByte(TYPE_SERIALIZED);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(value);
+            }
+            writer.writeVarInt(bytes.size());
+            writer.writeBytes(bytes.toByteArray());
+        }
+    }
+
+    private static Serializable readValue(Reader reader, int depth) throws IOException, ClassNotFoundException {
+        int type = reader.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+
+            case TYPE_STRING:
+                return reader.readString();
+
+            case TYPE_LONG:
+                return reader.readSignedVarLong();
+
+            case TYPE_INTEGER:
+                return reader.readSignedVarInt();
+
+            case TYPE_PROPERTIES:
+                return readProperties(reader);
+
+            case TYPE_CREATURE:
+                return readCreature(reader);
+
+            case TYPE_CREATURE_CHANGES:
+                return readCreatureChanges(reader, false);
+
+            case TYPE_VIEWPORT_CHANGES:
+                return readCreatureChanges(reader, true);
+
+            case TYPE_CREATURES_CHUNK:
+                return readCreaturesChunk(reader);
+
+            case TYPE_CREATURE_DIGESTS:
+                return readCreatureDigests(reader);
+
+            case TYPE_CREATURES_SYNC:
+                return new CreaturesSync(readIdSet(reader), readCreatureSet(reader));
+
+            case TYPE_CREATURES: {
+                int count = reader.readCount();
+                HashSet<CreatureModel> result = new HashSet<>(count * 2);
+                for (int i = 0; i < count; i++)
+                    result.add(readCreature(reader));
+                return result;
+            }
+
+            case TYPE_USERS: {
+                int count = reader.readCount();
+                HashSet<Properties> result = new HashSet<>(count * 2);
+                for (int i = 0; i < count; i++)
+                    result.add(readUser(reader));
+                return result;
+            }
+
+            case TYPE_SET: {
+                if (depth >= MAX_DEPTH)
+                    throw new StreamCorruptedException("Слишком глубокая вложенность множеств");
+                int count = reader.readCount();
+                HashSet<Serializable> result = new HashSet<>(count * 2);
+                for (int i = 0; i < count; i++)
+                    result.add(readValue(reader, depth + 1));
+                return result;
+            }
+
+            case TYPE_SERIALIZED: {
+                int length = reader.readCount();
+                try (ObjectInputStream in = new ObjectInputStream(reader.slice(length))) {
+                    Object object = in.readObject();
+                    if (object != null && !(object instanceof Serializable))
+                        throw new StreamCorruptedException("Приложение не сериализуемо: " + object.getClass());
+                    return (Serializable) object;
+                }
+            }
+
+            default:
+                throw new StreamCorruptedException("Неизвестный тип приложения: " + type);
+        }
+    }
+
+    /**
+     * Пишет множество, выбирая для него самый компактный вид
+     */
+    private static void writeSet(Writer writer, Set<?> set) throws IOException {
+        boolean creatures = true, users = true, serializable = true;
+        for (Object element : set) {
+            creatures &= element != null && element.getClass() == CreatureModel.class;
+            users &= element != null && element.getClass() == Properties.class && isCompactUser((Properties) element);
+            serializable &= element == null || element instanceof Serializable;
+        }
+
+        if (!set.isEmpty() && creatures) {
+            writer.writeByte(TYPE_CREATURES);
+            writer.writeVarInt(set.size());
+            for (Object element : set)
+                writeCreature(writer, (CreatureModel) element);
+        } else if (!set.isEmpty() && users) {
+            writer.writeByte(TYPE_USERS);
+            writer.writeVarInt(set.size());
+            for (Object element : set)
+                writeUser(writer, (Properties) element);
+        } else if (serializable) {
+            writer.writeByte(TYPE_SET);
+            writer.writeVarInt(set.size());
+            for (Object element : set)
+                writeValue(writer, (Serializable) element);
+        } else {
+            throw new NotSerializableException("Множество содержит несериализуемые элементы");
+        }
+    }
+
+    private static void writeProperties(Writer writer, Properties properties) throws IOException {
+        Set<String> names = properties.stringPropertyNames();
+        writer.writeVarInt(names.size());
+        for (String name : names) {
+            writeCode(writer, name, PROPERTY_KEY_CODES);
+            writer.writeString(properties.getProperty(name));
+        }
+    }
+
+    private static Properties readProperties(Reader reader) throws IOException {
+        int count = reader.readCount();
+        Properties properties = new Properties();
+        for (int i = 0; i < count; i++) {
+            String name = readCode(reader, PROPERTY_KEYS);
+            String value = reader.readString();
+            if (name == null || value == null)
+                throw new StreamCorruptedException("Пустой ключ или значение в Properties");
+            properties.setProperty(name, value);
+        }
+        return properties;
+    }
+
+    /**
+     * Проверяет, что свойства пользователя из списка онлайн-пользователей можно записать
+     * компактно и восстановить без изменений: ровно три ключа id, name, color,
+     * id - целое число, а цвет записан в виде #rrggbb строчными буквами.
+     */
+    private static boolean isCompactUser(Properties user) {
+        if (user.size() != 3)
+            return false;
+
+        String id = user.getProperty("id");
+        String name = user.getProperty("name");
+        String color = user.getProperty("color");
+        if (id == null || name == null || color == null)
+            return false;
+
+        try {
+            if (!Integer.toString(Integer.parseInt(id)).equals(id))
+                return false;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        if (color.length() != 7 || color.charAt(0) != '#')
+            return false;
+        for (int i = 1; i < color.length(); i++) {
+            char c = color.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f'))
+                return false;
+        }
+        return true;
+    }
+
+    private static void writeUser(Writer writer, Properties user) {
+        writer.writeSignedVarInt(Integer.parseInt(user.getProperty("id")));
+        writer.writeString(user.getProperty("name"));
+        int color = Integer.parseInt(user.getProperty("color").substring(1), 16);
+        writer.writeByte(color >>> 16);
+        writer.writeByte(color >>> 8);
+        writer.writeByte(color);
+    }
+
+    private static Properties readUser(Reader reader) throws IOException {
+        int id = reader.readSignedVarInt();
+        String name = reader.readString();
+        if (name == null)
+            throw new StreamCorruptedException("У пользователя нет имени");
+        int color = reader.readByte() << 16 | reader.readByte() << 8 | reader.readByte();
+
+        Properties user = new Properties();
+        user.setProperty("id", Integer.toString(id));
+        user.setProperty("name", name);
+        user.setProperty("color", String.format("#%06x", color));
+        return user;
+    }
+
+    private static void writeCreature(Writer writer, CreatureModel model) {
+        writer.writeSignedVarLong(model.getId());
+        writer.writeSignedVarInt(model.getX());
+        writer.writeSignedVarInt(model.getY());
+        writer.writeInt(Float.floatToIntBits(model.getRadius()));
+        writer.writeSignedVarInt(model.getOwnerid());
+        writer.writeString(model.getName());
+
+        ZonedDateTime created = model.getCreated();
+        if (created == null) {
+            writer.writeVarInt(0);
+        } else {
+            writer.writeZone(created.getZone());
+            writer.writeSignedVarLong(created.toEpochSecond());
+            writer.writeVarInt(created.getNano());
+        }
+    }
+
+    private static CreatureModel readCreature(Reader reader) throws IOException {
+        long id = reader.readSignedVarLong();
+        int x = reader.readSignedVarInt();
+        int y = reader.readSignedVarInt();
+        float radius = Float.intBitsToFloat(reader.readInt());
+        int ownerid = reader.readSignedVarInt();
+        String name = reader.readString();
+
+        ZonedDateTime created = null;
+        ZoneId zone = reader.readZone();
+        if (zone != null) {
+            long seconds = reader.readSignedVarLong();
+            int nanos = reader.readVarInt();
+            try {
+                created = ZonedDateTime.ofInstant(Instant.ofEpochSecond(seconds, nanos), zone);
+            } catch (RuntimeException e) {
+                throw new StreamCorruptedException("Неверное время создания существа: " + e.getMessage());
+            }
+        }
+
+        return new CreatureModel(id, x, y, radius, ownerid, name, created);
+    }
+
+    /**
+     * Пишет пачку изменений: количество и модели добавленных существ,
+     * количество и модели изменённых, количество и id удалённых
+     *
+     * @param viewport true, если вслед за обычными изменениями нужно записать входы и выходы
+     */
+    private static void writeCreatureChanges(Writer writer, CreatureChanges changes, boolean viewport) {
+        writeCreatureSet(writer, changes.getAdded());
+        writeCreatureSet(writer, changes.getModified());
+        writeIdSet(writer, changes.getDeleted());
+
+        if (viewport) {
+            writeCreatureSet(writer, changes.getEntered());
+            writeIdSet(writer, changes.getLeft());
+        }
+    }
+
+    private static CreatureChanges readCreatureChanges(Reader reader, boolean viewport) throws IOException {
+        HashSet<CreatureModel> added = readCreatureSet(reader);
+        HashSet<CreatureModel> modified = readCreatureSet(reader);
+        HashSet<Long> deleted = readIdSet(reader);
+
+        if (!viewport)
+            return new CreatureChanges(added, modified, deleted);
+        return new CreatureChanges(added, modified, deleted, readCreatureSet(reader), readIdSet(reader));
+    }
+
+    /**
+     * Пишет часть списка существ: курсор, байт 1, если часть последняя, или 0, и модели существ
+     */
+    private static void writeCreaturesChunk(Writer writer, CreaturesChunk chunk) {
+        writer.writeSignedVarLong(chunk.getCursor());
+        writer.writeByte(chunk.isLast() ? 1 : 0);
+        writeCreatureSet(writer, chunk.getCreatures());
+    }
+
+    private static CreaturesChunk readCreaturesChunk(Reader reader) throws IOException {
+        long cursor = reader.readSignedVarLong();
+        boolean last = reader.readByte() != 0;
+        return new CreaturesChunk(readCreatureSet(reader), cursor, last);
+    }
+
+    /**
+     * Пишет отпечатки корзин: количество, затем для каждой корзины номер
+     * и отпечаток восемью байтами - отпечатки случайны, и varint их бы только удлинил
+     */
+    private static void writeCreatureDigests(Writer writer, CreatureDigests digests) {
+        writer.writeVarInt(digests.getDigests().size());
+        for (Map.Entry<Long, Long> entry : digests.getDigests().entrySet()) {
+            writer.writeSignedVarLong(entry.getKey());
+            writer.writeInt((int) (entry.getValue() >>> 32));
+            writer.writeInt(entry.getValue().intValue());
+        }
+    }
+
+    private static CreatureDigests readCreatureDigests(Reader reader) throws IOException {
+        int count = reader.readCount();
+        HashMap<Long, Long> result = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            long bucket = reader.readSignedVarLong();
+            long digest = (long) reader.readInt() << 32 | (reader.readInt() & 0xFFFFFFFFL);
+            result.put(bucket, digest);
+        }
+        return new CreatureDigests(result);
+    }
+
+    private static void writeCreatureSet(Writer writer, Set<CreatureModel> models) {
+        writer.writeVarInt(models.size());
+        for (CreatureModel model : models)
+            writeCreature(writer, model);
+    }
+
+    private static HashSet<CreatureModel> readCreatureSet(Reader reader) throws IOException {
+        int count = reader.readCount();
+        HashSet<CreatureModel> result = new HashSet<>(count * 2);
+        for (int i = 0; i < count; i++)
+            result.add(readCreature(reader));
+        return result;
+    }
+
+    private static void writeIdSet(Writer writer, Set<Long> ids) {
+        writer.writeVarInt(ids.size());
+        for (long id : ids)
+            writer.writeSignedVarLong(id);
+    }
+
+    private static HashSet<Long> readIdSet(Reader reader) throws IOException {
+        int count = reader.readCount();
+        HashSet<Long> result = new HashSet<>(count * 2);
+        for (int i = 0; i < count; i++)
+            result.add(reader.readSignedVarLong());
+        return result;
+    }
+
+    private static void writeCode(Writer writer, String value, Map<String, Integer> codes) {
+        Integer code = codes.get(value);
+        if (code != null) {
+            writer.writeVarInt(code + 1);
+        } else {
+            writer.writeVarInt(0);
+            writer.writeString(value);
+        }
+    }
+
+    private static String readCode(Reader reader, String[] table) throws IOException {
+        int code = reader.readVarInt();
+        if (code == 0)
+            return reader.readString();
+        if (code < 1 || code > table.length)
+            throw new StreamCorruptedException("Неизвестный код: " + code);
+        return table[code - 1];
+    }
+
+    private static Map<String, Integer> indexOf(String[] table) {
+        Map<String, Integer> result = new HashMap<>();
+        for (int i = 0; i < table.length; i++)
+            result.put(table[i], i);
+        return result;
+    }
+
+    /**
+     * Буфер, в который собирается кадр. Первые {@link MessageOutputStream#HEADER_SIZE}
+     * байт оставлены под заголовок.
+     */
+    private static class Writer {
+        private byte[] buffer = new byte[128];
+        private int size = HEADER_SIZE;
+
+        /**
+         * Часовые пояса, уже записанные в этот кадр. Повторный пояс пишется номером.
+         */
+        private List<ZoneId> zones;
+
+        private void ensureCapacity(int additional) {
+            if (size + additional > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[size++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeInt(int value) {
+            ensureCapacity(4);
+            buffer[size++] = (byte) (value >>> 24);
+            buffer[size++] = (byte) (value >>> 16);
+            buffer[size++] = (byte) (value >>> 8);
+            buffer[size++] = (byte) value;
+        }
+
+        void writeVarInt(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeSignedVarInt(int value) {
+            writeVarInt((value << 1) ^ (value >> 31));
+        }
+
+        void writeSignedVarLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            writeBytes(bytes);
+        }
+
+        /**
+         * Пишет часовой пояс: 1 и имя пояса, если он встретился впервые,
+         * или номер пояса в этом кадре плюс два
+         */
+        void writeZone(ZoneId zone) {
+            if (zones == null)
+                zones = new ArrayList<>(2);
+
+            int index = zones.indexOf(zone);
+            if (index >= 0) {
+                writeVarInt(index + 2);
+            } else {
+                zones.add(zone);
+                writeVarInt(1);
+                writeString(zone.getId());
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+
+    /**
+     * Чтение тела кадра с проверкой границ
+     */
+    private static class Reader {
+        private final byte[] buffer;
+        private final int limit;
+        private int position;
+
+        private List<ZoneId> zones;
+
+        Reader(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        int remaining() {
+            return limit - position;
+        }
+
+        int readByte() throws IOException {
+            if (position >= limit)
+                throw new EOFException("Кадр закончился раньше времени");
+            return buffer[position++] & 0xFF;
+        }
+
+        int readInt() throws IOException {
+            return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+        }
+
+        int readVarInt() throws IOException {
+            int result = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return result;
+            }
+            throw new StreamCorruptedException("Слишком длинное число varint");
+        }
+
+        long readVarLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return result;
+            }
+            throw new StreamCorruptedException("Слишком длинное число varint");
+        }
+
+        int readSignedVarInt() throws IOException {
+            int value = readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readSignedVarLong() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        /**
+         * Читает количество элементов или байт. Каждый элемент занимает хотя бы байт,
+         * поэтому число больше оставшейся длины кадра означает, что кадр повреждён.
+         */
+        int readCount() throws IOException {
+            int count = readVarInt();
+            if (count < 0 || count > remaining())
+                throw new StreamCorruptedException("Неверное количество элементов: " + count);
+            return count;
+        }
+
+        String readString() throws IOException {
+            int length = readVarInt() - 1;
+            if (length == -1)
+                return null;
+            if (length < 0 || length > remaining())
+                throw new StreamCorruptedException("Неверная длина строки: " + length);
+            String result = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return result;
+        }
+
+        ZoneId readZone() throws IOException {
+            int code = readVarInt();
+            if (code == 0)
+                return null;
+
+            if (zones == null)
+                zones = new ArrayList<>(2);
+
+            if (code == 1) {
+                String id = readString();
+                if (id == null)
+                    throw new StreamCorruptedException("Пустой часовой пояс");
+                try {
+                    ZoneId zone = ZoneId.of(id);
+                    zones.add(zone);
+                    return zone;
+                } catch (RuntimeException e) {
+                    throw new StreamCorruptedException("Неизвестный часовой пояс: " + id);
+                }
+            }
+
+            if (code < 2 || code - 2 >= zones.size())
+                throw new StreamCorruptedException("Неизвестный номер часового пояса: " + code);
+            return zones.get(code - 2);
+        }
+
+        /**
+         * @return поток, читающий следующие length байт кадра
+         */
+        InputStream slice(int length) {
+            InputStream result = new ByteArrayInputStream(buffer, position, length);
+            position += length;
+            return result;
+        }
+    }
+}
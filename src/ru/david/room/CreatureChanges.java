@@ -0,0 +1,97 @@
+package ru.david.room;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Objects;
+
+/**
+ * Пачка изменений существ за короткий промежуток времени.
+ * Сервер рассылает её командой creatures_changed вместо отдельных
+ * creature_added, creature_modified и creature_deleted.
+ * Каждое существо встречается в пачке не больше одного раза и в последнем своём состоянии.
+ *
+ * Клиент, сообщивший серверу область видимости, получает только изменения существ внутри неё.
+ * Существа, которые переместились в область или из неё, попадают в {@link #getEntered()}
+ * и {@link #getLeft()}: для клиента они появляются и исчезают, хотя в мире остаются.
+ */
+public class CreatureChanges implements Serializable {
+    /**
+     * Совпадает с вычисленным для версии с областями видимости, которую уже получают клиенты
+     */
+    private static final long serialVersionUID = -5411621839530016053L;
+
+    private HashSet<CreatureModel> added;
+    private HashSet<CreatureModel> modified;
+    private HashSet<Long> deleted;
+    private HashSet<CreatureModel> entered;
+    private HashSet<Long> left;
+
+    public CreatureChanges(HashSet<CreatureModel> added, HashSet<CreatureModel> modified, HashSet<Long> deleted) {
+        this(added, modified, deleted, new HashSet<>(), new HashSet<>());
+    }
+
+    public CreatureChanges(HashSet<CreatureModel> added, HashSet<CreatureModel> modified, HashSet<Long> deleted,
+                           HashSet<CreatureModel> entered, HashSet<Long> left) {
+        this.added = added;
+        this.modified = modified;
+        this.deleted = deleted;
+        this.entered = entered;
+        this.left = left;
+    }
+
+    /**
+     * @return новые существа
+     */
+    public HashSet<CreatureModel> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return изменённые существа
+     */
+    public HashSet<CreatureModel> getModified() {
+        return modified;
+    }
+
+    /**
+     * @return идентификаторы удалённых существ
+     */
+    public HashSet<Long> getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * @return существа, которые вошли в область видимости клиента
+     */
+    public HashSet<CreatureModel> getEntered() {
+        return entered;
+    }
+
+    /**
+     * @return идентификаторы существ, которые покинули область видимости клиента
+     */
+    public HashSet<Long> getLeft() {
+        return left;
+    }
+
+    /**
+     * @return количество изменений в пачке
+     */
+    public int size() {
+        return added.size() + modified.size() + deleted.size() + entered.size() + left.size();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || o.getClass() != getClass()) return false;
+        CreatureChanges c = (CreatureChanges) o;
+        return added.equals(c.added) && modified.equals(c.modified) && deleted.equals(c.deleted) &&
+                entered.equals(c.entered) && left.equals(c.left);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(added, modified, deleted, entered, left);
+    }
+}
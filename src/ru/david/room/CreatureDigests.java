@@ -0,0 +1,145 @@
+package ru.david.room;
+
+import java.io.Serializable;
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Отпечатки существ по корзинам. Существа раскладываются по корзинам по идентификатору:
+ * в корзину с номером n попадают существа с id от n * {@link #BUCKET_WIDTH} до
+ * (n + 1) * {@link #BUCKET_WIDTH} - 1. Отпечаток корзины - сумма отпечатков её существ,
+ * поэтому при изменении одного существа он пересчитывается за постоянное время.
+ *
+ * Клиент присылает серверу отпечатки своих существ командой sync_creatures, а сервер
+ * отвечает содержимым только тех корзин, отпечатки которых не совпали с его собственными.
+ * Пустые корзины не хранятся: их отпечаток равен нулю.
+ */
+public class CreatureDigests implements Serializable {
+    private static final long serialVersionUID = 3271602758243010615L;
+
+    /**
+     * Сколько подряд идущих идентификаторов попадает в одну корзину
+     */
+    public static final int BUCKET_WIDTH = 64;
+
+    private HashMap<Long, Long> digests;
+
+    public CreatureDigests() {
+        this(new HashMap<>());
+    }
+
+    public CreatureDigests(HashMap<Long, Long> digests) {
+        this.digests = digests;
+    }
+
+    /**
+     * @param models существа
+     *
+     * @return отпечатки корзин, в которые попадают существа
+     */
+    public static CreatureDigests of(Collection<CreatureModel> models) {
+        CreatureDigests result = new CreatureDigests();
+        for (CreatureModel model : models)
+            result.add(model);
+        return result;
+    }
+
+    /**
+     * @param id идентификатор существа
+     *
+     * @return номер корзины, в которую попадает существо
+     */
+    public static long bucketOf(long id) {
+        return Math.floorDiv(id, BUCKET_WIDTH);
+    }
+
+    /**
+     * Вычисляет отпечаток существа по всем его полям. Отпечаток не зависит
+     * от часового пояса времени создания и одинаков на сервере и на клиенте.
+     *
+     * @param model существо
+     *
+     * @return 64-битный отпечаток
+     */
+    public static long digestOf(CreatureModel model) {
+        long digest = mix(model.getId());
+        digest = mix(digest ^ model.getX());
+        digest = mix(digest ^ model.getY());
+        digest = mix(digest ^ Float.floatToIntBits(model.getRadius()));
+        digest = mix(digest ^ model.getOwnerid());
+        digest = mix(digest ^ (model.getName() == null ? 0 : model.getName().hashCode()));
+
+        ZonedDateTime created = model.getCreated();
+        if (created != null) {
+            digest = mix(digest ^ created.toEpochSecond());
+            digest = mix(digest ^ created.getNano());
+        }
+        return digest;
+    }
+
+    /**
+     * Учитывает существо в отпечатке его корзины
+     *
+     * @param model существо
+     */
+    public void add(CreatureModel model) {
+        update(bucketOf(model.getId()), digestOf(model));
+    }
+
+    /**
+     * Убирает существо из отпечатка его корзины
+     *
+     * @param model существо в том состоянии, в котором оно было учтено
+     */
+    public void remove(CreatureModel model) {
+        update(bucketOf(model.getId()), -digestOf(model));
+    }
+
+    /**
+     * @param bucket номер корзины
+     *
+     * @return отпечаток корзины, 0 для пустой корзины
+     */
+    public long get(long bucket) {
+        return digests.getOrDefault(bucket, 0L);
+    }
+
+    /**
+     * @return отпечатки непустых корзин по их номерам
+     */
+    public Map<Long, Long> getDigests() {
+        return digests;
+    }
+
+    private void update(long bucket, long delta) {
+        long digest = get(bucket) + delta;
+        if (digest == 0)
+            digests.remove(bucket);
+        else
+            digests.put(bucket, digest);
+    }
+
+    /**
+     * Перемешивание битов из SplitMix64: близкие значения полей дают непохожие отпечатки
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || o.getClass() != getClass()) return false;
+        if (this == o) return true;
+        return digests.equals(((CreatureDigests) o).digests);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(digests);
+    }
+}
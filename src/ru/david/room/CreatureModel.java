@@ -11,6 +11,12 @@ import java.util.Objects;
  * Модель существа с координатами, размером, именем и временем создания.
  */
 public class CreatureModel implements Serializable, Comparable<CreatureModel> {
+    /**
+     * Совпадает с вычисленным для первой версии класса,
+     * чтобы добавление конструкторов не ломало совместимость со старыми клиентами
+     */
+    private static final long serialVersionUID = -2241251099163133807L;
+
     private int x, y;
     private float radius;
     private long id;
@@ -31,6 +37,11 @@ public class CreatureModel implements Serializable, Comparable<CreatureModel> {
         this.created = ZonedDateTime.now();
     }
 
+    public CreatureModel(long id, int x, int y, float radius, int ownerid, String name, ZonedDateTime created) {
+        this(id, x, y, radius, ownerid, name);
+        this.created = created;
+    }
+
     /**
      * Создаёт существо на основе объекта {@link ResultSet}
      * @param set объект с данными
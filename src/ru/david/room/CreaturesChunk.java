@@ -0,0 +1,68 @@
+package ru.david.room;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Objects;
+
+/**
+ * Часть списка существ. Сервер отправляет список по частям командой creatures_chunk,
+ * если клиент попросил об этом в request_creatures, так что ни серверу, ни клиенту
+ * не нужно держать весь список в одном сообщении.
+ *
+ * Части идут по возрастанию идентификаторов существ, последняя помечена {@link #isLast()}.
+ */
+public class CreaturesChunk implements Serializable {
+    private static final long serialVersionUID = -2825644015706149036L;
+
+    private HashSet<CreatureModel> creatures;
+    private long cursor;
+    private boolean last;
+
+    /**
+     * @param creatures существа этой части
+     *
+     * @param cursor наибольший идентификатор существа, отправленного к этому моменту
+     *
+     * @param last true, если это последняя часть
+     */
+    public CreaturesChunk(HashSet<CreatureModel> creatures, long cursor, boolean last) {
+        this.creatures = creatures;
+        this.cursor = cursor;
+        this.last = last;
+    }
+
+    /**
+     * @return существа этой части
+     */
+    public HashSet<CreatureModel> getCreatures() {
+        return creatures;
+    }
+
+    /**
+     * @return наибольший идентификатор существа, отправленного к этому моменту:
+     * следующая часть начнётся с существ, идентификатор которых больше
+     */
+    public long getCursor() {
+        return cursor;
+    }
+
+    /**
+     * @return true, если это последняя часть
+     */
+    public boolean isLast() {
+        return last;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || o.getClass() != getClass()) return false;
+        if (this == o) return true;
+        CreaturesChunk c = (CreaturesChunk) o;
+        return cursor == c.cursor && last == c.last && creatures.equals(c.creatures);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(creatures, cursor, last);
+    }
+}
@@ -0,0 +1,50 @@
+package ru.david.room;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Objects;
+
+/**
+ * Ответ на sync_creatures: корзины, отпечатки которых у клиента и сервера не совпали,
+ * и все существа, которые в этих корзинах есть у сервера, см. {@link CreatureDigests}.
+ * Клиент должен забыть свои существа из перечисленных корзин и взять вместо них присланные.
+ * Существ из остальных корзин ответ не касается.
+ */
+public class CreaturesSync implements Serializable {
+    private static final long serialVersionUID = 1469388006443713164L;
+
+    private HashSet<Long> buckets;
+    private HashSet<CreatureModel> creatures;
+
+    public CreaturesSync(HashSet<Long> buckets, HashSet<CreatureModel> creatures) {
+        this.buckets = buckets;
+        this.creatures = creatures;
+    }
+
+    /**
+     * @return номера корзин, содержимое которых заменяется
+     */
+    public HashSet<Long> getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * @return новое содержимое этих корзин
+     */
+    public HashSet<CreatureModel> getCreatures() {
+        return creatures;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || o.getClass() != getClass()) return false;
+        if (this == o) return true;
+        CreaturesSync c = (CreaturesSync) o;
+        return buckets.equals(c.buckets) && creatures.equals(c.creatures);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(buckets, creatures);
+    }
+}
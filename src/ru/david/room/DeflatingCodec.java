@@ -0,0 +1,213 @@
+package ru.david.room;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static ru.david.room.MessageOutputStream.HEADER_SIZE;
+
+/**
+ * Формат версии 2: {@link CompactCodec}, тело которого сжимается алгоритмом Deflate,
+ * если оно не меньше порога.
+ *
+ * Тело кадра начинается с байта-метки:
+ * <ul>
+ *     <li>0 - дальше лежит тело кадра формата версии 1 как есть;</li>
+ *     <li>1 - дальше лежат четыре байта длины исходного тела и сжатое тело.</li>
+ * </ul>
+ *
+ * Если сжатое тело получается не короче исходного, кадр отправляется несжатым,
+ * так что выигрыш от сжатия никогда не бывает отрицательным, кроме одного байта метки.
+ * Порог у каждой стороны свой: получатель разбирает оба вида кадров независимо от него.
+ */
+public class DeflatingCodec extends MessageCodec {
+    /**
+     * Порог сжатия, который используется, если другой не указан
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    /**
+     * Наибольшая длина тела после распаковки, которая используется, если другая не указана.
+     * Без ограничения маленький кадр мог бы распаковаться в гигабайты и занять всю память.
+     */
+    public static final int DEFAULT_MAX_INFLATED_LENGTH = 64 * 1024 * 1024;
+
+    private static final int MARK_PLAIN = 0;
+    private static final int MARK_DEFLATED = 1;
+    private static final int PREFIX_SIZE = 1 + 4;
+
+    /**
+     * Deflater и Inflater держат память вне кучи, и создавать их на каждый кадр дорого
+     */
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final MessageCodec inner = MessageCodec.COMPACT;
+    private final int threshold;
+    private final int maxInflatedLength;
+    private final Listener listener;
+
+    /**
+     * @param threshold наименьшая длина тела в байтах, начиная с которой оно сжимается
+     *
+     * @param maxInflatedLength наибольшая длина тела после распаковки
+     *
+     * @param listener получатель статистики сжатия или null
+     */
+    public DeflatingCodec(int threshold, int maxInflatedLength, Listener listener) {
+        if (threshold < 1)
+            throw new IllegalArgumentException("Порог сжатия должен быть положительным");
+        if (maxInflatedLength < 1)
+            throw new IllegalArgumentException("Наибольшая длина распакованного тела должна быть положительной");
+        this.threshold = threshold;
+        this.maxInflatedLength = maxInflatedLength;
+        this.listener = listener;
+    }
+
+    @Override
+    public int getVersion() {
+        return 2;
+    }
+
+    /**
+     * @return наименьшая длина тела в байтах, начиная с которой оно сжимается
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    public byte[] toFrame(Message message) throws IOException {
+        byte[] plain = inner.toFrame(message);
+        int length = plain.length - HEADER_SIZE;
+
+        byte[] frame = length >= threshold ? deflate(plain, length) : null;
+        if (frame == null) {
+            frame = new byte[plain.length + 1];
+            frame[HEADER_SIZE] = MARK_PLAIN;
+            System.arraycopy(plain, HEADER_SIZE, frame, HEADER_SIZE + 1, length);
+        }
+
+        writeHeader(frame);
+        return frame;
+    }
+
+    /**
+     * @return сжатый кадр без заголовка или null, если сжатие не дало выигрыша
+     */
+    private byte[] deflate(byte[] plain, int length) {
+        long start = System.nanoTime();
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(plain, HEADER_SIZE, length);
+        deflater.finish();
+
+        // Места ровно столько, сколько занял бы несжатый кадр: если сжатое тело
+        // в него не влезло, сжимать не стоило
+        byte[] frame = new byte[HEADER_SIZE + 1 + length];
+        int position = HEADER_SIZE + PREFIX_SIZE;
+        while (!deflater.finished() && position < frame.length)
+            position += deflater.deflate(frame, position, frame.length - position);
+        boolean deflated = deflater.finished();
+
+        long nanos = System.nanoTime() - start;
+        if (listener != null)
+            listener.onDeflated(length, deflated ? position - HEADER_SIZE : length + 1, nanos);
+        if (!deflated)
+            return null;
+
+        frame[HEADER_SIZE] = MARK_DEFLATED;
+        frame[HEADER_SIZE + 1] = (byte) (length >>> 24);
+        frame[HEADER_SIZE + 2] = (byte) (length >>> 16);
+        frame[HEADER_SIZE + 3] = (byte) (length >>> 8);
+        frame[HEADER_SIZE + 4] = (byte) length;
+        return Arrays.copyOf(frame, position);
+    }
+
+    @Override
+    public Message fromPayload(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+        if (length < 1)
+            throw new StreamCorruptedException("Пустой кадр");
+
+        switch (payload[offset]) {
+            case MARK_PLAIN:
+                return inner.fromPayload(payload, offset + 1, length - 1);
+
+            case MARK_DEFLATED:
+                byte[] inflated = inflate(payload, offset, length);
+                return inner.fromPayload(inflated, 0, inflated.length);
+
+            default:
+                throw new StreamCorruptedException("Неизвестная метка сжатия: " + payload[offset]);
+        }
+    }
+
+    private byte[] inflate(byte[] payload, int offset, int length) throws IOException {
+        if (length < PREFIX_SIZE)
+            throw new StreamCorruptedException("Сжатый кадр слишком короткий");
+
+        int inflatedLength = (payload[offset + 1] & 0xFF) << 24 | (payload[offset + 2] & 0xFF) << 16 |
+                (payload[offset + 3] & 0xFF) << 8 | (payload[offset + 4] & 0xFF);
+        if (inflatedLength < 0)
+            throw new StreamCorruptedException("Неверная длина сжатого тела: " + inflatedLength);
+        if (inflatedLength > maxInflatedLength)
+            throw new FrameTooLargeException(inflatedLength, maxInflatedLength);
+
+        long start = System.nanoTime();
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(payload, offset + PREFIX_SIZE, length - PREFIX_SIZE);
+
+        byte[] result = new byte[inflatedLength];
+        try {
+            int position = 0;
+            while (position < inflatedLength && !inflater.finished()) {
+                int count = inflater.inflate(result, position, inflatedLength - position);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                position += count;
+            }
+            if (position != inflatedLength || !inflater.finished())
+                throw new StreamCorruptedException("Длина распакованного тела не совпадает с заявленной");
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Сжатое тело повреждено: " + e.getMessage());
+        }
+
+        if (listener != null)
+            listener.onInflated(length, inflatedLength, System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Получатель статистики сжатия. Вызывается из потока, который кодирует или разбирает кадр.
+     */
+    public interface Listener {
+        /**
+         * Вызывается после каждой попытки сжать тело
+         *
+         * @param plainLength длина исходного тела
+         *
+         * @param frameLength длина получившегося тела вместе с меткой;
+         *                    больше plainLength, если сжатие не дало выигрыша
+         *
+         * @param nanos сколько заняло сжатие
+         */
+        void onDeflated(int plainLength, int frameLength, long nanos);
+
+        /**
+         * Вызывается после распаковки каждого сжатого тела
+         *
+         * @param frameLength длина сжатого тела вместе с меткой
+         *
+         * @param plainLength длина распакованного тела
+         *
+         * @param nanos сколько заняла распаковка
+         */
+        void onInflated(int frameLength, int plainLength, long nanos);
+    }
+}
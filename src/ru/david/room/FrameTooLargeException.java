@@ -0,0 +1,15 @@
+package ru.david.room;
+
+import java.io.StreamCorruptedException;
+
+/**
+ * Бросается, когда длина кадра превышает допустимую. Кадр при этом не читается
+ * целиком, поэтому дальше в потоке лежит его тело и соединение нужно закрыть.
+ */
+public class FrameTooLargeException extends StreamCorruptedException {
+    private static final long serialVersionUID = 8210858092635541247L;
+
+    public FrameTooLargeException(long length, int maxLength) {
+        super("Длина кадра " + length + " байт превышает допустимые " + maxLength);
+    }
+}
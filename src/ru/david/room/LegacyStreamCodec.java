@@ -0,0 +1,48 @@
+package ru.david.room;
+
+import java.io.*;
+
+/**
+ * Формат клиентов, собранных до появления кадров. Такой клиент на всё соединение открывает
+ * один {@link ObjectOutputStream} и пишет в него сообщения без заголовков, а ответы читает
+ * одним {@link ObjectInputStream}. Версия формата та же, что у {@link SerializationCodec}: 0.
+ *
+ * Вместо кадра здесь получаются байты, которые можно дописать в поток сериализации
+ * после его заголовка {@link #STREAM_HEADER}: команда TC_RESET и сам объект. Благодаря TC_RESET
+ * получатель забывает объекты предыдущих сообщений, поэтому каждое сообщение кодируется
+ * независимо от остальных, и одни и те же байты можно отправить сразу нескольким клиентам.
+ *
+ * Читать такие сообщения по одному нельзя: входящий поток разбирается целиком одним
+ * {@link ObjectInputStream}, см. {@link MessageInputStream#startsWithStreamHeader()}.
+ */
+class LegacyStreamCodec extends MessageCodec {
+    /**
+     * Заголовок потока сериализации Java: STREAM_MAGIC и STREAM_VERSION
+     */
+    static final byte[] STREAM_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+
+    @Override
+    public int getVersion() {
+        return 0;
+    }
+
+    @Override
+    public byte[] toFrame(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+
+        // Заголовок потока получатель уже прочитал, вместо него - TC_RESET
+        byte[] serialized = bytes.toByteArray();
+        byte[] frame = new byte[serialized.length - STREAM_HEADER.length + 1];
+        frame[0] = ObjectStreamConstants.TC_RESET;
+        System.arraycopy(serialized, STREAM_HEADER.length, frame, 1, serialized.length - STREAM_HEADER.length);
+        return frame;
+    }
+
+    @Override
+    public Message fromPayload(byte[] payload, int offset, int length) throws IOException {
+        throw new StreamCorruptedException("В формате без кадров сообщения читаются из потока целиком");
+    }
+}
@@ -8,11 +8,18 @@ import java.io.Serializable;
  * и для решения проблемы с разделением команды и её объектов-аргументов
  */
 public class Message implements Serializable {
+    /**
+     * Совпадает с вычисленным для версии без {@link #requestId},
+     * чтобы старые клиенты по-прежнему понимали сериализованные сообщения
+     */
+    private static final long serialVersionUID = 5836973666564251787L;
+
     private String text;
     private Serializable attachment;
 
     private Integer token;
     private Integer userid;
+    private Integer requestId;
 
     /**
      * Создаёт сообщение с указанным текстовым запросом и объектом-приложением
@@ -82,4 +89,18 @@ public class Message implements Serializable {
     public void setUserid(Integer userid) {
         this.userid = userid;
     }
+
+    /**
+     * Идентификатор запроса. Клиент присваивает его запросу,
+     * а сервер копирует в ответ, чтобы клиент понял, на какой запрос пришёл ответ.
+     *
+     * @return идентификатор запроса или null, если клиент его не указал
+     */
+    public Integer getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(Integer requestId) {
+        this.requestId = requestId;
+    }
 }
@@ -0,0 +1,179 @@
+package ru.david.room;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import static ru.david.room.MessageOutputStream.HEADER_SIZE;
+
+/**
+ * Способ превращения {@link Message} в тело кадра и обратно.
+ *
+ * Каждое соединение начинает работу с {@link #SERIALIZATION}, то есть со стандартной
+ * сериализации Java в кадрах. Новый клиент первым кадром отправляет рукопожатие с наибольшей
+ * известной ему версией формата, а сервер отвечает таким же кадром с версией, которую он выбрал.
+ * После этого обе стороны переключаются на выбранный формат,
+ * см. {@link #negotiate(MessageInputStream, MessageOutputStream)}.
+ *
+ * Клиенты, собранные до появления кадров, пишут сериализованные сообщения одним потоком
+ * без заголовков. Блокирующий транспорт сервера узнаёт их по первым байтам
+ * ({@link MessageInputStream#startsWithStreamHeader()}) и отвечает им в {@link #LEGACY_STREAM}.
+ */
+public abstract class MessageCodec {
+    /**
+     * Стандартная сериализация Java, версия 0
+     */
+    public static final MessageCodec SERIALIZATION = new SerializationCodec();
+
+    /**
+     * Стандартная сериализация Java одним потоком без кадров, как у клиентов,
+     * собранных до появления кадров. Версия 0, как у {@link #SERIALIZATION}.
+     */
+    public static final MessageCodec LEGACY_STREAM = new LegacyStreamCodec();
+
+    /**
+     * Компактный двоичный формат, версия 1
+     */
+    public static final MessageCodec COMPACT = new CompactCodec();
+
+    /**
+     * Компактный формат со сжатием больших кадров, версия 2.
+     * Сервер использует собственный экземпляр со своим порогом сжатия.
+     */
+    public static final MessageCodec DEFLATING = new DeflatingCodec(
+            DeflatingCodec.DEFAULT_THRESHOLD, DeflatingCodec.DEFAULT_MAX_INFLATED_LENGTH, null
+    );
+
+    /**
+     * Наибольшая версия формата, которую знает эта сборка
+     */
+    public static final int LATEST_VERSION = 2;
+
+    /**
+     * Начало тела кадра-рукопожатия. Сериализованный объект всегда начинается
+     * с байтов 0xACED, поэтому спутать рукопожатие с обычным сообщением нельзя.
+     */
+    private static final byte[] HANDSHAKE_MAGIC = {'R', 'O', 'O', 'M'};
+
+    /**
+     * @return номер версии формата
+     */
+    public abstract int getVersion();
+
+    /**
+     * Кодирует сообщение в кадр вместе с заголовком
+     *
+     * @param message сообщение
+     *
+     * @return кадр, готовый к отправке
+     *
+     * @throws IOException если сообщение не удалось закодировать
+     */
+    public abstract byte[] toFrame(Message message) throws IOException;
+
+    /**
+     * Восстанавливает сообщение из тела кадра (без заголовка)
+     *
+     * @param payload массив, содержащий тело кадра
+     *
+     * @param offset смещение тела в массиве
+     *
+     * @param length длина тела
+     *
+     * @return сообщение
+     *
+     * @throws IOException если кадр повреждён или в нём лежит не сообщение
+     * @throws ClassNotFoundException если в кадре лежит экземпляр незнакомого класса
+     */
+    public abstract Message fromPayload(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException;
+
+    /**
+     * @param version версия, которую предлагает другая сторона
+     *
+     * @return наиболее новый формат, версия которого не больше предложенной
+     */
+    public static MessageCodec forVersion(int version) {
+        if (version >= DEFLATING.getVersion())
+            return DEFLATING;
+        return version >= COMPACT.getVersion() ? COMPACT : SERIALIZATION;
+    }
+
+    /**
+     * @param version предлагаемая или выбранная версия формата
+     *
+     * @return кадр-рукопожатие вместе с заголовком
+     */
+    public static byte[] handshakeFrame(int version) {
+        byte[] frame = new byte[HEADER_SIZE + HANDSHAKE_MAGIC.length + 1];
+        System.arraycopy(HANDSHAKE_MAGIC, 0, frame, HEADER_SIZE, HANDSHAKE_MAGIC.length);
+        frame[frame.length - 1] = (byte) version;
+        writeHeader(frame);
+        return frame;
+    }
+
+    /**
+     * Проверяет, является ли тело кадра рукопожатием
+     *
+     * @param payload массив, содержащий тело кадра
+     *
+     * @param offset смещение тела в массиве
+     *
+     * @param length длина тела
+     *
+     * @return версия формата из рукопожатия или -1, если это не рукопожатие
+     */
+    public static int parseHandshake(byte[] payload, int offset, int length) {
+        if (length != HANDSHAKE_MAGIC.length + 1)
+            return -1;
+        for (int i = 0; i < HANDSHAKE_MAGIC.length; i++)
+            if (payload[offset + i] != HANDSHAKE_MAGIC[i])
+                return -1;
+        return payload[offset + HANDSHAKE_MAGIC.length] & 0xFF;
+    }
+
+    /**
+     * Договаривается с сервером о формате сообщений и переключает на него оба потока.
+     * Должен вызываться сразу после установки соединения, до отправки первого сообщения.
+     *
+     * @param in поток сообщений от сервера
+     *
+     * @param out поток сообщений серверу
+     *
+     * @return выбранный формат
+     *
+     * @throws IOException если сервер ответил не рукопожатием или соединение оборвалось
+     */
+    public static MessageCodec negotiate(MessageInputStream in, MessageOutputStream out) throws IOException {
+        out.writeFrame(handshakeFrame(LATEST_VERSION));
+
+        byte[] reply = in.readFrame();
+        int version = parseHandshake(reply, 0, reply.length);
+        if (version < 0)
+            throw new StreamCorruptedException("Сервер не ответил на рукопожатие");
+
+        MessageCodec codec = forVersion(version);
+        in.setCodec(codec);
+        out.setCodec(codec);
+        return codec;
+    }
+
+    /**
+     * @return заголовок потока сериализации, который нужно отправить клиенту без кадров
+     *         перед первым сообщением в {@link #LEGACY_STREAM}
+     */
+    public static byte[] streamHeader() {
+        return LegacyStreamCodec.STREAM_HEADER.clone();
+    }
+
+    /**
+     * Записывает в первые {@link MessageOutputStream#HEADER_SIZE} байт кадра длину его тела
+     *
+     * @param frame кадр с зарезервированным местом под заголовок
+     */
+    static void writeHeader(byte[] frame) {
+        int length = frame.length - HEADER_SIZE;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+    }
+}
@@ -0,0 +1,183 @@
+package ru.david.room;
+
+import java.io.*;
+
+/**
+ * Поток для приёма сообщений {@link Message}, отправленных кадрами
+ * через {@link MessageOutputStream}.
+ *
+ * Умеет читать и клиентов, собранных до появления кадров, которые пишут сообщения
+ * одним потоком сериализации, см. {@link #openLegacyStream()}.
+ */
+public class MessageInputStream extends DataInputStream {
+    private volatile MessageCodec codec = MessageCodec.SERIALIZATION;
+    private int maxFrameSize = Integer.MAX_VALUE;
+
+    /**
+     * Поток сериализации клиента без кадров или null, если сообщения приходят кадрами
+     */
+    private ObjectInputStream legacy;
+
+    /**
+     * Сколько байт прочитал legacy и сколько было прочитано к началу текущего сообщения
+     */
+    private long legacyBytes;
+    private long messageStart;
+
+    public MessageInputStream(InputStream in) {
+        super(new BufferedInputStream(in));
+    }
+
+    /**
+     * Устанавливает формат, в котором приходят сообщения
+     *
+     * @param codec формат сообщений
+     */
+    public void setCodec(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Устанавливает наибольшую длину тела кадра. Более длинный кадр
+     * отвергается по заголовку, и память под него не выделяется.
+     *
+     * @param maxFrameSize наибольшая длина тела кадра в байтах
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Читает очередной кадр и восстанавливает из него сообщение
+     *
+     * @return прочитанное сообщение
+     *
+     * @throws IOException если что-то пойдёт не так или кадр повреждён
+     * @throws ClassNotFoundException если в кадре лежит экземпляр незнакомого класса
+     */
+    public Message readMessage() throws IOException, ClassNotFoundException {
+        if (legacy != null) {
+            messageStart = legacyBytes;
+            Object object = legacy.readObject();
+            if (!(object instanceof Message))
+                throw new StreamCorruptedException("Вместо сообщения прислан " + object);
+            return (Message) object;
+        }
+
+        byte[] payload = readFrame();
+        return codec.fromPayload(payload, 0, payload.length);
+    }
+
+    /**
+     * Читает очередной кадр, не разбирая его
+     *
+     * @return тело кадра без заголовка
+     *
+     * @throws IOException если что-то пойдёт не так или кадр повреждён
+     * @throws FrameTooLargeException если кадр длиннее {@link #setMaxFrameSize(int) допустимого}
+     */
+    public byte[] readFrame() throws IOException {
+        int length = readInt();
+        if (length < 0)
+            throw new StreamCorruptedException("Неверная длина кадра: " + length);
+        if (length > maxFrameSize)
+            throw new FrameTooLargeException(length, maxFrameSize);
+
+        byte[] payload = new byte[length];
+        readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Проверяет, не пишет ли другая сторона вместо кадров поток сериализации Java,
+     * как клиенты, собранные до появления кадров. Такой поток начинается с байтов 0xACED,
+     * а с них не может начинаться кадр: длина кадра не бывает отрицательной.
+     * Ждёт первых двух байт, но оставляет их в потоке.
+     *
+     * @return true, если поток начинается с заголовка сериализации
+     *
+     * @throws IOException если что-то пойдёт не так
+     */
+    public boolean startsWithStreamHeader() throws IOException {
+        in.mark(2);
+        try {
+            return in.read() == 0xAC && in.read() == 0xED;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Переключает поток на чтение сообщений, записанных одним потоком сериализации без кадров,
+     * см. {@link #startsWithStreamHeader()}. Дальше {@link #readMessage()} читает их по одному.
+     *
+     * Каждое сообщение проверяется фильтром десериализации JVM так, будто оно пришло отдельно:
+     * объём считается от начала сообщения, а не от начала соединения, и не может превышать
+     * {@link #setMaxFrameSize(int) наибольшую длину кадра}.
+     *
+     * @throws IOException если заголовок потока повреждён
+     */
+    public void openLegacyStream() throws IOException {
+        legacy = new ObjectInputStream(new FilterInputStream(this) {
+            @Override
+            public int read() throws IOException {
+                int result = super.read();
+                if (result >= 0)
+                    legacyBytes++;
+                return result;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int result = super.read(b, off, len);
+                if (result > 0)
+                    legacyBytes += result;
+                return result;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long result = super.skip(n);
+                legacyBytes += result;
+                return result;
+            }
+        });
+        legacy.setObjectInputFilter(this::checkLegacyInput);
+    }
+
+    private ObjectInputFilter.Status checkLegacyInput(ObjectInputFilter.FilterInfo info) {
+        long messageBytes = legacyBytes - messageStart;
+        if (messageBytes > maxFrameSize)
+            return ObjectInputFilter.Status.REJECTED;
+
+        ObjectInputFilter filter = ObjectInputFilter.Config.getSerialFilter();
+        if (filter == null)
+            return ObjectInputFilter.Status.UNDECIDED;
+        return filter.checkInput(new ObjectInputFilter.FilterInfo() {
+            @Override
+            public Class<?> serialClass() {
+                return info.serialClass();
+            }
+
+            @Override
+            public long arrayLength() {
+                return info.arrayLength();
+            }
+
+            @Override
+            public long depth() {
+                return info.depth();
+            }
+
+            @Override
+            public long references() {
+                return info.references();
+            }
+
+            @Override
+            public long streamBytes() {
+                return messageBytes;
+            }
+        });
+    }
+}
@@ -0,0 +1,70 @@
+package ru.david.room;
+
+import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Поток для отправки сообщений {@link Message} кадрами.
+ * Каждый кадр состоит из заголовка - четырёх байт длины тела - и самого тела,
+ * в котором лежит сообщение, закодированное согласно {@link MessageCodec}.
+ * Благодаря заголовку получатель знает границы сообщения заранее
+ * и может читать его неблокирующим способом.
+ */
+public class MessageOutputStream extends DataOutputStream {
+    /**
+     * Размер заголовка кадра в байтах
+     */
+    public static final int HEADER_SIZE = 4;
+
+    /**
+     * Блокировка записи. Используется вместо synchronized, потому что запись в сокет
+     * может надолго заблокироваться, а ждать внутри synchronized виртуальный поток
+     * не может, не заняв при этом поток-носитель.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private volatile MessageCodec codec = MessageCodec.SERIALIZATION;
+
+    public MessageOutputStream(OutputStream out) {
+        super(new BufferedOutputStream(out));
+    }
+
+    /**
+     * Устанавливает формат, в котором отправляются сообщения
+     *
+     * @param codec формат сообщений
+     */
+    public void setCodec(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Отправляет сообщение одним кадром
+     *
+     * @param message сообщение для отправки
+     *
+     * @throws IOException если что-то пойдёт не так
+     */
+    public void writeMessage(Message message) throws IOException {
+        writeFrame(codec.toFrame(message));
+    }
+
+    /**
+     * Отправляет заранее подготовленный кадр, см. {@link MessageCodec#toFrame(Message)}
+     *
+     * @param frame кадр вместе с заголовком
+     *
+     * @throws IOException если что-то пойдёт не так
+     */
+    public void writeFrame(byte[] frame) throws IOException {
+        writeLock.lock();
+        try {
+            // write и flush у BufferedOutputStream синхронизированы, но монитор внутри них берёт только
+            // держатель writeLock. Друг друга отправители ждут на writeLock и поток-носитель не занимают
+            out.write(frame, 0, frame.length);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package ru.david.room;
+
+import java.io.*;
+
+import static ru.david.room.MessageOutputStream.HEADER_SIZE;
+
+/**
+ * Формат версии 0: сообщение целиком сериализуется стандартными средствами Java
+ */
+class SerializationCodec extends MessageCodec {
+    @Override
+    public int getVersion() {
+        return 0;
+    }
+
+    @Override
+    public byte[] toFrame(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        bytes.write(new byte[HEADER_SIZE]);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+
+        byte[] frame = bytes.toByteArray();
+        writeHeader(frame);
+        return frame;
+    }
+
+    @Override
+    public Message fromPayload(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload, offset, length))) {
+            Object object = in.readObject();
+            if (!(object instanceof Message))
+                throw new StreamCorruptedException("В кадре лежит не сообщение, а " + object);
+            return (Message) object;
+        }
+    }
+}
@@ -8,11 +8,12 @@ import javafx.scene.input.KeyEvent;
 import javafx.scene.layout.Pane;
 import javafx.stage.Stage;
 import ru.david.room.Message;
+import ru.david.room.MessageCodec;
+import ru.david.room.MessageInputStream;
+import ru.david.room.MessageOutputStream;
 import ru.david.room.client.Client;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Properties;
@@ -90,7 +91,9 @@ public class ForgotPasswordDialog {
             }
 
             Socket socket = new Socket(Client.getConfig().getServerHost(), Client.getConfig().getServerPort());
-            ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+            MessageOutputStream oos = new MessageOutputStream(socket.getOutputStream());
+            MessageInputStream ois = new MessageInputStream(socket.getInputStream());
+            MessageCodec.negotiate(ois, oos);
 
             Properties request = new Properties();
 
@@ -98,12 +101,11 @@ public class ForgotPasswordDialog {
             request.setProperty("locale-language", Client.getCurrentLocale().getLanguage());
             request.setProperty("locale-country", Client.getCurrentLocale().getCountry());
 
-            oos.writeObject(new Message("request_password_reset", request));
+            oos.writeMessage(new Message("request_password_reset", request));
 
-            ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
-            Message response = (Message)ois.readObject();
+            Message response = ois.readMessage();
 
-            oos.writeObject(new Message("disconnect"));
+            oos.writeMessage(new Message("disconnect"));
 
             switch (response.getText()) {
                 case "OK":
@@ -163,18 +165,19 @@ public class ForgotPasswordDialog {
             }
 
             Socket socket = new Socket(Client.getConfig().getServerHost(), Client.getConfig().getServerPort());
-            ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+            MessageOutputStream oos = new MessageOutputStream(socket.getOutputStream());
+            MessageInputStream ois = new MessageInputStream(socket.getInputStream());
+            MessageCodec.negotiate(ois, oos);
 
             Properties properties = new Properties();
             properties.setProperty("confirmation", confirmationInput.getText());
             properties.setProperty("password", passwordInput.getText());
 
-            oos.writeObject(new Message("reset_password", properties));
+            oos.writeMessage(new Message("reset_password", properties));
 
-            ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
-            Message response = (Message)ois.readObject();
+            Message response = ois.readMessage();
 
-            oos.writeObject(new Message("disconnect"));
+            oos.writeMessage(new Message("disconnect"));
 
             switch (response.getText()) {
                 case "OK":
@@ -207,6 +210,10 @@ public class ForgotPasswordDialog {
                 case "INTERNAL_SERVER":
                     showErrorMessage(bundle.getString("register-dialog.internal-error"));
                     break;
+
+                case "BUSY":
+                    showErrorMessage(bundle.getString("login-dialog.server-busy"));
+                    break;
             }
 
         } catch (UnknownHostException e) {
@@ -12,6 +12,9 @@ import javafx.scene.paint.Color;
 import javafx.stage.Stage;
 import javafx.util.StringConverter;
 import ru.david.room.Message;
+import ru.david.room.MessageCodec;
+import ru.david.room.MessageInputStream;
+import ru.david.room.MessageOutputStream;
 import ru.david.room.client.Client;
 import ru.david.room.client.WelcomePhrases;
 import ru.david.room.client.forgot_password.ForgotPasswordDialog;
@@ -21,8 +24,6 @@ import ru.david.room.client.settings.SettingsDialog;
 
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Locale;
@@ -133,10 +134,11 @@ public class LoginDialog {
 
             Socket socket = new Socket(Client.getConfig().getServerHost(), Client.getConfig().getServerPort());
             Message request = new Message("login", loginInfo);
-            ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
-            oos.writeObject(request);
-            Message response = (Message)(ois.readObject());
+            MessageOutputStream oos = new MessageOutputStream(socket.getOutputStream());
+            MessageInputStream ois = new MessageInputStream(socket.getInputStream());
+            MessageCodec.negotiate(ois, oos);
+            oos.writeMessage(request);
+            Message response = ois.readMessage();
 
             Properties properties = (Properties)response.getAttachment();
             String status = response.getText();
@@ -164,6 +166,10 @@ public class LoginDialog {
                     passwordField.clear();
                     showErrorMessage(Client.currentResourceBundle().getString("login-dialog.internal-server-error"));
                     break;
+
+                case "BUSY":
+                    showErrorMessage(Client.currentResourceBundle().getString("login-dialog.server-busy"));
+                    break;
             }
 
         } catch (UnknownHostException e) {
@@ -3,6 +3,7 @@ package ru.david.room.client.main;
 import javafx.animation.AnimationTimer;
 import javafx.collections.ObservableList;
 import javafx.geometry.Point2D;
+import javafx.geometry.Rectangle2D;
 import javafx.geometry.VPos;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
@@ -88,6 +89,22 @@ public class CreaturesCanvas extends Canvas {
         this.listener = listener;
     }
 
+    /**
+     * @return прямоугольник мира, который сейчас помещается на холсте;
+     * вся область мира, если холст ещё не получил размеры
+     */
+    Rectangle2D getVisibleArea() {
+        if (getScale() <= 0)
+            return new Rectangle2D(0, 0, AREA_SIZE, AREA_SIZE);
+
+        Point2D topLeft = unproject(new Point2D(0, 0));
+        Point2D bottomRight = unproject(new Point2D(getWidth(), getHeight()));
+        return new Rectangle2D(
+                topLeft.getX(), topLeft.getY(),
+                bottomRight.getX() - topLeft.getX(), bottomRight.getY() - topLeft.getY()
+        );
+    }
+
     private Point2D unproject(Point2D point) {
         double x = point.getX();
         double y = point.getY();
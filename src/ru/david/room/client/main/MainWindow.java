@@ -5,6 +5,7 @@ import javafx.application.Platform;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
@@ -12,8 +13,14 @@ import javafx.scene.layout.Pane;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Circle;
 import javafx.stage.Stage;
+import ru.david.room.CreatureChanges;
+import ru.david.room.CreatureDigests;
 import ru.david.room.CreatureModel;
+import ru.david.room.CreaturesChunk;
+import ru.david.room.CreaturesSync;
 import ru.david.room.Message;
+import ru.david.room.MessageInputStream;
+import ru.david.room.MessageOutputStream;
 import ru.david.room.client.Client;
 import ru.david.room.client.login.LoginDialog;
 import ru.david.room.client.settings.SettingsDialog;
@@ -21,10 +28,12 @@ import ru.david.room.client.ui.UsersList;
 
 import java.io.*;
 import java.net.SocketException;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Properties;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Основное окно приложения. Милая мордашка, не правда ли?
@@ -39,8 +48,9 @@ public class MainWindow extends Application {
     private Color userColor = new Color(0, 0, 0, 1);
     private Set<CreatureModel> creatureModels = new HashSet<>();
 
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    private MessageInputStream in;
+    private MessageOutputStream out;
+    private final PendingRequests pendingRequests = new PendingRequests();
 
     private Thread receivingThread;
 
@@ -93,10 +103,11 @@ public class MainWindow extends Application {
         receivingThread = new Thread(() -> {
             try {
                 sendMessage("subscribe");
-                sendMessage("request_users");
-                sendMessage("request_creatures");
+                syncCreatures();
                 while (true) {
-                    Message incoming = (Message) in.readObject();
+                    Message incoming = in.readMessage();
+                    if (pendingRequests.complete(incoming))
+                        continue;
                     if (incoming.getText().equals("disconnected")) {
                         Platform.runLater(() -> {
                             stage.close();
@@ -107,6 +118,7 @@ public class MainWindow extends Application {
                     Platform.runLater(() -> onMessageReceived(incoming));
                 }
             } catch (Exception e) {
+                pendingRequests.failAll(e);
                 onMessageReceivingException(e);
             }
         });
@@ -197,11 +209,11 @@ public class MainWindow extends Application {
                 properties.setProperty("x", Integer.toString(x));
                 properties.setProperty("y", Integer.toString(y));
                 properties.setProperty("radius", Float.toString(radius));
-                sendMessage("create_creature", properties);
+                warnIfFailed(sendRequest("create_creature", properties));
             });
 
-            creaturePropertiesPane.setDeletingListener(creatureId -> sendMessage("delete_creature", creatureId));
-            creaturePropertiesPane.setApplyingListener(model -> sendMessage("modify_creature", model));
+            creaturePropertiesPane.setDeletingListener(creatureId -> warnIfFailed(sendRequest("delete_creature", creatureId)));
+            creaturePropertiesPane.setApplyingListener(model -> warnIfFailed(sendRequest("modify_creature", model)));
 
             creaturesCanvas.clearProxy();
             creaturesCanvas.setTarget(creaturesTable.getItems());
@@ -246,12 +258,76 @@ public class MainWindow extends Application {
             Message request = new Message(message, attachment);
             request.setUserid(userid);
             request.setToken(token);
-            out.writeObject(request);
+            out.writeMessage(request);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Отправляет серверу запрос, не дожидаясь ответов на предыдущие
+     *
+     * @param message сообщение
+     *
+     * @param attachment приложение
+     *
+     * @return ответ сервера, который завершится ошибкой, если соединение будет разорвано
+     */
+    private CompletableFuture<Message> sendRequest(String message, Serializable attachment) {
+        Message request = new Message(message, attachment);
+        request.setUserid(userid);
+        request.setToken(token);
+        CompletableFuture<Message> response = pendingRequests.register(request);
+        try {
+            out.writeMessage(request);
+        } catch (IOException e) {
+            pendingRequests.fail(request, e);
+        }
+        return response;
+    }
+
+    /**
+     * Сообщает серверу, какую область мира видно на холсте, и присылает отпечатки уже
+     * известных существ: сервер ответит только тем, что изменилось. Если сервер
+     * области видимости не поддерживает, синхронизируется весь мир, а если он не умеет
+     * и синхронизацию, таблица очищается и весь список запрашивается заново, частями.
+     */
+    private void syncCreatures() {
+        Platform.runLater(() -> {
+            Rectangle2D area = creaturesCanvas.getVisibleArea();
+            Properties viewport = new Properties();
+            viewport.setProperty("x", Double.toString(area.getMinX()));
+            viewport.setProperty("y", Double.toString(area.getMinY()));
+            viewport.setProperty("width", Double.toString(area.getWidth()));
+            viewport.setProperty("height", Double.toString(area.getHeight()));
+            viewport.setProperty("sync", "true");
+            sendRequest("set_viewport", viewport);
+
+            sendRequest("sync_creatures", CreatureDigests.of(creaturesTable.getItems())).whenComplete((response, e) -> {
+                if (e == null && !"OK".equals(response.getText())) {
+                    Platform.runLater(() -> creaturesTable.getItems().clear());
+                    Properties arguments = new Properties();
+                    arguments.setProperty("chunked", "true");
+                    sendMessage("request_creatures", arguments);
+                }
+            });
+        });
+    }
+
+    /**
+     * Сообщает в консоль, если сервер не выполнил запрос
+     *
+     * @param response будущий ответ сервера
+     */
+    private void warnIfFailed(CompletableFuture<Message> response) {
+        response.whenComplete((message, e) -> {
+            if (e != null)
+                System.err.println("[ WARN ] Request has not been answered: " + e.toString());
+            else if (!"OK".equals(message.getText()))
+                System.err.println("[ WARN ] Request has been rejected by server: " + message.getText());
+        });
+    }
+
     /**
      * Вызывается, когда существо выбрано
      *
@@ -280,68 +356,85 @@ public class MainWindow extends Application {
     private void onMessageReceived(Message message) {
         System.out.println(message.getText());
         switch (message.getText()) {
-            case "users_list_updated":
+            case "users_list_updated": {
+                // Полный список приходит только при подписке и по запросу, дальше - только изменения
                 @SuppressWarnings("unchecked")
-                Set<Properties> users = (Set<Properties>)message.getAttachment();
-
-                Platform.runLater(() -> {
-                    boolean thisUserIsLoggedOut = true;
-                    creaturesCanvas.getUserColors().clear();
-                    usersList.clear();
-                    for (Properties user : users) {
-                        if (Integer.parseInt(user.getProperty("id")) == userid)
-                            thisUserIsLoggedOut = false;
-
-                        usersList.addUser(
-                                Integer.parseInt(user.getProperty("id")),
-                                user.getProperty("name"),
-                                Color.valueOf(user.getProperty("color"))
-                        );
-
-                        creaturesCanvas.getUserColors().put(
-                                Integer.parseInt(user.getProperty("id")),
-                                Color.valueOf(user.getProperty("color"))
-                        );
-                    }
+                Set<Properties> users = (Set<Properties>) message.getAttachment();
+                Set<Integer> userids = new HashSet<>();
+                for (Properties user : users)
+                    userids.add(Integer.parseInt(user.getProperty("id")));
+
+                usersList.retainUsers(userids);
+                creaturesCanvas.getUserColors().keySet().retainAll(userids);
+                putUsers(users);
+                if (!userids.contains(userid))
+                    onTimedOut();
+                break;
+            }
 
-                    if (thisUserIsLoggedOut) {
-                        sendMessage("disconnect");
-                        stage.close();
-                        promptLogin();
-                        new Alert(
-                                Alert.AlertType.INFORMATION,
-                                Client.currentResourceBundle().getString("main.user-timed-out"),
-                                ButtonType.OK
-                        ).show();
-                    }
-                });
+            case "user_joined": {
+                @SuppressWarnings("unchecked")
+                Set<Properties> users = (Set<Properties>) message.getAttachment();
+                putUsers(users);
+                break;
+            }
+
+            case "user_left": {
+                @SuppressWarnings("unchecked")
+                Set<Integer> userids = (Set<Integer>) message.getAttachment();
+                for (int id : userids) {
+                    usersList.removeUser(id);
+                    creaturesCanvas.getUserColors().remove(id);
+                }
+                if (userids.contains(userid))
+                    onTimedOut();
+                break;
+            }
+
+            case "creature_added":
+                creaturesTable.getItems().add((CreatureModel) message.getAttachment());
+                updateCreaturesCountText();
+                break;
+
+            case "creature_deleted":
+                removeCreature(((CreatureModel) message.getAttachment()).getId());
+                updateCreaturesCountText();
+                break;
+
+            case "creature_modified":
+                applyCreatureModification((CreatureModel) message.getAttachment());
                 break;
 
-            case "creature_added": {
-                CreatureModel model = (CreatureModel) message.getAttachment();
-                creaturesTable.getItems().add(model);
+            case "creatures_changed": {
+                CreatureChanges changes = (CreatureChanges) message.getAttachment();
+                putCreatures(changes.getAdded());
+                for (CreatureModel model : changes.getModified())
+                    applyCreatureModification(model);
+                for (long id : changes.getDeleted())
+                    removeCreature(id);
+                putCreatures(changes.getEntered());
+                for (long id : changes.getLeft())
+                    removeCreature(id);
                 updateCreaturesCountText();
                 break;
             }
 
-            case "creature_deleted": {
-                CreatureModel model = (CreatureModel) message.getAttachment();
-                creaturesTable.getItems().remove(model);
+            case "creatures_chunk": {
+                // Существо, добавленное во время отправки списка, может прийти и событием, и в части
+                putCreatures(((CreaturesChunk) message.getAttachment()).getCreatures());
                 updateCreaturesCountText();
                 break;
             }
 
-            case "creature_modified":
-                CreatureModel model = (CreatureModel) message.getAttachment();
-                ObservableList<CreatureModel> items = creaturesTable.getItems();
-                for (int i = 0, itemsSize = items.size(); i < itemsSize; i++) {
-                    if (items.get(i).getId() == model.getId()) {
-                        creaturesTable.getItems().get(i).setFromCreatureModel(model);
-                        creaturesTable.getSelectionModel().select(i);
-                        break;
-                    }
-                }
+            case "creatures_synced": {
+                CreaturesSync sync = (CreaturesSync) message.getAttachment();
+                creaturesTable.getItems().removeIf(
+                        current -> sync.getBuckets().contains(CreatureDigests.bucketOf(current.getId()))
+                );
+                creaturesTable.getItems().addAll(sync.getCreatures());
+                updateCreaturesCountText();
                 break;
+            }
 
             case "creatures_list_updated": {
                 @SuppressWarnings("unchecked")
@@ -350,9 +443,84 @@ public class MainWindow extends Application {
                 updateCreaturesCountText();
                 break;
             }
+
+            case "resync":
+                // Сервер выбросил часть событий, потому что мы не успевали их принимать
+                sendMessage("request_users");
+                syncCreatures();
+                break;
+        }
+    }
+
+    /**
+     * Добавляет пользователей в список или обновляет тех, что в нём уже есть
+     *
+     * @param users пользователи: id, имя и цвет
+     */
+    private void putUsers(Set<Properties> users) {
+        for (Properties user : users) {
+            int id = Integer.parseInt(user.getProperty("id"));
+            Color color = Color.valueOf(user.getProperty("color"));
+            usersList.addUser(id, user.getProperty("name"), color);
+            creaturesCanvas.getUserColors().put(id, color);
+        }
+    }
+
+    /**
+     * Вызывается, когда этого пользователя больше нет в сети: сессия истекла
+     */
+    private void onTimedOut() {
+        sendMessage("disconnect");
+        stage.close();
+        promptLogin();
+        new Alert(
+                Alert.AlertType.INFORMATION,
+                Client.currentResourceBundle().getString("main.user-timed-out"),
+                ButtonType.OK
+        ).show();
+    }
+
+    /**
+     * Применяет к существу в таблице его новое состояние и выделяет его
+     *
+     * @param model существо в новом состоянии
+     */
+    private void applyCreatureModification(CreatureModel model) {
+        ObservableList<CreatureModel> items = creaturesTable.getItems();
+        for (int i = 0, itemsSize = items.size(); i < itemsSize; i++) {
+            if (items.get(i).getId() == model.getId()) {
+                items.get(i).setFromCreatureModel(model);
+                creaturesTable.getSelectionModel().select(i);
+                break;
+            }
         }
     }
 
+    /**
+     * Добавляет существа в таблицу, заменяя те, что там уже есть
+     *
+     * @param models существа
+     */
+    private void putCreatures(Collection<CreatureModel> models) {
+        if (models.isEmpty())
+            return;
+
+        Set<Long> ids = new HashSet<>();
+        for (CreatureModel model : models)
+            ids.add(model.getId());
+        creaturesTable.getItems().removeIf(current -> ids.contains(current.getId()));
+        creaturesTable.getItems().addAll(models);
+    }
+
+    /**
+     * Удаляет существо из таблицы
+     *
+     * @param id идентификатор существа
+     */
+    private void removeCreature(long id) {
+        creaturesTable.getItems().removeIf(current -> current.getId() == id);
+    }
+
     /**
      * Обновляет текст с количеством существ
      */
@@ -0,0 +1,81 @@
+package ru.david.room.client.main;
+
+import ru.david.room.Message;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Запросы, отправленные серверу и ещё не получившие ответа.
+ *
+ * Каждому запросу присваивается id, который сервер копирует в ответ.
+ * Благодаря этому клиент может отправить несколько запросов подряд,
+ * не дожидаясь ответов, и всё равно понять, какой ответ к какому запросу относится.
+ */
+class PendingRequests {
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Присваивает запросу id и запоминает его
+     *
+     * @param request запрос, который вот-вот будет отправлен
+     *
+     * @return будущий ответ на запрос
+     */
+    CompletableFuture<Message> register(Message request) {
+        int id = nextId.incrementAndGet();
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        pending.put(id, future);
+        request.setRequestId(id);
+        return future;
+    }
+
+    /**
+     * Забывает запрос, который так и не удалось отправить
+     *
+     * @param request запрос
+     *
+     * @param cause причина
+     */
+    void fail(Message request, Throwable cause) {
+        CompletableFuture<Message> future = pending.remove(request.getRequestId());
+        if (future != null)
+            future.completeExceptionally(cause);
+    }
+
+    /**
+     * Передаёт ответ ожидающему его запросу
+     *
+     * @param response сообщение от сервера
+     *
+     * @return true, если сообщение оказалось ответом на ожидающий запрос
+     */
+    boolean complete(Message response) {
+        if (response.getRequestId() == null)
+            return false;
+
+        CompletableFuture<Message> future = pending.remove(response.getRequestId());
+        if (future == null)
+            return false;
+
+        future.complete(response);
+        return true;
+    }
+
+    /**
+     * Завершает все ожидающие запросы ошибкой, например, когда соединение разорвано
+     *
+     * @param cause причина
+     */
+    void failAll(Throwable cause) {
+        for (Iterator<CompletableFuture<Message>> iterator = pending.values().iterator(); iterator.hasNext(); ) {
+            CompletableFuture<Message> future = iterator.next();
+            iterator.remove();
+            future.completeExceptionally(cause);
+        }
+    }
+}
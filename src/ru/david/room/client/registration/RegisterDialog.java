@@ -8,11 +8,12 @@ import javafx.scene.input.KeyEvent;
 import javafx.scene.layout.Pane;
 import javafx.stage.Stage;
 import ru.david.room.Message;
+import ru.david.room.MessageCodec;
+import ru.david.room.MessageInputStream;
+import ru.david.room.MessageOutputStream;
 import ru.david.room.client.Client;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Properties;
@@ -144,7 +145,9 @@ public class RegisterDialog {
             }
 
             Socket socket = new Socket(Client.getConfig().getServerHost(), Client.getConfig().getServerPort());
-            ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+            MessageOutputStream oos = new MessageOutputStream(socket.getOutputStream());
+            MessageInputStream ois = new MessageInputStream(socket.getInputStream());
+            MessageCodec.negotiate(ois, oos);
 
             Properties request = new Properties();
 
@@ -154,12 +157,11 @@ public class RegisterDialog {
             request.setProperty("locale-language", Client.getCurrentLocale().getLanguage());
             request.setProperty("locale-country", Client.getCurrentLocale().getCountry());
 
-            oos.writeObject(new Message("register", request));
+            oos.writeMessage(new Message("register", request));
 
-            ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
-            Message response = (Message)ois.readObject();
+            Message response = ois.readMessage();
 
-            oos.writeObject(new Message("disconnect"));
+            oos.writeMessage(new Message("disconnect"));
 
             switch (response.getText()) {
                 case "OK":
@@ -209,6 +211,10 @@ public class RegisterDialog {
                     emailInput.getStyleClass().add("register-textfield__error");
                     showErrorMessage(bundle.getString("register-dialog.email-in-use"));
                     break;
+
+                case "BUSY":
+                    showErrorMessage(bundle.getString("login-dialog.server-busy"));
+                    break;
             }
 
         } catch (UnknownHostException e) {
@@ -243,12 +249,13 @@ public class RegisterDialog {
             }
 
             Socket socket = new Socket(Client.getConfig().getServerHost(), Client.getConfig().getServerPort());
-            ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+            MessageOutputStream oos = new MessageOutputStream(socket.getOutputStream());
+            MessageInputStream ois = new MessageInputStream(socket.getInputStream());
+            MessageCodec.negotiate(ois, oos);
 
-            oos.writeObject(new Message("confirm_registration", confirmationInput.getText()));
+            oos.writeMessage(new Message("confirm_registration", confirmationInput.getText()));
 
-            ObjectInputStream ois = new ObjectInputStream(socket.getInputStream());
-            Message response = (Message)ois.readObject();
+            Message response = ois.readMessage();
 
             switch (response.getText()) {
                 case "OK":
@@ -271,7 +278,7 @@ public class RegisterDialog {
                     break;
             }
 
-            oos.writeObject(new Message("disconnect"));
+            oos.writeMessage(new Message("disconnect"));
 
         } catch (UnknownHostException e) {
             showErrorMessage(bundle.getString("register-dialog.unknown-host"));
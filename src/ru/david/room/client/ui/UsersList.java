@@ -1,15 +1,65 @@
 package ru.david.room.client.ui;
 
+import javafx.collections.ListChangeListener;
+import javafx.scene.Node;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Список пользователей в сети. Пользователи добавляются, обновляются и удаляются
+ * по одному, так что остальные элементы списка при этом не пересоздаются.
+ */
 public class UsersList extends VBox {
+    /**
+     * Элементы списка по id пользователя. Следит за дочерними элементами,
+     * поэтому остаётся верным, даже если их заменили целиком через getChildren().
+     */
+    private final Map<Integer, UsersListItem> items = new HashMap<>();
+
+    public UsersList() {
+        getChildren().addListener((ListChangeListener<Node>) change -> {
+            while (change.next()) {
+                for (Node node : change.getRemoved())
+                    if (node instanceof UsersListItem)
+                        items.remove(((UsersListItem) node).getUserid(), node);
+                for (Node node : change.getAddedSubList())
+                    if (node instanceof UsersListItem)
+                        items.put(((UsersListItem) node).getUserid(), (UsersListItem) node);
+            }
+        });
+    }
+
+    /**
+     * Добавляет пользователя в список, а если он уже есть, обновляет его имя и цвет
+     */
     public void addUser(int userid, String name, Color color) {
-        getChildren().add(new UsersListItem(userid, name, color));
+        UsersListItem item = items.get(userid);
+        if (item == null) {
+            getChildren().add(new UsersListItem(userid, name, color));
+        } else {
+            item.setName(name);
+            item.setPaint(color);
+        }
     }
 
     public void removeUser(int userid) {
-        getChildren().remove(new UsersListItem(userid));
+        UsersListItem item = items.get(userid);
+        if (item != null)
+            getChildren().remove(item);
+    }
+
+    /**
+     * Удаляет из списка всех пользователей, кроме указанных
+     *
+     * @param userids id пользователей, которые должны остаться
+     */
+    public void retainUsers(Collection<Integer> userids) {
+        getChildren().removeIf(node -> node instanceof UsersListItem &&
+                !userids.contains(((UsersListItem) node).getUserid()));
     }
 
     public void clear() {
@@ -0,0 +1,195 @@
+package ru.david.room.server;
+
+import ru.david.room.FrameTooLargeException;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static ru.david.room.MessageOutputStream.HEADER_SIZE;
+
+/**
+ * Неблокирующий коннектор. Своего потока у него нет: чтением и записью
+ * занимается цикл событий {@link NioTransport.EventLoop}, к которому привязан канал.
+ * Методы {@link #onReadable()} и {@link #onWritable()} вызываются только из этого цикла,
+ * а {@link #flush()}, {@link #close()} и {@link #abort()} можно вызывать из любого потока.
+ */
+class ChannelConnector extends ClientConnector {
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel;
+    private final NioTransport.EventLoop loop;
+    private SelectionKey key;
+
+    private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    /**
+     * Кадр, который уже забран из очереди отправки, но записан в канал не полностью
+     */
+    private ByteBuffer current;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    private volatile boolean closing = false;
+
+    ChannelConnector(Hub hub, SocketChannel channel, NioTransport.EventLoop loop) {
+        super(hub);
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    void flush() {
+        if (!closing)
+            scheduleFlush();
+    }
+
+    @Override
+    void close() {
+        closing = true;
+        scheduleFlush();
+    }
+
+    @Override
+    void abort() {
+        closing = true;
+        loop.execute(this::closeNow);
+    }
+
+    @Override
+    InetAddress getInetAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+    /**
+     * Просит цикл событий дописать очередь отправки.
+     * Повторные просьбы, пока первая не выполнена, не будят цикл лишний раз.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true))
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                onWritable();
+            });
+    }
+
+    /**
+     * Вызывается циклом событий, когда в канале есть данные для чтения
+     */
+    void onReadable() {
+        try {
+            if (channel.read(inbound) < 0) {
+                closeNow();
+                return;
+            }
+
+            inbound.flip();
+            while (inbound.remaining() >= HEADER_SIZE) {
+                int length = inbound.getInt(inbound.position());
+                if (length >>> 16 == 0xACED)
+                    throw new StreamCorruptedException("Клиент пишет сообщения без кадров, " +
+                            "таких клиентов обслуживает только транспорт blocking");
+                if (length < 0)
+                    throw new StreamCorruptedException("Неверная длина кадра: " + length);
+                // Проверяем до того, как буфер вырастет под кадр
+                if (length > hub.getConfig().getMaxRequestSize())
+                    throw new FrameTooLargeException(length, hub.getConfig().getMaxRequestSize());
+                if (inbound.remaining() < HEADER_SIZE + length)
+                    break;
+
+                int payloadStart = inbound.position() + HEADER_SIZE;
+                boolean keepReading = onFrameReceived(inbound.array(), payloadStart, length);
+                inbound.position(payloadStart + length);
+
+                if (!keepReading) {
+                    inbound.clear();
+                    return;
+                }
+            }
+            prepareInbound();
+        } catch (ClassNotFoundException | IOException | RuntimeException e) {
+            // Буфер остался посреди кадра, так что читать соединение дальше нельзя
+            onReadFailed(e);
+            closeNow();
+        }
+    }
+
+    /**
+     * Готовит буфер к следующему чтению: переносит недочитанный кадр в начало
+     * и, если кадр не помещается, увеличивает буфер под его размер
+     */
+    private void prepareInbound() {
+        if (inbound.remaining() >= HEADER_SIZE) {
+            int required = HEADER_SIZE + inbound.getInt(inbound.position());
+            if (required > inbound.capacity()) {
+                ByteBuffer grown = ByteBuffer.allocate(required);
+                grown.put(inbound);
+                inbound = grown;
+                return;
+            }
+        } else if (!inbound.hasRemaining() && inbound.capacity() > INITIAL_BUFFER_SIZE) {
+            inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            return;
+        }
+        inbound.compact();
+    }
+
+    /**
+     * Вызывается циклом событий, когда в канал можно писать
+     */
+    void onWritable() {
+        if (key == null || !key.isValid())
+            return;
+        try {
+            while (true) {
+                if (current == null) {
+                    byte[] frame = outboundQueue.poll();
+                    if (frame == null)
+                        break;
+                    current = ByteBuffer.wrap(frame);
+                }
+
+                channel.write(current);
+                if (current.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                current = null;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            if (closing) {
+                // Последний кадр мог прийти перед самой просьбой закрыть соединение
+                if (outboundQueue.isEmpty())
+                    closeNow();
+                else
+                    scheduleFlush();
+            }
+        } catch (IOException e) {
+            logger.log("Не получилось отправить сообщение клиенту " + getInetAddress());
+            closeNow();
+        }
+    }
+
+    /**
+     * Немедленно закрывает канал и удаляет коннектор из {@link ClientPool}
+     */
+    private void closeNow() {
+        closing = true;
+        outboundQueue.clear();
+        current = null;
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+        hub.getClientPool().removeConnector(this);
+    }
+}
@@ -0,0 +1,119 @@
+package ru.david.room.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Отправка длинных ответов одному клиенту по частям. Части - важные кадры, их нельзя выбросить
+ * из очереди отправки, поэтому следующая часть готовится, только когда в очереди меньше
+ * половины {@link ServerConfig#getOutboundQueueSize()} кадров. Так на отправку одного ответа
+ * уходит не больше памяти, чем на несколько частей, сколько бы в нём ни было существ.
+ *
+ * Пока клиент не забирает очередь, ответ ждёт без потока: продолжение запускается
+ * на исполнителе хаба из {@link OutboundQueue#whenBelow(int, Runnable)}. Поэтому медленный
+ * клиент не занимает ни поток решателя, ни какой-либо другой.
+ *
+ * Ответы одного клиента отправляются по очереди в порядке {@link #send(Chunks)}.
+ */
+class ChunkedSender implements Runnable {
+    /**
+     * Длинный ответ
+     */
+    interface Chunks {
+        /**
+         * Ставит в очередь отправки следующую часть ответа.
+         * Вызывается по одному разу за раз, но не обязательно из одного и того же потока.
+         *
+         * @return false, если частей больше нет
+         */
+        boolean sendNext();
+    }
+
+    private final ClientConnector connector;
+    private final ArrayDeque<Chunks> pending = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Поднят, пока отправка запланирована, работает или ждёт, пока клиент заберёт очередь
+     */
+    private boolean scheduled = false;
+
+    ChunkedSender(ClientConnector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * Ставит ответ в очередь и, если отправка простаивала, запускает её
+     *
+     * @param chunks ответ
+     */
+    void send(Chunks chunks) {
+        boolean schedule;
+        lock.lock();
+        try {
+            pending.add(chunks);
+            schedule = !scheduled;
+            scheduled = true;
+        } finally {
+            lock.unlock();
+        }
+        if (schedule)
+            schedule();
+    }
+
+    @Override
+    public void run() {
+        int window = Math.max(1, connector.hub.getConfig().getOutboundQueueSize() / 2);
+        while (true) {
+            Chunks chunks;
+            lock.lock();
+            try {
+                chunks = pending.peek();
+                if (chunks == null || !connector.hub.getClientPool().contains(connector)) {
+                    // Отсоединившемуся клиенту отправлять нечего
+                    pending.clear();
+                    scheduled = false;
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (connector.outboundQueue.whenBelow(window, this::schedule))
+                return;
+
+            boolean more;
+            try {
+                more = chunks.sendNext();
+            } catch (RuntimeException e) {
+                connector.logger.err("Непредвиденная ошибка при отправке ответа по частям: " + e.toString());
+                more = false;
+            }
+
+            if (!more) {
+                lock.lock();
+                try {
+                    pending.poll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private void schedule() {
+        try {
+            connector.hub.getExecutor().execute(this);
+        } catch (RejectedExecutionException e) {
+            // Исполнитель хаба отказывает только при остановке сервера
+            lock.lock();
+            try {
+                pending.clear();
+                scheduled = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package ru.david.room.server;
+
+import ru.david.room.FrameTooLargeException;
+import ru.david.room.Message;
+import ru.david.room.MessageCodec;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.net.InetAddress;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Соединение с одним клиентом. Как именно передаются байты, решают наследники,
+ * а здесь выбирается формат сообщений, обрабатываются служебные команды
+ * и всё остальное передаётся {@link RequestResolver}.
+ */
+abstract class ClientConnector {
+    final Hub hub;
+    final Logger logger;
+    final RequestQueue requestQueue;
+    final OutboundQueue outboundQueue;
+    final ChunkedSender chunkedSender;
+
+    private volatile boolean subscribedToStrongStatements = false;
+
+    /**
+     * Клиент сообщил область видимости, и изменения существ ему рассылаются отдельно,
+     * см. {@link CreatureEvents}
+     */
+    private volatile boolean viewportSet = false;
+
+    private volatile MessageCodec codec = MessageCodec.SERIALIZATION;
+
+    /**
+     * Трогается только потоком, читающим соединение
+     */
+    private boolean firstFrameReceived = false;
+
+    private final AtomicBoolean evicted = new AtomicBoolean(false);
+
+    ClientConnector(Hub hub) {
+        this.hub = hub;
+        this.logger = hub.getLogger();
+        this.requestQueue = new RequestQueue(this);
+        this.outboundQueue = new OutboundQueue(this);
+        this.chunkedSender = new ChunkedSender(this);
+    }
+
+    /**
+     * Просит транспорт отправить клиенту кадры из {@link #outboundQueue}.
+     * Не должен ждать, пока кадры будут отправлены. Если отправить не получилось,
+     * коннектор должен сам удалить себя из {@link ClientPool}.
+     */
+    abstract void flush();
+
+    /**
+     * Закрывает соединение. Сообщения, отправленные до вызова этого метода,
+     * должны быть по возможности доставлены клиенту.
+     */
+    abstract void close();
+
+    /**
+     * Немедленно разрывает соединение, не дожидаясь отправки очереди
+     */
+    abstract void abort();
+
+    /**
+     * @return адрес клиента
+     */
+    abstract InetAddress getInetAddress();
+
+    boolean isSubscribedToStrongStatements() {
+        return subscribedToStrongStatements;
+    }
+
+    void setSubscribedToStrongStatements(boolean subscribedToStrongStatements) {
+        this.subscribedToStrongStatements = subscribedToStrongStatements;
+    }
+
+    boolean isViewportSet() {
+        return viewportSet;
+    }
+
+    void setViewportSet(boolean viewportSet) {
+        this.viewportSet = viewportSet;
+    }
+
+    /**
+     * @return формат, о котором договорились с клиентом
+     */
+    MessageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Кодирует сообщение в формате клиента и отправляет его
+     *
+     * @param message сообщение для отправки
+     */
+    void sendMessage(Message message) {
+        sendMessage(message, true);
+    }
+
+    /**
+     * Кодирует сообщение в формате клиента и отправляет его
+     *
+     * @param message сообщение для отправки
+     *
+     * @param critical false, если это событие, которое можно выбросить,
+     *                 когда клиент не успевает принимать сообщения
+     */
+    void sendMessage(Message message, boolean critical) {
+        byte[] frame;
+        try {
+            frame = codec.toFrame(message);
+        } catch (IOException e) {
+            logger.err("Не получилось закодировать сообщение " + message.getText() + ": " + e.toString());
+            return;
+        }
+        sendFrame(frame, critical);
+    }
+
+    /**
+     * Ставит готовый кадр в очередь отправки клиенту. Один и тот же кадр
+     * может отправляться сразу нескольким клиентам, поэтому изменять массив нельзя.
+     * Если очередь переполнена и по настройкам клиента нужно отключить, отключает его.
+     *
+     * @param frame кадр вместе с заголовком
+     *
+     * @param critical true для ответов на запросы, false для событий,
+     *                 которые можно выбросить, если клиент не успевает их принимать
+     */
+    void sendFrame(byte[] frame, boolean critical) {
+        if (evicted.get())
+            return;
+
+        if (outboundQueue.offer(frame, critical)) {
+            flush();
+            return;
+        }
+
+        if (evicted.compareAndSet(false, true)) {
+            hub.getMetrics().increment("outbound.evictions");
+            logger.warn("Клиент " + getInetAddress() + " не успевает принимать сообщения, в очереди отправки " +
+                    outboundQueue.size() + " кадров. Соединение разорвано");
+            outboundQueue.clear();
+            abort();
+            hub.getClientPool().removeConnector(this);
+        }
+    }
+
+    /**
+     * Должен вызываться наследником каждый раз, когда от клиента пришёл кадр.
+     * Если первый кадр соединения - рукопожатие, выбирает формат сообщений
+     * и отвечает клиенту, иначе остаётся на сериализации в кадрах (формат версии 0).
+     *
+     * @param payload массив, содержащий тело кадра
+     *
+     * @param offset смещение тела в массиве
+     *
+     * @param length длина тела
+     *
+     * @return false, если клиент отсоединился и читать соединение больше не нужно
+     *
+     * @throws IOException если кадр повреждён
+     * @throws ClassNotFoundException если в кадре лежит экземпляр незнакомого класса
+     */
+    boolean onFrameReceived(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+        if (!firstFrameReceived) {
+            firstFrameReceived = true;
+
+            int version = MessageCodec.parseHandshake(payload, offset, length);
+            MessageCodec accepted = version < 0 ? MessageCodec.SERIALIZATION : hub.getClientPool().codecForVersion(version);
+            hub.getMetrics().increment("codec.connections_v" + accepted.getVersion());
+
+            if (version >= 0) {
+                sendFrame(MessageCodec.handshakeFrame(accepted.getVersion()), true);
+                codec = accepted;
+                return true;
+            }
+        }
+
+        return onMessageReceived(codec.fromPayload(payload, offset, length));
+    }
+
+    /**
+     * Должен вызываться наследником вместо {@link #onFrameReceived(byte[], int, int)}, если клиент
+     * пишет не кадры, а поток сериализации, как клиенты, собранные до появления кадров.
+     * Отправляет такому клиенту заголовок потока и дальше кодирует сообщения для него
+     * в {@link MessageCodec#LEGACY_STREAM}. Его сообщения наследник передаёт
+     * в {@link #onMessageReceived(Message)}.
+     */
+    void onLegacyStreamStarted() {
+        firstFrameReceived = true;
+        codec = MessageCodec.LEGACY_STREAM;
+        hub.getMetrics().increment("codec.connections_legacy");
+        sendFrame(MessageCodec.streamHeader(), true);
+    }
+
+    /**
+     * Должен вызываться наследником, если запрос клиента не удалось прочитать.
+     * Записывает причину в лог и метрики; соединение после этого нужно закрыть.
+     *
+     * @param e возникшее исключение
+     */
+    void onReadFailed(Exception e) {
+        String details = Logger.truncate(e.toString(), hub.getConfig().getMaxLoggableRequestSize());
+
+        if (e instanceof FrameTooLargeException) {
+            hub.getMetrics().increment("inbound.rejected_oversized");
+            logger.warn("Клиент " + getInetAddress() + " прислал слишком большой запрос: " + e.getMessage() + ". Соединение разорвано");
+        } else if (e instanceof InvalidClassException) {
+            // Запросы, отвергнутые фильтром, уже посчитал RequestFilter
+            logger.warn("Клиент " + getInetAddress() + " прислал объект, который нельзя восстановить: " + details);
+        } else if (e instanceof ClassNotFoundException) {
+            hub.getMetrics().increment("inbound.rejected_unknown_class");
+            logger.err("Клиент отправил экземпляр незнакомого серверу класса: " + details);
+        } else if (e instanceof RuntimeException) {
+            // Формат не должен падать на испорченных данных, но если упал - виноват кадр клиента
+            hub.getMetrics().increment("inbound.protocol_errors");
+            logger.warn("Не получилось разобрать кадр клиента " + getInetAddress() + ": " + details + ". Соединение разорвано");
+        } else if (!"Connection reset".equals(e.getMessage()))
+            logger.warn("Клиент неожиданно отсоединился: " + details);
+    }
+
+    /**
+     * Вызывается каждый раз, когда от клиента пришло сообщение
+     *
+     * @param message сообщение клиента
+     *
+     * @return false, если клиент отсоединился и читать соединение больше не нужно
+     */
+    boolean onMessageReceived(Message message) {
+        ClientPool pool = hub.getClientPool();
+
+        switch (message.getText()) {
+            case "disconnect":
+                boolean sendResponse = message.hasAttachment() &&
+                        "true".equals(((Properties)message.getAttachment()).getProperty("send_response"));
+
+                // Запросы, отправленные до disconnect, ещё могут решаться
+                requestQueue.whenDrained(() -> {
+                    if (sendResponse) {
+                        Message response = new Message("disconnected");
+                        response.setRequestId(message.getRequestId());
+                        sendMessage(response);
+                    }
+                    close();
+                });
+                pool.removeConnector(this, false);
+
+                if (message.getUserid() != null)
+                    logger.log("Клиент с id " + message.getUserid() + " отсоединился. Соединено " + pool.getConnectorsCount() + " клиентов");
+                else
+                    logger.log("Аноним отсоединился из ip " + getInetAddress());
+                return false;
+
+            case "subscribe":
+                // Вместе с подпиской новый клиент получает полный список пользователей, дальше - только изменения
+                hub.getPresence().subscribe(this);
+
+                if (message.getUserid() != null)
+                    logger.log("Клиент с id " + message.getUserid() + " подписался на события");
+                else
+                    logger.log("Аноним подписался на события из ip " + getInetAddress());
+                return true;
+
+            case "unsubscribe":
+                subscribedToStrongStatements = false;
+
+                if (message.getUserid() != null)
+                    logger.log("Клиент с id " + message.getUserid() + " отписался от событий");
+                else
+                    logger.log("Аноним отписался от событий из ip " + getInetAddress());
+                return true;
+        }
+
+        hub.getRequestResolver().resolveAsync(this, message);
+        return true;
+    }
+}
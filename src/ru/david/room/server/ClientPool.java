@@ -1,16 +1,17 @@
 package ru.david.room.server;
 
-import javafx.scene.paint.Color;
+import ru.david.room.DeflatingCodec;
 import ru.david.room.Message;
+import ru.david.room.MessageCodec;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
-import java.net.SocketException;
-import java.util.HashSet;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Как понятно из названия, бассейн с клиентами.
@@ -18,7 +19,12 @@ import java.util.Set;
 public class ClientPool implements HubFriendly {
     private Hub hub;
     private Logger logger;
-    private Set<ClientConnector> connectors = new HashSet<>();
+    private Set<ClientConnector> connectors = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Формат со сжатием и порогом из настроек или null, если сжатие выключено
+     */
+    private MessageCodec deflatingCodec;
 
     @Override
     public void onHubConnected(Hub hub) {
@@ -28,131 +34,162 @@ public class ClientPool implements HubFriendly {
     @Override
     public void onHubReady() {
         logger = hub.getLogger();
+
+        Metrics metrics = hub.getMetrics();
+        metrics.registerGauge("outbound.queued_frames", () -> {
+            long result = 0;
+            for (ClientConnector connector : connectors)
+                result += connector.outboundQueue.size();
+            return result;
+        });
+        metrics.registerGauge("outbound.high_water_max", () -> {
+            long result = 0;
+            for (ClientConnector connector : connectors)
+                result = Math.max(result, connector.outboundQueue.getHighWaterMark());
+            return result;
+        });
+
+        int compressionThreshold = hub.getConfig().getCompressionThreshold();
+        if (compressionThreshold > 0)
+            deflatingCodec = new DeflatingCodec(
+                    compressionThreshold, hub.getConfig().getMaxRequestSize(), new CompressionMetrics(metrics)
+            );
     }
 
+    /**
+     * Выбирает формат сообщений для клиента, приславшего рукопожатие
+     *
+     * @param version версия, которую предлагает клиент
+     *
+     * @return наиболее новый формат, версия которого не больше предложенной
+     *         и который разрешён настройками сервера
+     */
+    MessageCodec codecForVersion(int version) {
+        if (version >= MessageCodec.DEFLATING.getVersion() && deflatingCodec != null)
+            return deflatingCodec;
+        return MessageCodec.forVersion(Math.min(version, MessageCodec.COMPACT.getVersion()));
+    }
+
+    /**
+     * Создаёт блокирующий коннектор для принятого сокета и запускает его
+     *
+     * @param socket сокет клиента
+     */
     void addClient(Socket socket) {
-        connectors.add(new ClientConnector(socket));
-        logger.log("Новое соединение: " + socket.getInetAddress() + ", соединено " + connectors.size() + " клиентов");
+        try {
+            SocketConnector connector = new SocketConnector(hub, socket);
+            addConnector(connector);
+            connector.start();
+        } catch (IOException e) {
+            logger.warn("Клиент не смог присоединиться: " + e.toString());
+        }
+    }
+
+    void addConnector(ClientConnector connector) {
+        connectors.add(connector);
+        logger.log("Новое соединение: " + connector.getInetAddress() + ", соединено " + connectors.size() + " клиентов");
     }
 
     /**
      * Делает <strong>сильное</strong> заявление.
-     * Фактически, отправляет сообщение всем подключённым клиентам
+     * Фактически, отправляет сообщение всем подключённым клиентам.
+     *
+     * Сообщение кодируется не для каждого клиента отдельно, а один раз на каждый
+     * используемый клиентами формат, и один и тот же кадр отправляется всем.
      *
      * @param message сообщение для отправки
      */
     public void makeStrongStatement(Message message) {
+        makeStrongStatement(message, null);
+    }
+
+    /**
+     * Делает сильное заявление, которое старые клиенты, не выполнившие рукопожатие
+     * (формат версии 0), не поймут. Им вместо него отправляются сообщения из legacyMessages.
+     *
+     * @param message сообщение для отправки
+     *
+     * @param legacyMessages сообщения для старых клиентов или null, если им можно отправить message
+     */
+    void makeStrongStatement(Message message, List<Message> legacyMessages) {
+        makeStrongStatement(message, legacyMessages, false);
+    }
+
+    /**
+     * Делает сильное заявление об изменении существ. Клиентам, сообщившим область видимости,
+     * оно не отправляется: они получают изменения отдельно, см. {@link CreatureEvents}.
+     *
+     * @param message сообщение для отправки
+     *
+     * @param legacyMessages сообщения для старых клиентов или null, если им можно отправить message
+     *
+     * @param skipViewports true, чтобы пропустить клиентов с областью видимости
+     */
+    void makeStrongStatement(Message message, List<Message> legacyMessages, boolean skipViewports) {
+        Map<MessageCodec, byte[]> frames = new IdentityHashMap<>();
+        Map<MessageCodec, List<byte[]>> legacyFrames = new IdentityHashMap<>();
         int sendCount = 0;
-        for (ClientConnector connector : connectors) {
-            if (connector.isSubscribedToStrongStatements()) {
-                connector.sendMessage(message);
+
+        try {
+            for (ClientConnector connector : connectors) {
+                if (!connector.isSubscribedToStrongStatements() || skipViewports && connector.isViewportSet())
+                    continue;
+
+                MessageCodec codec = connector.getCodec();
+                if (legacyMessages != null && codec.getVersion() == 0) {
+                    List<byte[]> codecFrames = legacyFrames.get(codec);
+                    if (codecFrames == null) {
+                        codecFrames = new ArrayList<>(legacyMessages.size());
+                        for (Message legacyMessage : legacyMessages)
+                            codecFrames.add(codec.toFrame(legacyMessage));
+                        legacyFrames.put(codec, codecFrames);
+                        hub.getMetrics().add("broadcast.encodings", legacyMessages.size());
+                    }
+                    for (byte[] frame : codecFrames)
+                        connector.sendFrame(frame, false);
+                } else {
+                    byte[] frame = frames.get(codec);
+                    if (frame == null) {
+                        frame = codec.toFrame(message);
+                        frames.put(codec, frame);
+                        hub.getMetrics().increment("broadcast.encodings");
+                    }
+                    connector.sendFrame(frame, false);
+                }
                 sendCount++;
             }
+        } catch (IOException e) {
+            logger.err("Не получилось закодировать сильное заявление " + message.getText() + ": " + e.toString());
+            return;
         }
+        hub.getMetrics().increment("broadcast.messages");
+        hub.getMetrics().add("broadcast.frames_sent", sendCount);
+
         logger.log("Сильное заявление: " + message.getText() + ", отправлено " + sendCount + " пользователям");
         logger.log("Проверять мы его, конечно, не будем");
     }
 
-    void removeConnector(ClientConnector c) {
-        removeConnector(c, true);
+    /**
+     * @return true, если коннектор всё ещё соединён с клиентом
+     */
+    boolean contains(ClientConnector connector) {
+        return connectors.contains(connector);
     }
 
-    private void removeConnector(ClientConnector c, boolean log) {
-        if (connectors.contains(c)) {
-            connectors.remove(c);
-            if (log)
-                logger.log("Коннектор удален, соединено " + connectors.size() + " клиентов");
-        }
+    int getConnectorsCount() {
+        return connectors.size();
     }
 
-    class ClientConnector extends Thread {
-        private Socket socket;
-        private ObjectInputStream in;
-        private ObjectOutputStream out;
-
-        private boolean subscribedToStrongStatements = false;
-
-        ClientConnector(Socket s) {
-            try {
-                socket = s;
-                in = new ObjectInputStream(s.getInputStream());
-                out = new ObjectOutputStream(s.getOutputStream());
-                start();
-            } catch (IOException e) {
-                logger.warn("Клиент не смог присоединиться: " + e.toString());
-                removeConnector(this);
-            }
-        }
-
-        synchronized void sendMessage(Message message) {
-            try {
-                out.writeObject(message);
-                out.flush();
-            } catch (IOException e) {
-                logger.log("Не получилось отправить сообщение клиенту " + socket.getInetAddress());
-                removeConnector(this);
-            }
-        }
-
-        public ObjectOutputStream getOut() {
-            return out;
-        }
-
-        boolean isSubscribedToStrongStatements() {
-            return subscribedToStrongStatements;
-        }
-
-        @Override
-        public void run() {
-            try {
-                while (!socket.isClosed()) {
-                    Message message = (Message) in.readObject();
-                    switch (message.getText()) {
-                        case "disconnect":
-                            if (message.hasAttachment()) {
-                                Properties arguments = (Properties)message.getAttachment();
-                                if ("true".equals(arguments.getProperty("send_response")))
-                                    out.writeObject(new Message("disconnected"));
-                            }
-
-                            socket.close();
-                            removeConnector(this, false);
-
-                            if (message.getUserid() != null)
-                                logger.log("Клиент с id " + message.getUserid() + " отсоединился. Соединено " + connectors.size() + " клиентов");
-                            else
-                                logger.log("Аноним отсоединился из ip " + socket.getInetAddress());
-                            return;
-
-                        case "subscribe":
-                            subscribedToStrongStatements = true;
-
-                            if (message.getUserid() != null)
-                                logger.log("Клиент с id " + message.getUserid() + " подписался на события");
-                            else
-                                logger.log("Аноним подписался на события из ip " + socket.getInetAddress());
-                            continue;
-
-                        case "unsubscribe":
-                            subscribedToStrongStatements = false;
-
-                            if (message.getUserid() != null)
-                                logger.log("Клиент с id " + message.getUserid() + " отписался от событий");
-                            else
-                                logger.log("Аноним отписался от событий из ip " + socket.getInetAddress());
-                            continue;
-                    }
+    void removeConnector(ClientConnector c) {
+        removeConnector(c, true);
+    }
 
-                    hub.getRequestResolver().resolveAsync(this, message);
-                }
-            } catch (ClassNotFoundException e) {
-                logger.err("Клиент отправил экземпляр незнакомого серверу класса: " + e.toString());
-            } catch (IOException e) {
-                if (!(e instanceof SocketException && e.getMessage().equals("Connection reset")))
-                    logger.warn("Клиент неожиданно отсоединился: " + e.toString());
-            } finally {
-                removeConnector(this);
-            }
-        }
+    void removeConnector(ClientConnector c, boolean log) {
+        boolean removed = connectors.remove(c);
+        if (removed && c.isViewportSet())
+            hub.getCreatureEvents().viewportClosed(c);
+        if (removed && log)
+            logger.log("Коннектор удален, соединено " + connectors.size() + " клиентов, " +
+                    "наибольшая очередь отправки: " + c.outboundQueue.getHighWaterMark());
     }
 }
@@ -0,0 +1,37 @@
+package ru.david.room.server;
+
+import ru.david.room.DeflatingCodec;
+
+/**
+ * Переносит статистику сжатия кадров в {@link Metrics}, чтобы по ней можно было
+ * подобрать порог сжатия ({@link ServerConfig#getCompressionThreshold()}).
+ *
+ * compression.ratio_percent показывает, сколько процентов от исходного размера
+ * занимают кадры, которые сервер пытался сжать, а compression.incompressible_frames -
+ * сколько раз процессорное время на сжатие было потрачено зря.
+ */
+class CompressionMetrics implements DeflatingCodec.Listener {
+    private final Metrics metrics;
+
+    CompressionMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        metrics.registerGauge("compression.ratio_percent", () -> {
+            long plain = metrics.get("compression.plain_bytes");
+            return plain == 0 ? 100 : metrics.get("compression.deflated_bytes") * 100 / plain;
+        });
+    }
+
+    @Override
+    public void onDeflated(int plainLength, int frameLength, long nanos) {
+        metrics.increment(frameLength > plainLength ? "compression.incompressible_frames" : "compression.deflated_frames");
+        metrics.add("compression.plain_bytes", plainLength);
+        metrics.add("compression.deflated_bytes", frameLength);
+        metrics.add("compression.deflate_nanos", nanos);
+    }
+
+    @Override
+    public void onInflated(int frameLength, int plainLength, long nanos) {
+        metrics.increment("compression.inflated_frames");
+        metrics.add("compression.inflate_nanos", nanos);
+    }
+}
@@ -0,0 +1,414 @@
+package ru.david.room.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ограниченный пул соединений с базой данных. Вместо одного общего соединения каждый запрос
+ * берёт соединение из пула и возвращает его, закрывая полученный объект {@link Connection}:
+ *
+ * <pre>
+ * try (Connection connection = pool.borrow()) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * Одновременно выдаётся не больше {@link ServerConfig#getDatabasePoolMaxSize()} соединений,
+ * остальные запросы ждут, пока соединение освободится. Соединение, которое долго простаивало,
+ * перед выдачей проверяется, а испорченное заменяется новым, поэтому после потери связи
+ * с базой данных пул восстанавливается сам. Лишние простаивающие соединения закрываются.
+ *
+ * Если поток, уже взявший соединение, просит ещё одно, он получает то же самое соединение.
+ * Так вложенные вызовы (например, решатель вызывает метод {@link ServerController})
+ * не занимают лишних соединений и не могут зависнуть, ожидая сами себя.
+ * Поэтому соединение нужно возвращать в том же потоке, в котором оно было взято.
+ *
+ * Подготовленные выражения хранятся в {@link StatementCache} соединения и переживают его возврат,
+ * остальные выражения, созданные через выданное соединение, закрываются при возврате.
+ */
+class ConnectionPool {
+    /**
+     * Соединение, простаивавшее меньше этого времени в миллисекундах, выдаётся без проверки
+     */
+    private static final long VALIDATION_INTERVAL = 1000;
+
+    /**
+     * Сколько секунд ждать ответа базы данных при проверке соединения
+     */
+    private static final int VALIDATION_TIMEOUT = 2;
+
+    /**
+     * Интервал в миллисекундах, с которым закрываются лишние соединения и открываются недостающие
+     */
+    private static final long MAINTENANCE_INTERVAL = 5000;
+
+    private final Hub hub;
+    private final String url;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeout;
+    private final long idleTimeout;
+    private final int statementCacheSize;
+
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final ThreadLocal<PooledConnection> owned = new ThreadLocal<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger cachedStatements = new AtomicInteger();
+
+    private volatile boolean reachable = true;
+
+    ConnectionPool(Hub hub) {
+        this.hub = hub;
+
+        ServerConfig config = hub.getConfig();
+        url = String.format(
+                "jdbc:%s://%s:%s/%s",
+                config.getJdbcLangProtocol(),
+                config.getDatabaseHost(),
+                config.getDatabasePort(),
+                config.getDatabaseName()
+        );
+        minSize = config.getDatabasePoolMinSize();
+        maxSize = config.getDatabasePoolMaxSize();
+        borrowTimeout = config.getDatabasePoolBorrowTimeout();
+        idleTimeout = config.getDatabasePoolIdleTimeout();
+        statementCacheSize = config.getDatabaseStatementCacheSize();
+        permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Открывает начальные соединения и запускает обслуживание пула
+     *
+     * @return true, если соединиться с базой данных удалось
+     */
+    boolean start() {
+        Metrics metrics = hub.getMetrics();
+        metrics.registerGauge("db.pool.size", size::get);
+        metrics.registerGauge("db.pool.active", active::get);
+        metrics.registerGauge("db.pool.idle", this::getIdleCount);
+        metrics.registerGauge("db.pool.waiting", permits::getQueueLength);
+        metrics.registerGauge("db.pool.utilization_percent", () -> active.get() * 100L / maxSize);
+        metrics.registerGauge("db.statements.cached", cachedStatements::get);
+        metrics.registerGauge("db.statements.hit_percent", () -> {
+            long hits = metrics.get("db.statements.hits");
+            long total = hits + metrics.get("db.statements.misses");
+            return total == 0 ? 0 : hits * 100 / total;
+        });
+
+        hub.getLogger().log("Соединение с базой данных...");
+        fill();
+        if (reachable && size.get() == 0) {
+            // При нулевом наименьшем размере fill ничего не открывает, так что проверяем сами
+            try {
+                borrow().close();
+            } catch (SQLException ignored) {}
+        }
+        if (reachable)
+            hub.getLogger().log("Соединение с базой данных успешно");
+
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(MAINTENANCE_INTERVAL);
+                    evictIdle();
+                    fill();
+                }
+            } catch (InterruptedException ignored) {}
+        }, "db-pool-maintenance");
+        thread.setDaemon(true);
+        thread.start();
+
+        return reachable;
+    }
+
+    /**
+     * Берёт соединение из пула. Если все соединения заняты, ждёт, пока какое-нибудь освободится.
+     * Соединение возвращается в пул вызовом {@link Connection#close()}.
+     *
+     * @return соединение с базой данных
+     *
+     * @throws SQLException если соединение не освободилось вовремя или открыть новое не удалось
+     */
+    Connection borrow() throws SQLException {
+        PooledConnection pooled = owned.get();
+        if (pooled != null) {
+            pooled.holds++;
+            return pooled.lease();
+        }
+
+        Metrics metrics = hub.getMetrics();
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                metrics.increment("db.pool.timeouts");
+                throw new SQLException("Все соединения с базой данных заняты дольше " + borrowTimeout + " мс");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Ожидание соединения с базой данных прервано", e);
+        }
+        metrics.add("db.pool.wait_nanos", System.nanoTime() - start);
+        metrics.increment("db.pool.borrows");
+
+        try {
+            pooled = takeIdle();
+            if (pooled == null)
+                pooled = open();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+
+        pooled.holds = 1;
+        owned.set(pooled);
+        active.incrementAndGet();
+        return pooled.lease();
+    }
+
+    /**
+     * Возвращает соединение в пул, когда поток закрыл все выданные ему обёртки
+     */
+    private void release(PooledConnection pooled) {
+        owned.remove();
+        active.decrementAndGet();
+
+        pooled.cache.closeHandles();
+        for (Statement statement : pooled.statements) {
+            try {
+                statement.close();
+            } catch (SQLException ignored) {}
+        }
+        pooled.statements.clear();
+
+        boolean reusable;
+        try {
+            reusable = !pooled.connection.isClosed();
+            if (reusable && !pooled.connection.getAutoCommit()) {
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            reusable = false;
+        }
+
+        if (reusable && size.get() <= maxSize) {
+            pooled.lastUsed = System.currentTimeMillis();
+            synchronized (idle) {
+                idle.addFirst(pooled);
+            }
+        } else
+            discard(pooled);
+
+        permits.release();
+    }
+
+    /**
+     * Берёт из пула последнее освободившееся соединение, отбрасывая испорченные
+     *
+     * @return соединение или null, если свободных соединений нет
+     */
+    private PooledConnection takeIdle() {
+        while (true) {
+            PooledConnection pooled;
+            synchronized (idle) {
+                pooled = idle.pollFirst();
+            }
+            if (pooled == null)
+                return null;
+            if (System.currentTimeMillis() - pooled.lastUsed < VALIDATION_INTERVAL || isValid(pooled))
+                return pooled;
+
+            hub.getMetrics().increment("db.pool.invalid");
+            discard(pooled);
+        }
+    }
+
+    private boolean isValid(PooledConnection pooled) {
+        try {
+            return pooled.connection.isValid(VALIDATION_TIMEOUT);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Открывает новое соединение с базой данных
+     */
+    private PooledConnection open() throws SQLException {
+        ServerConfig config = hub.getConfig();
+        Connection connection;
+        try {
+            connection = DriverManager.getConnection(url, config.getDatabaseUser(), config.getDatabasePassword());
+        } catch (SQLException e) {
+            hub.getMetrics().increment("db.pool.open_failures");
+            if (reachable) {
+                reachable = false;
+                hub.getLogger().err("Ошибка общения с базой данных: " + e.getMessage());
+            }
+            throw e;
+        }
+
+        size.incrementAndGet();
+        hub.getMetrics().increment("db.pool.opened");
+        if (!reachable) {
+            reachable = true;
+            hub.getLogger().log("Соединение с базой данных восстановлено");
+        }
+        return new PooledConnection(connection);
+    }
+
+    private void discard(PooledConnection pooled) {
+        size.decrementAndGet();
+        hub.getMetrics().increment("db.pool.closed");
+        pooled.cache.clear();
+        try {
+            pooled.connection.close();
+        } catch (SQLException ignored) {}
+    }
+
+    /**
+     * Закрывает соединения сверх наименьшего размера пула, которые простаивают дольше допустимого
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        List<PooledConnection> evicted = new ArrayList<>();
+        synchronized (idle) {
+            Iterator<PooledConnection> iterator = idle.descendingIterator();
+            while (iterator.hasNext() && size.get() - evicted.size() > minSize) {
+                PooledConnection pooled = iterator.next();
+                if (now - pooled.lastUsed < idleTimeout)
+                    break;
+                iterator.remove();
+                evicted.add(pooled);
+            }
+        }
+        evicted.forEach(this::discard);
+    }
+
+    /**
+     * Открывает соединения, пока их не станет не меньше наименьшего размера пула.
+     * Соединения открываются под разрешением пула, поэтому его наибольший размер не превышается.
+     */
+    private void fill() {
+        while (size.get() < minSize && permits.tryAcquire()) {
+            try {
+                PooledConnection pooled = open();
+                synchronized (idle) {
+                    idle.addLast(pooled);
+                }
+            } catch (SQLException e) {
+                return;
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    private int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * Соединение пула вместе с выражениями, которые через него созданы
+     */
+    private class PooledConnection {
+        private final Connection connection;
+        private final StatementCache cache;
+        private final List<Statement> statements = new ArrayList<>();
+        private long lastUsed = System.currentTimeMillis();
+
+        /**
+         * Сколько выданных обёрток ещё не закрыто. Меняется только потоком-владельцем.
+         */
+        private int holds;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            cache = new StatementCache(connection, statementCacheSize, hub.getMetrics(), cachedStatements);
+        }
+
+        /**
+         * @return обёртка над соединением, закрытие которой возвращает его в пул
+         */
+        private Connection lease() {
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    new Lease(this)
+            );
+        }
+    }
+
+    /**
+     * Обработчик вызовов выданной обёртки. Все вызовы, кроме закрытия,
+     * передаются настоящему соединению, пока обёртка не закрыта.
+     */
+    private class Lease implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean closed;
+
+        private Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        if (--pooled.holds == 0)
+                            release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || pooled.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Соединение из пула " + pooled.connection;
+            }
+
+            if (closed)
+                throw new SQLException("Соединение уже возвращено в пул");
+
+            if (method.getName().equals("prepareStatement")) {
+                Class<?>[] types = method.getParameterTypes();
+                if (types.length == 1)
+                    return pooled.cache.prepare((Connection) proxy, (String) args[0], null);
+                if (types.length == 2 && types[1] == int.class)
+                    return pooled.cache.prepare((Connection) proxy, (String) args[0], (Integer) args[1]);
+            }
+
+            Object result;
+            try {
+                result = method.invoke(pooled.connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof Statement)
+                pooled.statements.add((Statement) result);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package ru.david.room.server;
+
+import ru.david.room.Message;
+
+import java.sql.SQLException;
+
+/**
+ * Решатель команды, которому нужно само соединение, а не только сообщение:
+ * например, чтобы запомнить что-то о клиенте. Признаки
+ * {@link ru.david.room.server.resolvers.RequiresAuthorization} и
+ * {@link ru.david.room.server.resolvers.UpdatesTokenLifetime} действуют так же, как для {@link ru.david.room.server.resolvers.Resolver}.
+ */
+interface ConnectionResolver {
+    /**
+     * Выполняет команду клиента
+     *
+     * @param connector соединение, из которого пришла команда
+     *
+     * @param message команда
+     *
+     * @return сообщение с ответом или null, если отвечать нечего
+     *
+     * @throws SQLException если при работе с базой данных произошла ошибка
+     */
+    Message resolve(ClientConnector connector, Message message) throws SQLException;
+}
@@ -0,0 +1,583 @@
+package ru.david.room.server;
+
+import ru.david.room.CreatureChanges;
+import ru.david.room.CreatureDigests;
+import ru.david.room.CreatureModel;
+import ru.david.room.CreaturesChunk;
+import ru.david.room.CreaturesSync;
+import ru.david.room.Message;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * Рассылка событий об изменении существ.
+ *
+ * События не отправляются сразу, а копятся в течение {@link ServerConfig#getCreatureEventsInterval()}
+ * миллисекунд. Для каждого существа хранится только последнее состояние, а потом всё накопленное
+ * уходит одной командой creatures_changed с {@link CreatureChanges}. Так, пока пользователь
+ * двигает ползунки, остальные получают не десяток creature_modified, а одно изменение.
+ *
+ * Клиенты, не выполнившие рукопожатие, не знают о creatures_changed,
+ * поэтому им та же пачка рассылается отдельными старыми командами.
+ *
+ * Клиенты, сообщившие область видимости командой set_viewport, получают собственную пачку
+ * только с теми существами, которые видны в их области, а также входы и выходы существ,
+ * пересёкших её границу. Кому интересно существо, находится по {@link InterestIndex},
+ * так что рассылка не перебирает всех клиентов.
+ *
+ * Здесь же поддерживаются отпечатки всех существ по корзинам ({@link CreatureDigests}),
+ * по которым команда sync_creatures находит, что изменилось с тех пор, как клиент
+ * последний раз получал события.
+ */
+public class CreatureEvents implements HubFriendly {
+    private Hub hub;
+    private ScheduledExecutorService scheduler;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Упорядочивает изменения индекса и рассылку, чтобы клиенты получали события
+     * в том же порядке, в каком меняется индекс
+     */
+    private final ReentrantLock dispatchLock = new ReentrantLock();
+    private InterestIndex index;
+    private final CreatureDigests digests = new CreatureDigests();
+
+    /**
+     * Существа, которые клиенты ещё не получили после смены области видимости
+     */
+    private final Map<ClientConnector, ViewportChunks> viewportChunks = new HashMap<>();
+
+    /**
+     * Накопленные изменения по id существа в порядке поступления
+     */
+    private LinkedHashMap<Long, Change> pending = new LinkedHashMap<>();
+
+    @Override
+    public void onHubConnected(Hub hub) {
+        this.hub = hub;
+    }
+
+    @Override
+    public void onHubReady() {
+        index = new InterestIndex(hub.getConfig().getInterestCellSize());
+        loadCreatures();
+
+        Metrics metrics = hub.getMetrics();
+        metrics.registerGauge("interest.viewports", () -> withIndex(InterestIndex::getViewportCount));
+        metrics.registerGauge("interest.creatures", () -> withIndex(InterestIndex::getCreatureCount));
+
+        if (hub.getConfig().getCreatureEventsInterval() > 0)
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "creature-events");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Сообщает всем о новом существе
+     *
+     * @param model новое существо
+     */
+    public void creatureAdded(CreatureModel model) {
+        onEvent(model, Kind.ADDED);
+    }
+
+    /**
+     * Сообщает всем об изменении существа
+     *
+     * @param model существо в новом состоянии
+     */
+    public void creatureModified(CreatureModel model) {
+        onEvent(model, Kind.MODIFIED);
+    }
+
+    /**
+     * Сообщает всем об удалении существа
+     *
+     * @param model удалённое существо
+     */
+    public void creatureDeleted(CreatureModel model) {
+        onEvent(model, Kind.DELETED);
+    }
+
+    /**
+     * Запоминает область видимости клиента и отправляет ему существа, которые в ней появились
+     * и исчезли по сравнению с предыдущей областью.
+     *
+     * Существа отправляются частями через {@link ChunkedSender}: каждая часть - важный кадр,
+     * который не выбрасывается из очереди, а следующая готовится, когда клиент заберёт предыдущие.
+     * Часть собирается под той же блокировкой, что и рассылка, из текущего состояния существ,
+     * так что события, разосланные раньше неё, не могут оказаться новее неё.
+     *
+     * @param connector клиент
+     *
+     * @param viewport новая область видимости
+     *
+     * @param reset true, если клиент забыл все существа и должен получить всю область заново
+     *
+     * @param sync true, если клиент сам узнает, что изменилось, командой sync_creatures,
+     *             и отправлять ему ничего не нужно
+     */
+    void setViewport(ClientConnector connector, Viewport viewport, boolean reset, boolean sync) {
+        dispatchLock.lock();
+        try {
+            Viewport previous = index.setViewport(connector, viewport);
+            connector.setViewportSet(true);
+
+            // Существа прежней области, которые ещё не отправлены, клиенту неизвестны
+            ViewportChunks unfinished = viewportChunks.remove(connector);
+            Set<Long> unsent = unfinished == null ? Collections.emptySet() : unfinished.cancel();
+            if (sync)
+                return;
+
+            LinkedHashSet<Long> entered = new LinkedHashSet<>();
+            for (CreatureModel model : index.creaturesIn(viewport))
+                entered.add(model.getId());
+
+            HashSet<Long> left = new HashSet<>();
+            if (previous != null && !reset) {
+                for (CreatureModel model : index.creaturesIn(previous)) {
+                    if (!entered.contains(model.getId()))
+                        left.add(model.getId());
+                    else if (!unsent.contains(model.getId()))
+                        entered.remove(model.getId());
+                }
+            }
+
+            if (entered.isEmpty() && left.isEmpty())
+                return;
+            ViewportChunks chunks = new ViewportChunks(connector, entered, left);
+            viewportChunks.put(connector, chunks);
+            connector.chunkedSender.send(chunks);
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    /**
+     * Сравнивает отпечатки существ клиента со своими и отправляет ему содержимое
+     * несовпавших корзин командой creatures_synced. Клиенту с областью видимости
+     * отпечатки считаются только по видимым ему существам.
+     *
+     * Несовпавших корзин может оказаться сколько угодно, например, у клиента, у которого
+     * ещё ничего нет, поэтому их содержимое отправляется частями через {@link ChunkedSender}.
+     * Каждая часть собирается под той же блокировкой, что и рассылка, из текущего состояния
+     * корзин, так что события, разосланные раньше неё, в ней уже учтены.
+     *
+     * @param connector клиент
+     *
+     * @param clientDigests отпечатки существ, которые есть у клиента
+     */
+    void sync(ClientConnector connector, CreatureDigests clientDigests) {
+        ArrayDeque<Long> differing = new ArrayDeque<>();
+        dispatchLock.lock();
+        try {
+            Viewport viewport = index.getViewport(connector);
+            CreatureDigests serverDigests = viewport == null ? digests : CreatureDigests.of(index.creaturesIn(viewport));
+
+            for (Map.Entry<Long, Long> entry : clientDigests.getDigests().entrySet())
+                if (serverDigests.get(entry.getKey()) != entry.getValue())
+                    differing.add(entry.getKey());
+            for (long bucket : serverDigests.getDigests().keySet())
+                if (!clientDigests.getDigests().containsKey(bucket))
+                    differing.add(bucket);
+        } finally {
+            dispatchLock.unlock();
+        }
+
+        Metrics metrics = hub.getMetrics();
+        metrics.increment("sync.requests");
+        metrics.add("sync.buckets_compared", clientDigests.getDigests().size());
+        metrics.add("sync.buckets_sent", differing.size());
+
+        if (!differing.isEmpty())
+            connector.chunkedSender.send(new SyncChunks(connector, differing));
+    }
+
+    /**
+     * Отправляет клиенту весь список существ частями командой creatures_chunk.
+     *
+     * Части идут через {@link ChunkedSender}, а каждая читается из {@link CreatureRepository}
+     * и ставится в очередь под той же блокировкой, что и рассылка. В хранилище изменение
+     * попадает раньше события о нём, так что событие, разосланное до части, в ней уже учтено,
+     * а разосланное после - клиент применит поверх неё.
+     *
+     * @param connector клиент
+     */
+    void sendSnapshot(ClientConnector connector) {
+        connector.chunkedSender.send(new SnapshotChunks(connector));
+    }
+
+    /**
+     * @param viewport область видимости клиента или null, если ему нужны все существа корзины
+     */
+    private void addBucketCreatures(long bucket, Viewport viewport, Set<CreatureModel> result) {
+        long from = bucket * CreatureDigests.BUCKET_WIDTH;
+        for (long id = from; id < from + CreatureDigests.BUCKET_WIDTH; id++) {
+            CreatureModel model = index.getCreature(id);
+            if (model != null && (viewport == null || viewport.overlaps(model)))
+                result.add(model);
+        }
+    }
+
+    /**
+     * Забывает область видимости отсоединившегося клиента
+     *
+     * @param connector клиент
+     */
+    void viewportClosed(ClientConnector connector) {
+        dispatchLock.lock();
+        try {
+            index.removeViewport(connector);
+            ViewportChunks unfinished = viewportChunks.remove(connector);
+            if (unfinished != null)
+                unfinished.cancel();
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    private void onEvent(CreatureModel model, Kind kind) {
+        hub.getMetrics().increment("creature_events.received");
+
+        if (scheduler == null) {
+            dispatch(Collections.singletonList(new Change(kind, model)));
+            return;
+        }
+
+        boolean schedule;
+        lock.lock();
+        try {
+            schedule = pending.isEmpty();
+            Change previous = pending.get(model.getId());
+
+            if (previous == null) {
+                pending.put(model.getId(), new Change(kind, model));
+            } else if (previous.kind == Kind.ADDED && kind == Kind.DELETED) {
+                // Никто ещё не узнал о существе, так что и об удалении сообщать незачем
+                pending.remove(model.getId());
+            } else if (previous.kind == Kind.ADDED) {
+                previous.model = model;
+            } else if (previous.kind != Kind.DELETED) {
+                previous.kind = kind;
+                previous.model = model;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (schedule) {
+            try {
+                scheduler.schedule(this::flush, hub.getConfig().getCreatureEventsInterval(), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                hub.getLogger().err("Не получилось запланировать рассылку изменений существ: " + e.toString());
+            }
+        }
+    }
+
+    /**
+     * Рассылает накопленные изменения одной пачкой
+     */
+    private void flush() {
+        LinkedHashMap<Long, Change> changes;
+        lock.lock();
+        try {
+            changes = pending;
+            pending = new LinkedHashMap<>();
+        } finally {
+            lock.unlock();
+        }
+
+        if (changes.isEmpty())
+            return;
+
+        dispatch(changes.values());
+    }
+
+    /**
+     * Применяет изменения к индексу и рассылает их: клиентам без области видимости -
+     * одной общей пачкой, остальным - каждому только то, что видно в его области
+     */
+    private void dispatch(Collection<Change> changes) {
+        HashSet<CreatureModel> added = new HashSet<>();
+        HashSet<CreatureModel> modified = new HashSet<>();
+        HashSet<Long> deleted = new HashSet<>();
+        List<Message> legacyMessages = new ArrayList<>(changes.size());
+        Map<ClientConnector, CreatureChanges> viewportChanges = new HashMap<>();
+
+        dispatchLock.lock();
+        try {
+            for (Change change : changes) {
+                switch (change.kind) {
+                    case ADDED:
+                        added.add(change.model);
+                        break;
+                    case MODIFIED:
+                        modified.add(change.model);
+                        break;
+                    case DELETED:
+                        deleted.add(change.model.getId());
+                        break;
+                }
+                legacyMessages.add(new Message(change.kind.legacyCommand, change.model));
+
+                CreatureModel current = change.kind == Kind.DELETED ? null : change.model;
+                CreatureModel previous = current == null ? index.removeCreature(change.model.getId()) : index.putCreature(current);
+                if (previous != null)
+                    digests.remove(previous);
+                if (current != null)
+                    digests.add(current);
+                collectViewportChanges(change.kind, previous, current, viewportChanges);
+            }
+
+            hub.getClientPool().makeStrongStatement(
+                    new Message("creatures_changed", new CreatureChanges(added, modified, deleted)),
+                    legacyMessages,
+                    true
+            );
+            for (Map.Entry<ClientConnector, CreatureChanges> entry : viewportChanges.entrySet())
+                entry.getKey().sendMessage(new Message("creatures_changed", entry.getValue()), false);
+
+            Metrics metrics = hub.getMetrics();
+            metrics.increment("creature_events.batches");
+            metrics.add("interest.viewport_batches", viewportChanges.size());
+            metrics.add("interest.skipped_viewports", index.getViewportCount() - viewportChanges.size());
+        } catch (RuntimeException e) {
+            hub.getLogger().err("Непредвиденная ошибка при рассылке изменений существ: " + e.toString());
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    /**
+     * Раскладывает изменение по пачкам клиентов, в область видимости которых
+     * существо попадало до изменения или попадает после
+     *
+     * @param previous состояние существа до изменения или null, если его не было
+     *
+     * @param current состояние существа после изменения или null, если оно удалено
+     */
+    private void collectViewportChanges(Kind kind, CreatureModel previous, CreatureModel current,
+                                        Map<ClientConnector, CreatureChanges> viewportChanges) {
+        Set<ClientConnector> viewers = new HashSet<>();
+        if (previous != null)
+            viewers.addAll(index.viewersOf(previous));
+        if (current != null)
+            viewers.addAll(index.viewersOf(current));
+
+        for (ClientConnector viewer : viewers) {
+            if (!viewer.isSubscribedToStrongStatements())
+                continue;
+
+            Viewport viewport = index.getViewport(viewer);
+            boolean was = previous != null && viewport.overlaps(previous);
+            boolean is = current != null && viewport.overlaps(current);
+            CreatureChanges changes = viewportChanges.computeIfAbsent(viewer, k -> new CreatureChanges(
+                    new HashSet<>(), new HashSet<>(), new HashSet<>(), new HashSet<>(), new HashSet<>()
+            ));
+
+            if (current == null)
+                changes.getDeleted().add(previous.getId());
+            else if (is && was)
+                changes.getModified().add(current);
+            else if (is)
+                (kind == Kind.ADDED ? changes.getAdded() : changes.getEntered()).add(current);
+            else
+                changes.getLeft().add(previous.getId());
+        }
+    }
+
+    /**
+     * Загружает в индекс существа из {@link CreatureRepository}
+     */
+    private void loadCreatures() {
+        for (CreatureModel model : hub.getCreatureRepository().getAll()) {
+            index.putCreature(model);
+            digests.add(model);
+        }
+        hub.getLogger().log("В индекс существ загружено " + index.getCreatureCount() + " существ");
+    }
+
+    private long withIndex(ToIntFunction<InterestIndex> function) {
+        dispatchLock.lock();
+        try {
+            return function.applyAsInt(index);
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    /**
+     * Существа, появившиеся и исчезнувшие в области видимости клиента, которые отправляются ему частями
+     */
+    private class ViewportChunks implements ChunkedSender.Chunks {
+        private final ClientConnector connector;
+        private final LinkedHashSet<Long> entered;
+        private HashSet<Long> left;
+        private boolean cancelled = false;
+
+        ViewportChunks(ClientConnector connector, LinkedHashSet<Long> entered, HashSet<Long> left) {
+            this.connector = connector;
+            this.entered = entered;
+            this.left = left;
+        }
+
+        /**
+         * Прекращает отправку. Вызывается под dispatchLock.
+         *
+         * @return существа, которые клиент так и не получил
+         */
+        Set<Long> cancel() {
+            cancelled = true;
+            return entered;
+        }
+
+        @Override
+        public boolean sendNext() {
+            dispatchLock.lock();
+            try {
+                Viewport viewport = index.getViewport(connector);
+                if (cancelled || viewport == null)
+                    return false;
+
+                // Удалённые и покинувшие область существа клиент уже получил событиями
+                int chunkSize = hub.getConfig().getCreaturesChunkSize();
+                HashSet<CreatureModel> chunk = new HashSet<>();
+                for (Iterator<Long> iterator = entered.iterator(); iterator.hasNext() && chunk.size() < chunkSize; ) {
+                    CreatureModel model = index.getCreature(iterator.next());
+                    iterator.remove();
+                    if (model != null && viewport.overlaps(model))
+                        chunk.add(model);
+                }
+
+                // А вернувшиеся в область - тоже событием, их удалять нельзя
+                HashSet<Long> gone = new HashSet<>();
+                if (left != null) {
+                    for (long id : left) {
+                        CreatureModel model = index.getCreature(id);
+                        if (model == null || !viewport.overlaps(model))
+                            gone.add(id);
+                    }
+                    left = null;
+                }
+
+                if (!chunk.isEmpty() || !gone.isEmpty())
+                    connector.sendMessage(new Message("creatures_changed", new CreatureChanges(
+                            new HashSet<>(), new HashSet<>(), new HashSet<>(), chunk, gone
+                    )));
+
+                if (!entered.isEmpty())
+                    return true;
+                viewportChunks.remove(connector, this);
+                return false;
+            } finally {
+                dispatchLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Весь список существ, который отправляется клиенту частями по возрастанию идентификаторов
+     */
+    private class SnapshotChunks implements ChunkedSender.Chunks {
+        private final ClientConnector connector;
+
+        /**
+         * Наибольший уже отправленный идентификатор
+         */
+        private long cursor = Long.MIN_VALUE;
+
+        SnapshotChunks(ClientConnector connector) {
+            this.connector = connector;
+        }
+
+        @Override
+        public boolean sendNext() {
+            int chunkSize = hub.getConfig().getCreaturesChunkSize();
+            Metrics metrics = hub.getMetrics();
+
+            dispatchLock.lock();
+            try {
+                List<CreatureModel> page = hub.getCreatureRepository().getPage(cursor, chunkSize);
+                if (!page.isEmpty())
+                    cursor = page.get(page.size() - 1).getId();
+                boolean last = page.size() < chunkSize;
+
+                connector.sendMessage(new Message("creatures_chunk", new CreaturesChunk(new HashSet<>(page), cursor, last)));
+                metrics.increment("creatures_snapshot.chunks");
+                if (last)
+                    metrics.increment("creatures_snapshot.completed");
+                return !last;
+            } finally {
+                dispatchLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Несовпавшие корзины, содержимое которых отправляется клиенту частями
+     */
+    private class SyncChunks implements ChunkedSender.Chunks {
+        private final ClientConnector connector;
+        private final ArrayDeque<Long> buckets;
+
+        SyncChunks(ClientConnector connector, ArrayDeque<Long> buckets) {
+            this.connector = connector;
+            this.buckets = buckets;
+        }
+
+        @Override
+        public boolean sendNext() {
+            int chunkSize = hub.getConfig().getCreaturesChunkSize();
+
+            dispatchLock.lock();
+            try {
+                // Область могла смениться с начала синхронизации, клиенту нужны корзины в новой
+                Viewport viewport = index.getViewport(connector);
+                HashSet<Long> chunkBuckets = new HashSet<>();
+                HashSet<CreatureModel> creatures = new HashSet<>();
+                while (!buckets.isEmpty() && creatures.size() < chunkSize) {
+                    long bucket = buckets.poll();
+                    chunkBuckets.add(bucket);
+                    addBucketCreatures(bucket, viewport, creatures);
+                }
+
+                connector.sendMessage(new Message("creatures_synced", new CreaturesSync(chunkBuckets, creatures)));
+                hub.getMetrics().add("sync.creatures_sent", creatures.size());
+                return !buckets.isEmpty();
+            } finally {
+                dispatchLock.unlock();
+            }
+        }
+    }
+
+    private enum Kind {
+        ADDED("creature_added"),
+        MODIFIED("creature_modified"),
+        DELETED("creature_deleted");
+
+        final String legacyCommand;
+
+        Kind(String legacyCommand) {
+            this.legacyCommand = legacyCommand;
+        }
+    }
+
+    private static class Change {
+        Kind kind;
+        CreatureModel model;
+
+        Change(Kind kind, CreatureModel model) {
+            this.kind = kind;
+            this.model = model;
+        }
+    }
+}
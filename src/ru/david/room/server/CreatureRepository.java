@@ -0,0 +1,168 @@
+package ru.david.room.server;
+
+import ru.david.room.CreatureModel;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Копия таблицы creatures в памяти. Загружается один раз при запуске сервера,
+ * после чего все чтения существ обслуживаются отсюда, без запросов к базе данных.
+ *
+ * База данных остаётся главной: решатели сначала изменяют таблицу, и только если
+ * это удалось, записывают новое состояние сюда. Чтобы при одновременных изменениях
+ * одного существа порядок записей в базу и сюда совпадал, изменение выполняется
+ * под блокировкой этого существа, см. {@link #lock(long)}.
+ */
+public class CreatureRepository implements HubFriendly {
+    /**
+     * Количество блокировок, между которыми распределяются существа
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    private Hub hub;
+
+    private final ConcurrentSkipListMap<Long, CreatureModel> creatures = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<Integer, Set<Long>> owners = new ConcurrentHashMap<>();
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    public CreatureRepository() {
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new ReentrantLock();
+    }
+
+    @Override
+    public void onHubConnected(Hub hub) {
+        this.hub = hub;
+    }
+
+    @Override
+    public void onHubReady() {
+        hub.getMetrics().registerGauge("repository.creatures", creatures::size);
+
+        try (Connection connection = hub.getController().getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select * from creatures")) {
+            while (resultSet.next())
+                put(CreatureModel.fromResultSet(resultSet));
+            hub.getLogger().log("В память загружено " + creatures.size() + " существ");
+        } catch (SQLException e) {
+            hub.getLogger().err("Не получилось загрузить существа в память: " + e.toString());
+        }
+    }
+
+    /**
+     * @param id идентификатор существа
+     *
+     * @return существо или null, если его нет
+     */
+    public CreatureModel get(long id) {
+        return creatures.get(id);
+    }
+
+    /**
+     * @return все существа по возрастанию идентификатора. Коллекция отражает
+     * последующие изменения, но обходить её можно одновременно с ними.
+     */
+    public Collection<CreatureModel> getAll() {
+        return Collections.unmodifiableCollection(creatures.values());
+    }
+
+    /**
+     * @param afterId идентификатор, после которого начинается выборка
+     *
+     * @param limit наибольшее количество существ
+     *
+     * @return существа с идентификатором больше afterId по возрастанию идентификатора
+     */
+    public List<CreatureModel> getPage(long afterId, int limit) {
+        List<CreatureModel> result = new ArrayList<>(Math.min(limit, creatures.size()));
+        for (CreatureModel model : creatures.tailMap(afterId, false).values()) {
+            if (result.size() >= limit)
+                break;
+            result.add(model);
+        }
+        return result;
+    }
+
+    /**
+     * @param id идентификатор существа
+     *
+     * @param ownerid идентификатор пользователя
+     *
+     * @return существо, если оно есть и принадлежит пользователю, иначе null
+     */
+    public CreatureModel getOwned(long id, int ownerid) {
+        CreatureModel model = creatures.get(id);
+        return model != null && model.getOwnerid() == ownerid ? model : null;
+    }
+
+    /**
+     * @param ownerid идентификатор пользователя
+     *
+     * @return идентификаторы существ пользователя
+     */
+    public Set<Long> getOwnedBy(int ownerid) {
+        Set<Long> ids = owners.get(ownerid);
+        return ids == null ? Collections.emptySet() : Collections.unmodifiableSet(ids);
+    }
+
+    /**
+     * Запоминает новое или изменённое существо. Вызывается после того,
+     * как изменение записано в базу данных.
+     *
+     * @param model существо в новом состоянии
+     */
+    public void put(CreatureModel model) {
+        CreatureModel previous = creatures.put(model.getId(), model);
+        if (previous != null && previous.getOwnerid() != model.getOwnerid())
+            removeOwned(previous);
+        owners.compute(model.getOwnerid(), (ownerid, ids) -> {
+            if (ids == null)
+                ids = ConcurrentHashMap.newKeySet();
+            ids.add(model.getId());
+            return ids;
+        });
+    }
+
+    /**
+     * Забывает удалённое существо. Вызывается после того,
+     * как существо удалено из базы данных.
+     *
+     * @param id идентификатор существа
+     *
+     * @return последнее состояние существа или null, если его не было
+     */
+    public CreatureModel remove(long id) {
+        CreatureModel previous = creatures.remove(id);
+        if (previous != null)
+            removeOwned(previous);
+        return previous;
+    }
+
+    /**
+     * Блокирует изменения существа. Разблокировать нужно в блоке finally.
+     *
+     * @param id идентификатор существа
+     *
+     * @return захваченная блокировка
+     */
+    public ReentrantLock lock(long id) {
+        ReentrantLock lock = locks[(int) Math.floorMod(id, (long) LOCK_STRIPES)];
+        lock.lock();
+        return lock;
+    }
+
+    private void removeOwned(CreatureModel model) {
+        owners.computeIfPresent(model.getOwnerid(), (ownerid, ids) -> {
+            ids.remove(model.getId());
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+}
@@ -0,0 +1,38 @@
+package ru.david.room.server;
+
+import ru.david.room.Message;
+import ru.david.room.server.resolvers.RequestCreaturesResolver;
+import ru.david.room.server.resolvers.RequiresAuthorization;
+import ru.david.room.server.resolvers.UpdatesTokenLifetime;
+
+import java.util.Properties;
+
+/**
+ * Команда request_creatures. Если в приложении есть chunked=true, список существ
+ * отправляется частями командой creatures_chunk, иначе - целиком командой
+ * creatures_list_updated, как раньше, см. {@link RequestCreaturesResolver}.
+ *
+ * Части берутся из {@link CreatureRepository} по одной: каждая - это следующие
+ * {@link ServerConfig#getCreaturesChunkSize()} существ после курсора - наибольшего
+ * уже отправленного идентификатора. Следующая часть читается и кодируется только тогда,
+ * когда клиент успевает забирать предыдущие, поэтому память на отправку списка
+ * не зависит от количества существ, см. {@link CreatureEvents#sendSnapshot(ClientConnector)}.
+ *
+ * Решатель только начинает отправку и сразу освобождает поток, поэтому ответ OK
+ * на запрос с идентификатором приходит раньше частей. Конец списка отмечен
+ * {@link ru.david.room.CreaturesChunk#isLast()}.
+ */
+class CreaturesSnapshotResolver implements ConnectionResolver, RequiresAuthorization, UpdatesTokenLifetime {
+    private final RequestCreaturesResolver wholeListResolver = new RequestCreaturesResolver();
+
+    @Override
+    public Message resolve(ClientConnector connector, Message message) {
+        Hub hub = connector.hub;
+        if (!(message.getAttachment() instanceof Properties) ||
+                !"true".equals(((Properties) message.getAttachment()).getProperty("chunked")))
+            return wholeListResolver.resolve(message, hub);
+
+        hub.getCreatureEvents().sendSnapshot(connector);
+        return null;
+    }
+}
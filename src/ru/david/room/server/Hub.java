@@ -1,5 +1,8 @@
 package ru.david.room.server;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
 /**
  * Сущность, объединяющая отдельные элементы сервера
  */
@@ -10,6 +13,12 @@ public class Hub {
     private ClientPool clientPool;
     private Logger logger;
     private RequestResolver requestResolver;
+    private ExecutorService executor;
+    private ThreadFactory threadFactory;
+    private Metrics metrics;
+    private CreatureEvents creatureEvents;
+    private CreatureRepository creatureRepository;
+    private Presence presence;
 
     public ServerConfig getConfig() {
         return config;
@@ -30,6 +39,33 @@ public class Hub {
         return requestResolver;
     }
 
+    /**
+     * @return исполнитель для долгих задач сервера, например чтения блокирующих соединений
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return фабрика потоков, соответствующая режиму выполнения из настроек.
+     * Её следует использовать для собственных пулов потоков компонентов сервера
+     */
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    public CreatureEvents getCreatureEvents() {
+        return creatureEvents;
+    }
+    public CreatureRepository getCreatureRepository() {
+        return creatureRepository;
+    }
+    public Presence getPresence() {
+        return presence;
+    }
+
     void setConfig(ServerConfig config) {
         this.config = config;
     }
@@ -48,6 +84,24 @@ public class Hub {
     void setRequestResolver(RequestResolver requestResolver) {
         this.requestResolver = requestResolver;
     }
+    void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+    void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+    void setCreatureEvents(CreatureEvents creatureEvents) {
+        this.creatureEvents = creatureEvents;
+    }
+    void setCreatureRepository(CreatureRepository creatureRepository) {
+        this.creatureRepository = creatureRepository;
+    }
+    void setPresence(Presence presence) {
+        this.presence = presence;
+    }
 }
 
 /*
@@ -0,0 +1,228 @@
+package ru.david.room.server;
+
+import ru.david.room.CreatureModel;
+
+import java.util.*;
+
+/**
+ * Пространственный индекс существ и областей видимости клиентов на равномерной сетке.
+ * Каждое существо и каждая область записываются во все клетки, которые они задевают,
+ * поэтому чтобы найти, кому интересно существо, достаточно просмотреть несколько клеток,
+ * а не всех клиентов.
+ *
+ * Объекты, задевающие слишком много клеток, в сетку не записываются, а хранятся
+ * отдельно и проверяются всегда: так огромная область видимости не займёт всю память.
+ *
+ * Индекс не потокобезопасен, доступ к нему упорядочивает {@link CreatureEvents}.
+ */
+class InterestIndex {
+    /**
+     * Наибольшее количество клеток, в которые записывается один объект
+     */
+    private static final int MAX_CELLS = 4096;
+
+    private final double cellSize;
+
+    private final Map<Long, CreatureModel> creatures = new HashMap<>();
+    private final Map<Long, Set<Long>> creatureCells = new HashMap<>();
+    private final Set<Long> wideCreatures = new HashSet<>();
+
+    private final Map<ClientConnector, Viewport> viewports = new HashMap<>();
+    private final Map<Long, Set<ClientConnector>> viewportCells = new HashMap<>();
+    private final Set<ClientConnector> wideViewports = new HashSet<>();
+
+    /**
+     * @param cellSize сторона клетки сетки в единицах мира
+     */
+    InterestIndex(double cellSize) {
+        if (!(cellSize > 0))
+            throw new IllegalArgumentException("Размер клетки должен быть положительным");
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Добавляет существо или обновляет его положение
+     *
+     * @param model существо в новом состоянии
+     *
+     * @return предыдущее состояние существа или null, если его не было
+     */
+    CreatureModel putCreature(CreatureModel model) {
+        CreatureModel previous = removeCreature(model.getId());
+        creatures.put(model.getId(), model);
+
+        double radius = model.getRadius();
+        if (!forEachCell(model.getX() - radius, model.getY() - radius, model.getX() + radius, model.getY() + radius,
+                cell -> creatureCells.computeIfAbsent(cell, k -> new HashSet<>()).add(model.getId())))
+            wideCreatures.add(model.getId());
+        return previous;
+    }
+
+    /**
+     * Удаляет существо
+     *
+     * @param id идентификатор существа
+     *
+     * @return последнее известное состояние существа или null, если его не было
+     */
+    CreatureModel removeCreature(long id) {
+        CreatureModel previous = creatures.remove(id);
+        if (previous == null)
+            return null;
+
+        double radius = previous.getRadius();
+        if (!wideCreatures.remove(id))
+            forEachCell(previous.getX() - radius, previous.getY() - radius, previous.getX() + radius, previous.getY() + radius,
+                    cell -> removeFromCell(creatureCells, cell, id));
+        return previous;
+    }
+
+    /**
+     * @param id идентификатор существа
+     *
+     * @return существо или null, если его нет
+     */
+    CreatureModel getCreature(long id) {
+        return creatures.get(id);
+    }
+
+    /**
+     * @param viewport область видимости
+     *
+     * @return все существа, которые видны в области
+     */
+    List<CreatureModel> creaturesIn(Viewport viewport) {
+        Set<Long> candidates = new HashSet<>(wideCreatures);
+        boolean indexed = forEachCell(viewport.x, viewport.y, viewport.x + viewport.width, viewport.y + viewport.height, cell -> {
+            Set<Long> ids = creatureCells.get(cell);
+            if (ids != null)
+                candidates.addAll(ids);
+        });
+
+        List<CreatureModel> result = new ArrayList<>();
+        for (CreatureModel model : indexed ? mapIds(candidates) : creatures.values())
+            if (viewport.overlaps(model))
+                result.add(model);
+        return result;
+    }
+
+    /**
+     * @param model существо
+     *
+     * @return клиенты, в области видимости которых находится существо
+     */
+    Set<ClientConnector> viewersOf(CreatureModel model) {
+        Set<ClientConnector> candidates = new HashSet<>(wideViewports);
+        double radius = model.getRadius();
+        boolean indexed = forEachCell(model.getX() - radius, model.getY() - radius, model.getX() + radius, model.getY() + radius, cell -> {
+            Set<ClientConnector> connectors = viewportCells.get(cell);
+            if (connectors != null)
+                candidates.addAll(connectors);
+        });
+        if (!indexed)
+            candidates.addAll(viewports.keySet());
+
+        candidates.removeIf(connector -> !viewports.get(connector).overlaps(model));
+        return candidates;
+    }
+
+    /**
+     * @param connector клиент
+     *
+     * @return область видимости клиента или null, если он её не сообщал
+     */
+    Viewport getViewport(ClientConnector connector) {
+        return viewports.get(connector);
+    }
+
+    /**
+     * Запоминает новую область видимости клиента
+     *
+     * @param connector клиент
+     *
+     * @param viewport новая область
+     *
+     * @return предыдущая область или null
+     */
+    Viewport setViewport(ClientConnector connector, Viewport viewport) {
+        Viewport previous = removeViewport(connector);
+        viewports.put(connector, viewport);
+
+        if (!forEachCell(viewport.x, viewport.y, viewport.x + viewport.width, viewport.y + viewport.height,
+                cell -> viewportCells.computeIfAbsent(cell, k -> new HashSet<>()).add(connector)))
+            wideViewports.add(connector);
+        return previous;
+    }
+
+    /**
+     * Забывает область видимости клиента, например, когда он отсоединился
+     *
+     * @param connector клиент
+     *
+     * @return последняя область клиента или null
+     */
+    Viewport removeViewport(ClientConnector connector) {
+        Viewport previous = viewports.remove(connector);
+        if (previous == null)
+            return null;
+
+        if (!wideViewports.remove(connector))
+            forEachCell(previous.x, previous.y, previous.x + previous.width, previous.y + previous.height,
+                    cell -> removeFromCell(viewportCells, cell, connector));
+        return previous;
+    }
+
+    /**
+     * @return количество клиентов, сообщивших область видимости
+     */
+    int getViewportCount() {
+        return viewports.size();
+    }
+
+    /**
+     * @return количество существ в индексе
+     */
+    int getCreatureCount() {
+        return creatures.size();
+    }
+
+    private List<CreatureModel> mapIds(Set<Long> ids) {
+        List<CreatureModel> result = new ArrayList<>(ids.size());
+        for (long id : ids)
+            result.add(creatures.get(id));
+        return result;
+    }
+
+    /**
+     * Обходит клетки, которые задевает прямоугольник
+     *
+     * @return false, если клеток больше {@link #MAX_CELLS} и обход не выполнялся
+     */
+    private boolean forEachCell(double minX, double minY, double maxX, double maxY, CellVisitor visitor) {
+        long fromX = cellOf(minX), toX = cellOf(maxX);
+        long fromY = cellOf(minY), toY = cellOf(maxY);
+        // Каждая сторона может занимать до 2^32 клеток, так что произведение сравнивается только после сторон
+        long columns = toX - fromX + 1, rows = toY - fromY + 1;
+        if (columns > MAX_CELLS || rows > MAX_CELLS || columns * rows > MAX_CELLS)
+            return false;
+
+        for (long cellX = fromX; cellX <= toX; cellX++)
+            for (long cellY = fromY; cellY <= toY; cellY++)
+                visitor.visit(cellX << 32 | (cellY & 0xFFFFFFFFL));
+        return true;
+    }
+
+    private long cellOf(double coordinate) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private static <T> void removeFromCell(Map<Long, Set<T>> cells, long cell, T value) {
+        Set<T> values = cells.get(cell);
+        if (values != null && values.remove(value) && values.isEmpty())
+            cells.remove(cell);
+    }
+
+    private interface CellVisitor {
+        void visit(long cell);
+    }
+}
@@ -34,6 +34,21 @@ class Logger {
         err.flush();
     }
 
+    /**
+     * Обрезает присланную клиентом строку, чтобы один запрос не мог засорить лог
+     *
+     * @param text строка
+     *
+     * @param maxLength сколько символов оставить
+     *
+     * @return строка, обрезанная до maxLength символов с указанием полной длины
+     */
+    static String truncate(String text, int maxLength) {
+        if (text == null || text.length() <= maxLength)
+            return text;
+        return text.substring(0, maxLength) + "... [всего " + text.length() + " символов]";
+    }
+
     private String generateLogTime() {
         Calendar calendar = GregorianCalendar.getInstance();
         calendar.setTime(new Date());
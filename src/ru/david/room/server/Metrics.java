@@ -0,0 +1,94 @@
+package ru.david.room.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Счётчики и показатели сервера для операторов.
+ * Счётчики только растут (например, число отклонённых запросов),
+ * а показатели вычисляются в момент снятия (например, текущая длина очереди).
+ * Если в настройках указан интервал, сводка периодически пишется в лог.
+ */
+public class Metrics implements HubFriendly {
+    private Hub hub;
+
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    @Override
+    public void onHubConnected(Hub hub) {
+        this.hub = hub;
+    }
+
+    @Override
+    public void onHubReady() {
+        long interval = hub.getConfig().getMetricsLogInterval();
+        if (interval <= 0)
+            return;
+
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(interval);
+                    hub.getLogger().log("Метрики: " + snapshot());
+                }
+            } catch (InterruptedException ignored) {}
+        }, "metrics-logger");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Увеличивает счётчик на единицу
+     *
+     * @param name имя счётчика
+     */
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Увеличивает счётчик на указанное значение
+     *
+     * @param name имя счётчика
+     *
+     * @param value на сколько увеличить
+     */
+    public void add(String name, long value) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(value);
+    }
+
+    /**
+     * @param name имя счётчика
+     *
+     * @return текущее значение счётчика или 0, если он ещё ни разу не увеличивался
+     */
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Регистрирует показатель, значение которого будет вычисляться при каждом снятии метрик
+     *
+     * @param name имя показателя
+     *
+     * @param supplier функция, вычисляющая значение
+     */
+    public void registerGauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * @return текущие значения всех счётчиков и показателей, упорядоченные по имени
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        counters.forEach((name, counter) -> result.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> result.put(name, gauge.getAsLong()));
+        return result;
+    }
+}
@@ -0,0 +1,149 @@
+package ru.david.room.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Неблокирующий транспорт на основе {@link Selector}.
+ * Вместо потока на каждого клиента используется несколько циклов событий,
+ * каждый из которых обслуживает свою часть соединений.
+ * Новые соединения принимает отдельный поток и раздаёт циклам по очереди.
+ */
+class NioTransport {
+    private final Hub hub;
+    private final Logger logger;
+
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+
+    NioTransport(Hub hub) {
+        this.hub = hub;
+        this.logger = hub.getLogger();
+    }
+
+    /**
+     * Открывает серверный канал и запускает циклы событий
+     *
+     * @param port порт, который следует слушать
+     *
+     * @param loopsCount количество циклов событий
+     *
+     * @throws IOException если не получилось открыть канал или селектор
+     */
+    void start(int port, int loopsCount) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+
+        loops = new EventLoop[loopsCount];
+        for (int i = 0; i < loopsCount; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+
+        new Thread(() -> {
+            int next = 0;
+            while (serverChannel.isOpen()) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    loops[next].register(channel);
+                    next = (next + 1) % loops.length;
+                } catch (IOException e) {
+                    logger.err("Ошибка подключения: " + e.getMessage());
+                }
+            }
+        }, "nio-acceptor").start();
+    }
+
+    /**
+     * Цикл событий. Ждёт готовности своих каналов и передаёт события коннекторам.
+     * Задачи из других потоков (регистрация канала, отправка сообщений) выполняются
+     * внутри цикла через {@link #execute(Runnable)}, потому что менять ключи
+     * селектора безопасно только из его потока.
+     */
+    class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            super("nio-event-loop-" + index);
+            selector = Selector.open();
+            setDaemon(true);
+        }
+
+        /**
+         * Выполняет задачу в потоке этого цикла
+         *
+         * @param task задача
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Привязывает новый канал к этому циклу
+         *
+         * @param channel канал клиента в неблокирующем режиме
+         */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                ChannelConnector connector = new ChannelConnector(hub, channel, this);
+                try {
+                    connector.setKey(channel.register(selector, SelectionKey.OP_READ, connector));
+                    hub.getClientPool().addConnector(connector);
+                } catch (IOException e) {
+                    logger.warn("Клиент не смог присоединиться: " + e.toString());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {}
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    logger.err("Ошибка ожидания событий в " + getName() + ": " + e.toString());
+                    continue;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logger.err("Ошибка выполнения задачи в " + getName() + ": " + e.toString());
+                    }
+                }
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    ChannelConnector connector = (ChannelConnector) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            connector.onReadable();
+                        if (key.isValid() && key.isWritable())
+                            connector.onWritable();
+                    } catch (RuntimeException e) {
+                        logger.err("Ошибка обработки соединения с " + connector.getInetAddress() + ": " + e.toString());
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package ru.david.room.server;
+
+import ru.david.room.Message;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Очередь кадров, ожидающих отправки одному клиенту. Кадры в неё кладут потоки решателя
+ * и рассылка событий, а забирает транспорт, поэтому медленный клиент никого не задерживает.
+ *
+ * Очередь ограничена ({@link ServerConfig#getOutboundQueueSize()}), а что делать при
+ * переполнении, решает {@link ServerConfig#getOutboundOverflowPolicy()}. Ответы на запросы
+ * помечаются как важные и никогда не выбрасываются: их количество и так ограничено
+ * очередью запросов соединения.
+ *
+ * Все события несут изменения состояния, так что выброшенное событие всегда означает,
+ * что клиенту нужно заново запросить состояние командой resync. Клиенты формата версии 0
+ * этой команды не знают, поэтому вместо неё соединение с ними разрывается: после
+ * переподключения они получат всё состояние заново.
+ */
+class OutboundQueue {
+    private final ClientConnector connector;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private int highWaterMark = 0;
+
+    /**
+     * В очереди лежит команда resync, которую клиент ещё не получил
+     */
+    private boolean resyncQueued = false;
+
+    /**
+     * Что сделать, когда в очереди станет меньше drainLimit кадров, см. {@link #whenBelow(int, Runnable)}
+     */
+    private Runnable onDrained;
+    private int drainLimit;
+
+    OutboundQueue(ClientConnector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * Ставит кадр в очередь, при необходимости применяя политику переполнения
+     *
+     * @param frame кадр вместе с заголовком
+     *
+     * @param critical true, если кадр - ответ на запрос и выбрасывать его нельзя
+     *
+     * @return false, если очередь переполнена и соединение нужно разорвать
+     */
+    boolean offer(byte[] frame, boolean critical) {
+        ServerConfig config = connector.hub.getConfig();
+        Metrics metrics = connector.hub.getMetrics();
+
+        lock.lock();
+        try {
+            if (resyncQueued && !critical) {
+                // Клиент всё равно заново запросит всё состояние
+                metrics.increment("outbound.dropped_frames");
+                return true;
+            }
+
+            if (entries.size() >= config.getOutboundQueueSize()) {
+                switch (config.getOutboundOverflowPolicy()) {
+                    case DROP_OLDEST:
+                        metrics.add("outbound.dropped_frames", (removeOldestEvent() ? 1 : 0) + (critical ? 0 : 1));
+                        if (!queueResync())
+                            return false;
+                        if (!critical)
+                            return true;
+                        break;
+
+                    case RESYNC:
+                        metrics.add("outbound.dropped_frames", removeAllEvents() + (critical ? 0 : 1));
+                        if (!queueResync())
+                            return false;
+                        if (!critical)
+                            return true;
+                        break;
+
+                    case DISCONNECT:
+                        return false;
+                }
+            }
+
+            add(new Entry(frame, critical, false));
+            return true;
+        } catch (IOException e) {
+            connector.logger.err("Не получилось закодировать команду resync: " + e.toString());
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Забирает из очереди следующий кадр для отправки
+     *
+     * @return кадр или null, если очередь пуста
+     */
+    byte[] poll() {
+        Runnable action = null;
+        lock.lock();
+        try {
+            Entry entry = entries.poll();
+            if (entry == null)
+                return null;
+            if (entry.resync)
+                resyncQueued = false;
+            if (onDrained != null && entries.size() < drainLimit) {
+                action = onDrained;
+                onDrained = null;
+            }
+            return entry.frame;
+        } finally {
+            lock.unlock();
+            if (action != null)
+                action.run();
+        }
+    }
+
+    /**
+     * Выполняет действие, когда в очереди станет меньше limit кадров. Нужно тем,
+     * кто отправляет длинный ответ по частям и хочет продолжить, когда клиент
+     * заберёт предыдущие, не занимая поток ожиданием, см. {@link ChunkedSender}.
+     * Действие выполняется в потоке транспорта, поэтому должно быть коротким.
+     * Ждать может только одно действие: новое заменяет прежнее.
+     *
+     * @param limit сколько кадров должно остаться в очереди
+     *
+     * @param action действие
+     *
+     * @return false, если кадров в очереди уже меньше limit; тогда действие не запоминается
+     */
+    boolean whenBelow(int limit, Runnable action) {
+        lock.lock();
+        try {
+            if (entries.size() < limit)
+                return false;
+            onDrained = action;
+            drainLimit = limit;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true, если в очереди нет кадров
+     */
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return количество кадров в очереди
+     */
+    int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return наибольшая длина, которой очередь достигала за время жизни соединения
+     */
+    int getHighWaterMark() {
+        lock.lock();
+        try {
+            return highWaterMark;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Выбрасывает все кадры, например, когда соединение закрывается
+     */
+    void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            resyncQueued = false;
+            onDrained = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(Entry entry) {
+        entries.add(entry);
+        if (entries.size() > highWaterMark)
+            highWaterMark = entries.size();
+    }
+
+    /**
+     * @return true, если нашлось и было выброшено событие
+     */
+    private boolean removeOldestEvent() {
+        for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+            if (!iterator.next().critical) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return сколько событий было выброшено
+     */
+    private int removeAllEvents() {
+        int removed = 0;
+        for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+            if (!iterator.next().critical) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Ставит в очередь команду resync, если её там ещё нет
+     *
+     * @return false, если клиент не знает команды resync и соединение нужно разорвать
+     */
+    private boolean queueResync() throws IOException {
+        if (resyncQueued)
+            return true;
+        if (connector.getCodec().getVersion() == 0)
+            return false;
+
+        connector.hub.getMetrics().increment("outbound.resyncs");
+        add(new Entry(connector.getCodec().toFrame(new Message("resync")), true, true));
+        resyncQueued = true;
+        return true;
+    }
+
+    private static class Entry {
+        final byte[] frame;
+        final boolean critical;
+        final boolean resync;
+
+        Entry(byte[] frame, boolean critical, boolean resync) {
+            this.frame = frame;
+            this.critical = critical;
+            this.resync = resync;
+        }
+    }
+}
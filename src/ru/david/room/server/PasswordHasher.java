@@ -0,0 +1,160 @@
+package ru.david.room.server;
+
+import com.lambdaworks.crypto.SCrypt;
+import com.lambdaworks.crypto.SCryptEngine;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ограниченный пул потоков, в котором хешируются пароли. Хеширование scrypt занимает
+ * {@link #MEMORY_PER_LANE} байт памяти на каждую дорожку и десятки миллисекунд процессора,
+ * поэтому, если хешировать прямо в потоках решателя, наплыв входов может съесть всю кучу.
+ *
+ * Одновременно хешируется не больше паролей, чем ядер процессора и чем помещается
+ * в четверть кучи, см. {@link ServerConfig#getPasswordHashWorkers()}. Остальные ждут
+ * в очереди ограниченного размера, а когда и она заполнена, {@link #hash(byte[], byte[])}
+ * сразу бросает {@link RejectedExecutionException}, и клиент получает ответ BUSY.
+ *
+ * Если в настройках больше одной дорожки scrypt ({@link ServerConfig#getPasswordHashLanes()}),
+ * дорожки одного пароля считаются одновременно в отдельном {@link ForkJoinPool}: хеш становится
+ * сильнее, а вход не становится дольше, но каждый вход занимает больше ядер.
+ */
+class PasswordHasher {
+    /**
+     * Параметры scrypt. Изменение любого из них меняет хеши, и уже сохранённые пароли
+     * перестанут подходить. Количество дорожек - тоже параметр scrypt (p), только задаётся
+     * в настройках: password_hash_lanes после сохранения первых паролей менять тоже нельзя.
+     */
+    private static final int N = 16384;
+    private static final int R = 8;
+    private static final int DK_LEN = 32;
+
+    /**
+     * Сколько байт памяти занимает одна дорожка scrypt: массивы V и XY в {@link SCryptEngine}
+     */
+    static final long MEMORY_PER_LANE = 128L * R * N + 256L * R;
+
+    private final Metrics metrics;
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * Количество дорожек scrypt и пул, в котором они считаются, или null, если дорожка одна
+     */
+    private final int lanes;
+    private final ForkJoinPool lanePool;
+
+    /**
+     * @param hub хаб сервера с настройками, логгером и метриками
+     */
+    PasswordHasher(Hub hub) {
+        ServerConfig config = hub.getConfig();
+        metrics = hub.getMetrics();
+
+        lanes = config.getPasswordHashLanes();
+        int laneThreads = laneThreads(lanes);
+        lanePool = lanes > 1 ? new ForkJoinPool(laneThreads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("password-hash-lane-" + thread.getPoolIndex());
+            return thread;
+        }, null, false) : null;
+
+        int threads = config.getPasswordHashWorkers();
+        if (threads == 0)
+            threads = defaultWorkers(lanes);
+
+        AtomicInteger counter = new AtomicInteger();
+        workers = new ThreadPoolExecutor(
+                threads, threads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(config.getPasswordHashQueueSize()),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "password-hash-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        workers.allowCoreThreadTimeOut(true);
+
+        metrics.registerGauge("password_hash.queued", () -> workers.getQueue().size());
+        metrics.registerGauge("password_hash.active", workers::getActiveCount);
+
+        hub.getLogger().log("Потоков хеширования паролей: " + threads +
+                ", очередь: " + config.getPasswordHashQueueSize() +
+                ", дорожек scrypt: " + lanes + (lanes > 1 ? " в " + laneThreads + " потоках" : ""));
+    }
+
+    /**
+     * @param lanes количество дорожек scrypt
+     *
+     * @return сколько дорожек одного пароля считается одновременно
+     */
+    static int laneThreads(int lanes) {
+        return Math.max(1, Math.min(lanes, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param lanes количество дорожек scrypt
+     *
+     * @return сколько хеширований помещается одновременно: вместе они занимают не больше
+     * ядер процессора и не больше четверти наибольшего размера кучи
+     */
+    static int defaultWorkers(int lanes) {
+        int laneThreads = laneThreads(lanes);
+        long memoryPerHash = MEMORY_PER_LANE * laneThreads + 128L * R * lanes;
+        long byMemory = Runtime.getRuntime().maxMemory() / 4 / memoryPerHash;
+        long byCores = Runtime.getRuntime().availableProcessors() / laneThreads;
+        return (int) Math.max(1, Math.min(byCores, byMemory));
+    }
+
+    /**
+     * Хеширует пароль в пуле и ждёт результата
+     *
+     * @param password пароль
+     *
+     * @param salt соль
+     *
+     * @return хеш пароля
+     *
+     * @throws RejectedExecutionException если очередь хеширования заполнена
+     *
+     * @throws GeneralSecurityException если хеширование не удалось или ожидание прервано
+     */
+    byte[] hash(byte[] password, byte[] salt) throws GeneralSecurityException {
+        long submitted = System.nanoTime();
+        Future<byte[]> future;
+        try {
+            future = workers.submit(() -> {
+                long started = System.nanoTime();
+                metrics.add("password_hash.queue_nanos", started - submitted);
+                try {
+                    return SCrypt.scrypt(password, salt, N, R, lanes, DK_LEN, lanePool);
+                } finally {
+                    metrics.add("password_hash.hash_nanos", System.nanoTime() - started);
+                    metrics.increment("password_hash.hashes");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.increment("password_hash.rejected");
+            throw new RejectedExecutionException("Очередь хеширования паролей заполнена");
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Ожидание хеширования пароля прервано");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException)
+                throw (GeneralSecurityException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new GeneralSecurityException(cause);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package ru.david.room.server;
+
+import ru.david.room.Message;
+
+import java.util.*;
+
+/**
+ * Пользователи в сети. Пользователь в сети, пока у него есть хотя бы одна сессия
+ * в {@link SessionTable}, поэтому список ведётся в памяти по входам, выходам
+ * и истечениям сессий, которые сообщает {@link ServerController}.
+ *
+ * Полный список (users_list_updated) клиент получает только когда подписывается на события
+ * или сам его запрашивает. Дальше ему рассылаются только изменения: user_joined
+ * с множеством вошедших пользователей и user_left с множеством id вышедших.
+ * Клиентам, не выполнившим рукопожатие, всё это неизвестно: они получают список только по запросу,
+ * а вместо изменений им, как раньше, рассылается полный список.
+ *
+ * Полный список отправляется клиенту и изменения рассылаются под одной блокировкой,
+ * так что клиент не получит изменение раньше списка, в котором оно уже учтено.
+ */
+public class Presence implements HubFriendly {
+    private Hub hub;
+
+    /**
+     * Пользователи в сети по id
+     */
+    private final HashMap<Integer, User> users = new HashMap<>();
+
+    @Override
+    public void onHubConnected(Hub hub) {
+        this.hub = hub;
+    }
+
+    @Override
+    public void onHubReady() {
+        hub.getMetrics().registerGauge("presence.online", this::size);
+    }
+
+    /**
+     * Заменяет список пользователей в сети на владельцев указанных сессий
+     * и рассылает новый полный список, если кто-то уже соединён
+     *
+     * @param sessions все действующие сессии
+     */
+    synchronized void reset(Collection<SessionTable.Session> sessions) {
+        users.clear();
+        for (SessionTable.Session session : sessions)
+            if (session.name != null)
+                users.computeIfAbsent(session.userid, id -> new User(session)).sessions++;
+        if (hub.getClientPool().getConnectorsCount() > 0)
+            hub.getClientPool().makeStrongStatement(new Message("users_list_updated", getSnapshot()));
+    }
+
+    /**
+     * Учитывает новую сессию. Если это первая сессия пользователя,
+     * рассылает клиентам, что он вошёл.
+     *
+     * @param session сессия, только что добавленная в таблицу
+     */
+    synchronized void join(SessionTable.Session session) {
+        if (session.name == null)
+            return;
+
+        User user = users.get(session.userid);
+        if (user != null) {
+            user.sessions++;
+            return;
+        }
+
+        user = new User(session);
+        user.sessions++;
+        users.put(session.userid, user);
+
+        HashSet<Properties> joined = new HashSet<>();
+        joined.add(user.properties);
+        broadcast(new Message("user_joined", joined));
+    }
+
+    /**
+     * Забывает завершённые сессии и одним сообщением рассылает клиентам
+     * id пользователей, у которых не осталось ни одной сессии
+     *
+     * @param sessions сессии, уже удалённые из таблицы
+     */
+    synchronized void leave(Collection<SessionTable.Session> sessions) {
+        HashSet<Integer> left = new HashSet<>();
+        for (SessionTable.Session session : sessions) {
+            User user = users.get(session.userid);
+            if (session.name == null || user == null)
+                continue;
+            if (--user.sessions == 0) {
+                users.remove(session.userid);
+                left.add(session.userid);
+            }
+        }
+
+        if (!left.isEmpty())
+            broadcast(new Message("user_left", left));
+    }
+
+    /**
+     * Подписывает клиента на сильные заявления и отправляет ему полный список пользователей в сети.
+     * Старые клиенты (формат версии 0) после подписки сами запрашивают список командой
+     * request_users и лишнего сообщения не ждут, поэтому им список не отправляется.
+     *
+     * @param connector соединение клиента
+     */
+    synchronized void subscribe(ClientConnector connector) {
+        connector.setSubscribedToStrongStatements(true);
+        if (connector.getCodec().getVersion() > 0)
+            sendSnapshot(connector);
+    }
+
+    /**
+     * Отправляет клиенту полный список пользователей в сети
+     *
+     * @param connector соединение клиента
+     */
+    synchronized void sendSnapshot(ClientConnector connector) {
+        connector.sendMessage(new Message("users_list_updated", getSnapshot()));
+    }
+
+    /**
+     * @return пользователи в сети: id, имя и цвет в виде #rrggbb
+     */
+    public synchronized HashSet<Properties> getSnapshot() {
+        HashSet<Properties> result = new HashSet<>(users.size() * 2);
+        for (User user : users.values())
+            result.add(user.properties);
+        return result;
+    }
+
+    /**
+     * @return количество пользователей в сети
+     */
+    public synchronized int size() {
+        return users.size();
+    }
+
+    private void broadcast(Message message) {
+        hub.getClientPool().makeStrongStatement(
+                message,
+                Collections.singletonList(new Message("users_list_updated", getSnapshot()))
+        );
+    }
+
+    /**
+     * Пользователь в сети
+     */
+    private static class User {
+        private final Properties properties = new Properties();
+
+        /**
+         * Количество действующих сессий пользователя
+         */
+        private int sessions;
+
+        private User(SessionTable.Session session) {
+            properties.setProperty("id", Integer.toString(session.userid));
+            properties.setProperty("name", session.name);
+            properties.setProperty("color", String.format("#%06x", session.color888));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package ru.david.room.server;
+
+import ru.david.room.CreatureChanges;
+import ru.david.room.CreatureDigests;
+import ru.david.room.CreatureModel;
+import ru.david.room.Message;
+
+import java.io.ObjectInputFilter;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+/**
+ * Фильтр десериализации запросов. Клиент может прислать любой сериализованный объект,
+ * а восстановление объекта незнакомого класса или огромного графа объектов - это
+ * верный способ уронить сервер. Поэтому фильтр пропускает только классы,
+ * которые действительно встречаются в запросах, и ограничивает глубину графа,
+ * длину массивов и общий объём прочитанного.
+ *
+ * Фильтр устанавливается для всей JVM, так что действует и на стандартную
+ * сериализацию, и на сериализованные приложения компактного формата.
+ */
+class RequestFilter implements ObjectInputFilter, HubFriendly {
+    /**
+     * Классы, экземпляры которых можно восстанавливать. Строки, примитивы
+     * и массивы примитивов фильтру не показываются или разрешены отдельно.
+     */
+    private static final Set<Class<?>> ALLOWED_CLASSES = new HashSet<>(Arrays.asList(
+            Message.class, CreatureModel.class, CreatureChanges.class, CreatureDigests.class,
+            Number.class, Integer.class, Long.class, Float.class, Double.class, Short.class, Byte.class,
+            Boolean.class, Character.class,
+            HashSet.class, HashMap.class, Hashtable.class, Properties.class, Map.Entry.class,
+            // ZonedDateTime сериализуется через java.time.Ser, а фильтр видит оба класса
+            ZonedDateTime.class, forName("java.time.Ser")
+    ));
+
+    private Hub hub;
+
+    @Override
+    public void onHubConnected(Hub hub) {
+        this.hub = hub;
+    }
+
+    @Override
+    public void onHubReady() {
+        try {
+            ObjectInputFilter.Config.setSerialFilter(this);
+        } catch (IllegalStateException e) {
+            hub.getLogger().warn("Фильтр десериализации уже задан свойством jdk.serialFilter, " +
+                    "ограничения из настроек сервера применяться не будут");
+        }
+    }
+
+    @Override
+    public Status checkInput(FilterInfo info) {
+        ServerConfig config = hub.getConfig();
+
+        if (info.depth() > config.getMaxRequestDepth())
+            return reject("depth", "глубина графа " + info.depth());
+        if (info.arrayLength() > config.getMaxRequestArrayLength())
+            return reject("array_length", "массив длины " + info.arrayLength());
+        if (info.streamBytes() > config.getMaxRequestSize())
+            return reject("size", "прочитано " + info.streamBytes() + " байт");
+
+        Class<?> serialClass = info.serialClass();
+        if (serialClass == null)
+            return Status.UNDECIDED;
+
+        while (serialClass.isArray())
+            serialClass = serialClass.getComponentType();
+        if (serialClass.isPrimitive() || ALLOWED_CLASSES.contains(serialClass))
+            return Status.ALLOWED;
+
+        return reject("class", "класс " + Logger.truncate(serialClass.getName(), config.getMaxLoggableRequestSize()));
+    }
+
+    private Status reject(String reason, String details) {
+        hub.getMetrics().increment("inbound.rejected_" + reason);
+        hub.getLogger().warn("Запрос отвергнут фильтром десериализации: " + details);
+        return Status.REJECTED;
+    }
+
+    private static Class<?> forName(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package ru.david.room.server;
+
+import ru.david.room.Message;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Очередь запросов одного соединения. Запросы соединения решаются по одному
+ * в порядке поступления, поэтому и ответы клиенту приходят в том же порядке.
+ * Пока у соединения есть запросы, очередь занимает не больше одного потока решателя.
+ */
+class RequestQueue implements Runnable {
+    private final ClientConnector connector;
+    private final ArrayDeque<Message> pending = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean scheduled = false;
+
+    /**
+     * Что сделать, когда будут решены все принятые запросы
+     */
+    private Runnable onDrained;
+
+    RequestQueue(ClientConnector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * Ставит запрос в очередь и, если очередь простаивала, отдаёт её решателю
+     *
+     * @param message запрос клиента
+     *
+     * @return false, если очередь соединения или решателя переполнена и запрос не принят
+     */
+    boolean offer(Message message) {
+        RequestResolver resolver = connector.hub.getRequestResolver();
+        boolean schedule;
+
+        lock.lock();
+        try {
+            if (pending.size() >= connector.hub.getConfig().getResolverQueueDepth())
+                return false;
+            pending.add(message);
+            schedule = !scheduled;
+            scheduled = true;
+        } finally {
+            lock.unlock();
+        }
+        resolver.onRequestQueued();
+
+        if (schedule) {
+            try {
+                resolver.schedule(this);
+            } catch (RejectedExecutionException e) {
+                // Очередь не была запланирована, значит, в ней лежит только этот запрос
+                lock.lock();
+                try {
+                    pending.clear();
+                    scheduled = false;
+                } finally {
+                    lock.unlock();
+                }
+                resolver.onRequestDequeued();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Выполняет действие, когда будут решены все уже принятые запросы.
+     * Нужно, чтобы клиент, отправивший запросы друг за другом, получил
+     * ответы на все из них раньше, чем соединение будет закрыто.
+     *
+     * @param action действие, например закрытие соединения
+     */
+    void whenDrained(Runnable action) {
+        lock.lock();
+        try {
+            if (scheduled) {
+                onDrained = action;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        action.run();
+    }
+
+    @Override
+    public void run() {
+        RequestResolver resolver = connector.hub.getRequestResolver();
+        while (true) {
+            Message message;
+            Runnable drained = null;
+            lock.lock();
+            try {
+                message = pending.poll();
+                if (message == null) {
+                    scheduled = false;
+                    drained = onDrained;
+                    onDrained = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (message == null) {
+                if (drained != null)
+                    drained.run();
+                return;
+            }
+            resolver.onRequestDequeued();
+            try {
+                resolver.resolve(connector, message);
+            } catch (RuntimeException e) {
+                String command = Logger.truncate(message.getText(), connector.hub.getConfig().getMaxLoggableRequestSize());
+                connector.logger.err("Непредвиденная ошибка при решении запроса " + command + ": " + e.toString());
+            }
+        }
+    }
+}
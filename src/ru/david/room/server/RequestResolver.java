@@ -1,24 +1,33 @@
 package ru.david.room.server;
 
 import ru.david.room.Message;
-import ru.david.room.Utils;
-import ru.david.room.server.resolvers.RequiresAuthorization;
-import ru.david.room.server.resolvers.Resolver;
-import ru.david.room.server.resolvers.UpdatesTokenLifetime;
 
 import javax.mail.MessagingException;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.security.GeneralSecurityException;
 import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Решатель запросов. Решает запросы.
+ *
+ * Запросы решаются ограниченным пулом потоков. У каждого соединения своя очередь
+ * ({@link RequestQueue}), поэтому запросы одного клиента решаются строго по порядку.
+ * Если очередь соединения или пула переполнена, клиент сразу получает ответ BUSY.
+ * Тот же ответ получает запрос, которому не хватило места в очереди хеширования паролей.
+ * Решатель команды находится по таблице {@link ResolverRegistry}, построенной при запуске.
  */
 public class RequestResolver implements HubFriendly {
     private Hub hub;
     private Logger logger;
 
+    private final ResolverRegistry registry = ResolverRegistry.createDefault();
+    private ThreadPoolExecutor workers;
+    private final AtomicInteger queuedRequests = new AtomicInteger();
+
     @Override
     public void onHubConnected(Hub hub) {
         this.hub = hub;
@@ -27,76 +36,126 @@ public class RequestResolver implements HubFriendly {
     @Override
     public void onHubReady() {
         logger = hub.getLogger();
+
+        ServerConfig config = hub.getConfig();
+        workers = new ThreadPoolExecutor(
+                config.getResolverWorkers(),
+                config.getResolverWorkers(),
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(config.getResolverBacklog()),
+                hub.getThreadFactory()
+        );
+        workers.allowCoreThreadTimeOut(true);
+
+        Metrics metrics = hub.getMetrics();
+        metrics.registerGauge("resolver.queued_requests", queuedRequests::get);
+        metrics.registerGauge("resolver.waiting_connections", () -> workers.getQueue().size());
+        metrics.registerGauge("resolver.active_workers", workers::getActiveCount);
     }
 
-    void resolveAsync(ClientPool.ClientConnector connector, Message message) {
-        new AsyncResolver(connector, message);
+    /**
+     * Ставит запрос в очередь соединения. Если очередь переполнена,
+     * запрос отклоняется и клиенту отправляется ответ BUSY.
+     *
+     * @param connector соединение, из которого пришёл запрос
+     *
+     * @param message запрос
+     */
+    void resolveAsync(ClientConnector connector, Message message) {
+        if (!connector.requestQueue.offer(message)) {
+            hub.getMetrics().increment("resolver.rejected_requests");
+            Message response = new Message("BUSY");
+            response.setRequestId(message.getRequestId());
+            connector.sendMessage(response);
+        }
     }
 
-    private class AsyncResolver extends Thread {
-        private final ClientPool.ClientConnector connector;
-        private Message message;
+    /**
+     * Отдаёт очередь соединения пулу решателя
+     *
+     * @param queue очередь соединения
+     *
+     * @throws RejectedExecutionException если пул переполнен
+     */
+    void schedule(RequestQueue queue) throws RejectedExecutionException {
+        workers.execute(queue);
+    }
 
-        AsyncResolver(ClientPool.ClientConnector c, Message m) {
-            connector = c;
-            message = m;
-            start();
-        }
+    void onRequestQueued() {
+        queuedRequests.incrementAndGet();
+    }
 
-        @Override
-        public void run() {
-            try {
-                String command = message.getText();
+    void onRequestDequeued() {
+        queuedRequests.decrementAndGet();
+    }
+
+    /**
+     * Решает запрос в текущем потоке и отправляет ответ клиенту
+     *
+     * @param connector соединение, из которого пришёл запрос
+     *
+     * @param message запрос
+     */
+    void resolve(ClientConnector connector, Message message) {
+        try {
+            String command = message.getText();
 
-                if (message.getUserid() == null)
-                    logger.log("Запрос от анонима: " + command);
-                else
-                    logger.log("Запрос от id " + message.getUserid() + ": " + command);
+            String loggableCommand = Logger.truncate(command, hub.getConfig().getMaxLoggableRequestSize());
+            if (message.getUserid() == null)
+                logger.log("Запрос от анонима: " + loggableCommand);
+            else
+                logger.log("Запрос от id " + message.getUserid() + ": " + loggableCommand);
 
-                Message response = new Message("COMMAND_NOT_SUPPORTED");
+            Message response = new Message("COMMAND_NOT_SUPPORTED");
 
-                try {
-                    Class<?> clazz = Class.forName("ru.david.room.server.resolvers." + Utils.toCamelCase(command) + "Resolver");
-                    Object object = clazz.newInstance();
-                    Resolver resolver = (Resolver)object;
-                    if (resolver instanceof RequiresAuthorization) {
+            ResolverRegistry.Entry entry = registry.get(command);
+
+            try {
+                if (entry != null) {
+                    if (entry.requiresAuthorization) {
                         if (message.getUserid() != null && message.getToken() != null) {
                             int userid = message.getUserid();
                             int token = message.getToken();
 
                             if (hub.getController().isUserAuthorized(userid, token, true))
-                                response = resolver.resolve(message, hub);
+                                response = entry.resolve(connector, message, hub);
                             else
                                 response = new Message("AUTH_FAILED");
                         } else
                             response = new Message("AUTH_FAILED");
                     } else
-                        response = resolver.resolve(message, hub);
+                        response = entry.resolve(connector, message, hub);
 
-                    if (resolver instanceof UpdatesTokenLifetime && message.getUserid() != null && message.getToken() != null)
+                    if (entry.updatesTokenLifetime && message.getUserid() != null && message.getToken() != null)
                         hub.getController().updateUserToken(message.getUserid(), message.getToken());
+                }
+            } catch (SQLException e) {
+                logger.err("Произошла ошибка при работе с базами данных во время выполнения команды " + loggableCommand + ":\n" + e.toString());
+                response = new Message("INTERNAL_ERROR");
+            } catch (GeneralSecurityException e) {
+                logger.err("Произошла ошибка безопасности во время выполнения команды " + loggableCommand + ":\n" + e.toString());
+                response = new Message("INTERNAL_ERROR");
+            } catch (MessagingException e) {
+                logger.err("Произошла ошибка отправки электронного письма при выполнении команды " + loggableCommand + ":\n" + e.toString());
+                response = new Message("INTERNAL_ERROR");
+            } catch (RejectedExecutionException e) {
+                // Переполнена очередь хеширования паролей, см. PasswordHasher
+                logger.warn("Команда " + loggableCommand + " отклонена: " + e.getMessage());
+                response = new Message("BUSY");
+            } finally {
+                // Клиент, указавший id запроса, ждёт ответа, даже если отвечать по существу нечего
+                if (response == null && message.getRequestId() != null)
+                    response = new Message("OK");
 
-                } catch (ClassNotFoundException | NoClassDefFoundError ignored) {
-                } catch (ClassCastException | IllegalAccessException | InstantiationException e) {
-                    logger.warn("В пакете ru.david.room.server.resolvers нашелся класс неверного формата " + e.toString());
-                } catch (SQLException e) {
-                    logger.err("Произошла ошибка при работе с базами данных во время выполнения команды " + command + ":\n" + e.toString());
-                    response = new Message("INTERNAL_ERROR");
-                } catch (GeneralSecurityException e) {
-                    logger.err("Произошла ошибка безопасности во время выполнения команды " + command + ":\n" + e.toString());
-                    response = new Message("INTERNAL_ERROR");
-                } catch (MessagingException e) {
-                    logger.err("Произошла ошибка отправки электронного письма при выполнении команды " + command + ":\n" + e.toString());
-                    response = new Message("INTERNAL_ERROR");
-                } finally {
-                    if (response != null)
-                        connector.sendMessage(response);
+                if (response != null) {
+                    response.setRequestId(message.getRequestId());
+                    connector.sendMessage(response);
                 }
-            } catch (NullPointerException e) {
-                logger.warn("Не получилось отправить ответ: " + e.toString());
-                hub.getClientPool().removeConnector(connector);
-//                e.printStackTrace();
             }
+        } catch (NullPointerException e) {
+            logger.warn("Не получилось отправить ответ: " + e.toString());
+            hub.getClientPool().removeConnector(connector);
+//            e.printStackTrace();
         }
     }
 }
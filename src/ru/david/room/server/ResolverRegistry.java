@@ -0,0 +1,114 @@
+package ru.david.room.server;
+
+import ru.david.room.Message;
+import ru.david.room.server.resolvers.*;
+
+import javax.mail.MessagingException;
+import java.security.GeneralSecurityException;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Таблица команд сервера. Строится один раз при запуске и сопоставляет имени команды
+ * экземпляр решателя вместе с заранее вычисленными признаками
+ * {@link RequiresAuthorization} и {@link UpdatesTokenLifetime}.
+ * Решатели не хранят состояния, поэтому один экземпляр обслуживает все запросы.
+ */
+class ResolverRegistry {
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * @return таблица со всеми командами сервера
+     */
+    static ResolverRegistry createDefault() {
+        ResolverRegistry registry = new ResolverRegistry();
+
+        registry.register("login", new LoginResolver());
+        registry.register("logout", new LogoutResolver());
+        registry.register("register", new RegisterResolver());
+        registry.register("confirm_registration", new ConfirmRegistrationResolver());
+        registry.register("request_password_reset", new RequestPasswordResetResolver());
+        registry.register("reset_password", new ResetPasswordResolver());
+        registry.register("i_am_alive", new IAmAliveResolver());
+
+        registry.registerConnection("request_users", new UsersSnapshotResolver());
+        registry.registerConnection("request_creatures", new CreaturesSnapshotResolver());
+        registry.register("create_creature", new CreateCreatureResolver());
+        registry.register("modify_creature", new ModifyCreatureResolver());
+        registry.register("delete_creature", new DeleteCreatureResolver());
+        registry.registerConnection("set_viewport", new ViewportResolver());
+        registry.registerConnection("sync_creatures", new SyncCreaturesResolver());
+
+        return registry;
+    }
+
+    /**
+     * Добавляет команду в таблицу
+     *
+     * @param command имя команды, как его присылает клиент
+     *
+     * @param resolver решатель команды
+     */
+    void register(String command, Resolver resolver) {
+        entries.put(command, new Entry(resolver, null));
+    }
+
+    /**
+     * Добавляет в таблицу команду, которой нужно соединение клиента
+     *
+     * @param command имя команды, как его присылает клиент
+     *
+     * @param resolver решатель команды
+     */
+    void registerConnection(String command, ConnectionResolver resolver) {
+        entries.put(command, new Entry(null, resolver));
+    }
+
+    /**
+     * @param command имя команды
+     *
+     * @return запись таблицы или null, если такой команды нет
+     */
+    Entry get(String command) {
+        return entries.get(command);
+    }
+
+    /**
+     * @return имена всех известных команд
+     */
+    Set<String> getCommands() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * Запись таблицы команд
+     */
+    static class Entry {
+        /**
+         * Ровно одно из полей resolver и connectionResolver не равно null
+         */
+        final Resolver resolver;
+        final ConnectionResolver connectionResolver;
+        final boolean requiresAuthorization;
+        final boolean updatesTokenLifetime;
+
+        Entry(Resolver resolver, ConnectionResolver connectionResolver) {
+            this.resolver = resolver;
+            this.connectionResolver = connectionResolver;
+
+            Object any = resolver != null ? resolver : connectionResolver;
+            this.requiresAuthorization = any instanceof RequiresAuthorization;
+            this.updatesTokenLifetime = any instanceof UpdatesTokenLifetime;
+        }
+
+        Message resolve(ClientConnector connector, Message message, Hub hub)
+                throws SQLException, GeneralSecurityException, MessagingException {
+            if (connectionResolver != null)
+                return connectionResolver.resolve(connector, message);
+            return resolver.resolve(message, hub);
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.net.Socket;
  */
 public class Server implements HubFriendly {
     private ServerSocket serverSocket;
+    private NioTransport nioTransport;
     private Hub hub;
 
     @Override
@@ -19,6 +20,17 @@ public class Server implements HubFriendly {
     @Override
     public void onHubReady() {
         ServerConfig config = hub.getConfig();
+
+        if (config.getTransport() == ServerConfig.Transport.NIO)
+            startNioTransport(config);
+        else
+            startBlockingTransport(config);
+    }
+
+    /**
+     * Запускает блокирующий транспорт: поток на каждое соединение
+     */
+    private void startBlockingTransport(ServerConfig config) {
         Logger logger = hub.getLogger();
 
         try {
@@ -41,4 +53,22 @@ public class Server implements HubFriendly {
             }
         }).start();
     }
-}
\ No newline at end of file
+
+    /**
+     * Запускает неблокирующий транспорт: несколько циклов событий на все соединения
+     */
+    private void startNioTransport(ServerConfig config) {
+        Logger logger = hub.getLogger();
+
+        try {
+            nioTransport = new NioTransport(hub);
+            nioTransport.start(config.getPort(), config.getNioEventLoops());
+        } catch (IOException e) {
+            logger.err("Ошибка создания серверного канала (" + e.getMessage() + "), приложение будет остановлено.");
+            System.exit(1);
+        }
+
+        logger.log("Сервер запущен в неблокирующем режиме (" + config.getNioEventLoops() +
+                " циклов событий) и слушает порт " + config.getPort() + "...");
+    }
+}
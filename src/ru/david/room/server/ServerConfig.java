@@ -1,5 +1,6 @@
 package ru.david.room.server;
 
+import ru.david.room.DeflatingCodec;
 import ru.david.room.FileLoader;
 import ru.david.room.json.JSONEntity;
 import ru.david.room.json.JSONObject;
@@ -16,10 +17,25 @@ public class ServerConfig {
     private ServerConfig() {}
 
     private int port;
+    private Transport transport;
+    private int nioEventLoops;
+    private ExecutionMode executionMode;
+    private int resolverWorkers;
+    private int resolverQueueDepth;
+    private int resolverBacklog;
+    private int outboundQueueSize;
+    private OverflowPolicy outboundOverflowPolicy;
+    private long creatureEventsInterval;
+    private int compressionThreshold;
+    private double interestCellSize;
+    private int creaturesChunkSize;
+    private long metricsLogInterval;
 
     private int maxRequestSize;
     private int maxLoggableRequestSize;
     private int maxUserElements;
+    private int maxRequestDepth;
+    private int maxRequestArrayLength;
 
     private String databaseHost;
     private int databasePort;
@@ -29,9 +45,20 @@ public class ServerConfig {
     private String databaseUser;
     private String databasePassword;
 
+    private int databasePoolMinSize;
+    private int databasePoolMaxSize;
+    private long databasePoolBorrowTimeout;
+    private long databasePoolIdleTimeout;
+    private int databaseStatementCacheSize;
+
     private long passwordResetTokenTimeout;
     private long registrationTokenTimeout;
     private long userTokenTimeout;
+    private long sessionFlushInterval;
+
+    private int passwordHashWorkers;
+    private int passwordHashQueueSize;
+    private int passwordHashLanes;
 
     private String outLogFile;
     private String errLogFile;
@@ -280,19 +307,69 @@ public class ServerConfig {
                         "Проверьте значение параметра 'email_from'"
         ).getContent();
 
+        // Optional parameters
+        Transport transport = Transport.fromName(getOptionalString(object, "transport", "blocking"));
+        int nioEventLoops = (int)getOptionalNumber(object, "nio_event_loops", Runtime.getRuntime().availableProcessors());
+        ExecutionMode executionMode = ExecutionMode.fromName(getOptionalString(object, "execution_mode", "threads"));
+        int resolverWorkers = (int)getOptionalNumber(object, "resolver_workers", 4 * Runtime.getRuntime().availableProcessors());
+        int resolverQueueDepth = (int)getOptionalNumber(object, "resolver_queue_depth", 32);
+        int resolverBacklog = (int)getOptionalNumber(object, "resolver_backlog", 1024);
+        int outboundQueueSize = (int)getOptionalNumber(object, "outbound_queue_size", 256);
+        OverflowPolicy outboundOverflowPolicy = OverflowPolicy.fromName(getOptionalString(object, "outbound_overflow_policy", "resync"));
+        long creatureEventsInterval = (long)getOptionalNumber(object, "creature_events_interval", 100);
+        int compressionThreshold = (int)getOptionalNumber(object, "compression_threshold", DeflatingCodec.DEFAULT_THRESHOLD);
+        double interestCellSize = getOptionalNumber(object, "interest_cell_size", 100);
+        int creaturesChunkSize = (int)getOptionalNumber(object, "creatures_chunk_size", 500);
+        int maxRequestDepth = (int)getOptionalNumber(object, "max_request_depth", 16);
+        int maxRequestArrayLength = (int)getOptionalNumber(object, "max_request_array_length", 4096);
+        long metricsLogInterval = (long)getOptionalNumber(object, "metrics_log_interval", 60000);
+        int databasePoolMinSize = (int)getOptionalNumber(object, "db_pool_min_size", 2);
+        int databasePoolMaxSize = (int)getOptionalNumber(object, "db_pool_max_size", 10);
+        long databasePoolBorrowTimeout = (long)getOptionalNumber(object, "db_pool_borrow_timeout", 5000);
+        long databasePoolIdleTimeout = (long)getOptionalNumber(object, "db_pool_idle_timeout", 60000);
+        int databaseStatementCacheSize = (int)getOptionalNumber(object, "db_statement_cache_size", 32);
+        long sessionFlushInterval = (long)getOptionalNumber(object, "session_flush_interval", 60000);
+        int passwordHashWorkers = (int)getOptionalNumber(object, "password_hash_workers", 0);
+        int passwordHashQueueSize = (int)getOptionalNumber(object, "password_hash_queue_size", 64);
+        int passwordHashLanes = (int)getOptionalNumber(object, "password_hash_lanes", 1);
+
         // Setting variables
         result.setPort(port);
+        result.setTransport(transport);
+        result.setNioEventLoops(nioEventLoops);
+        result.setExecutionMode(executionMode);
+        result.setResolverWorkers(resolverWorkers);
+        result.setResolverQueueDepth(resolverQueueDepth);
+        result.setResolverBacklog(resolverBacklog);
+        result.setOutboundQueueSize(outboundQueueSize);
+        result.setOutboundOverflowPolicy(outboundOverflowPolicy);
+        result.setCreatureEventsInterval(creatureEventsInterval);
+        result.setCompressionThreshold(compressionThreshold);
+        result.setInterestCellSize(interestCellSize);
+        result.setCreaturesChunkSize(creaturesChunkSize);
+        result.setMetricsLogInterval(metricsLogInterval);
         result.setMaxRequestSize(maxRequestSize);
         result.setMaxLoggableRequestSize(maxLoggableRequestSize);
         result.setMaxUserElements(maxUserElements);
+        result.setMaxRequestDepth(maxRequestDepth);
+        result.setMaxRequestArrayLength(maxRequestArrayLength);
         result.setDatabaseHost(databaseHost);
         result.setDatabasePort(databasePort);
         result.setDatabaseName(databaseName);
         result.setDatabaseUser(databaseUser);
         result.setDatabasePassword(databasePassword);
+        result.setDatabasePoolMaxSize(databasePoolMaxSize);
+        result.setDatabasePoolMinSize(databasePoolMinSize);
+        result.setDatabasePoolBorrowTimeout(databasePoolBorrowTimeout);
+        result.setDatabasePoolIdleTimeout(databasePoolIdleTimeout);
+        result.setDatabaseStatementCacheSize(databaseStatementCacheSize);
         result.setRegistrationTokenTimeout(registrationTokenTimeout);
         result.setPasswordResetTokenTimeout(passwordResetTokenTimeout);
         result.setUserTokenTimeout(userTokenTimeout);
+        result.setSessionFlushInterval(sessionFlushInterval);
+        result.setPasswordHashWorkers(passwordHashWorkers);
+        result.setPasswordHashQueueSize(passwordHashQueueSize);
+        result.setPasswordHashLanes(passwordHashLanes);
         result.setOutLogFile(outLogFile);
         result.setErrLogFile(errLogFile);
         result.setJdbcDriver(jdbcDriver);
@@ -326,6 +403,186 @@ public class ServerConfig {
     }
 
     /**
+     * @return Транспорт, с помощью которого сервер обслуживает соединения
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return Количество циклов событий неблокирующего транспорта
+     */
+    public int getNioEventLoops() {
+        return nioEventLoops;
+    }
+
+    /**
+     * Устанавливает количество циклов событий неблокирующего транспорта.
+     * Должен быть хотя бы один цикл.
+     * @param nioEventLoops количество циклов
+     */
+    public void setNioEventLoops(int nioEventLoops) {
+        if (nioEventLoops < 1)
+            throw new IllegalArgumentException("Количество циклов событий должно быть положительным");
+        this.nioEventLoops = nioEventLoops;
+    }
+
+    /**
+     * @return Режим, в котором выполняются задачи сервера: чтение соединений и решение запросов
+     */
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    /**
+     * @return Количество потоков, одновременно решающих запросы
+     */
+    public int getResolverWorkers() {
+        return resolverWorkers;
+    }
+
+    public void setResolverWorkers(int resolverWorkers) {
+        if (resolverWorkers < 1)
+            throw new IllegalArgumentException("Количество потоков решателя должно быть положительным");
+        this.resolverWorkers = resolverWorkers;
+    }
+
+    /**
+     * Возвращает максимальное количество запросов одного соединения, ожидающих решения.
+     * Если очередь соединения заполнена, новые запросы отклоняются ответом BUSY.
+     * @return Глубина очереди запросов одного соединения
+     */
+    public int getResolverQueueDepth() {
+        return resolverQueueDepth;
+    }
+
+    public void setResolverQueueDepth(int resolverQueueDepth) {
+        if (resolverQueueDepth < 1)
+            throw new IllegalArgumentException("Глубина очереди запросов должна быть положительной");
+        this.resolverQueueDepth = resolverQueueDepth;
+    }
+
+    /**
+     * @return Максимальное количество соединений, ожидающих свободного потока решателя
+     */
+    public int getResolverBacklog() {
+        return resolverBacklog;
+    }
+
+    public void setResolverBacklog(int resolverBacklog) {
+        if (resolverBacklog < 1)
+            throw new IllegalArgumentException("Очередь решателя должна быть положительной");
+        this.resolverBacklog = resolverBacklog;
+    }
+
+    /**
+     * Возвращает количество кадров, которое может ждать отправки одному клиенту.
+     * Что делать, когда очередь переполнена, решает {@link #getOutboundOverflowPolicy()}.
+     * @return Размер очереди отправки одного соединения
+     */
+    public int getOutboundQueueSize() {
+        return outboundQueueSize;
+    }
+
+    public void setOutboundQueueSize(int outboundQueueSize) {
+        if (outboundQueueSize < 1)
+            throw new IllegalArgumentException("Размер очереди отправки должен быть положительным");
+        this.outboundQueueSize = outboundQueueSize;
+    }
+
+    /**
+     * @return Что делать, когда клиент не успевает принимать сообщения и его очередь отправки переполнена
+     */
+    public OverflowPolicy getOutboundOverflowPolicy() {
+        return outboundOverflowPolicy;
+    }
+
+    public void setOutboundOverflowPolicy(OverflowPolicy outboundOverflowPolicy) {
+        this.outboundOverflowPolicy = outboundOverflowPolicy;
+    }
+
+    /**
+     * Возвращает время, в течение которого копятся изменения существ перед рассылкой,
+     * см. {@link CreatureEvents}. 0 - рассылать каждое изменение сразу.
+     * @return Интервал рассылки изменений существ в миллисекундах
+     */
+    public long getCreatureEventsInterval() {
+        return creatureEventsInterval;
+    }
+
+    public void setCreatureEventsInterval(long creatureEventsInterval) {
+        if (creatureEventsInterval < 0)
+            throw new IllegalArgumentException("Интервал рассылки изменений существ не может быть отрицательным");
+        this.creatureEventsInterval = creatureEventsInterval;
+    }
+
+    /**
+     * Возвращает длину тела кадра, начиная с которой кадр сжимается для клиентов,
+     * договорившихся о формате {@link DeflatingCodec}. 0 - не сжимать и не предлагать клиентам сжатие.
+     * @return Порог сжатия в байтах
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0)
+            throw new IllegalArgumentException("Порог сжатия не может быть отрицательным");
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Возвращает сторону клетки сетки, по которой {@link InterestIndex} ищет клиентов,
+     * которым видно существо. Лучше всего работает размер порядка размера области видимости.
+     * @return Размер клетки индекса областей видимости в единицах мира
+     */
+    public double getInterestCellSize() {
+        return interestCellSize;
+    }
+
+    public void setInterestCellSize(double interestCellSize) {
+        if (!(interestCellSize > 0))
+            throw new IllegalArgumentException("Размер клетки индекса областей видимости должен быть положительным");
+        this.interestCellSize = interestCellSize;
+    }
+
+    /**
+     * Возвращает количество существ в одной части списка, который отправляется
+     * клиенту по частям, см. {@link CreaturesSnapshotResolver}
+     * @return Размер части списка существ
+     */
+    public int getCreaturesChunkSize() {
+        return creaturesChunkSize;
+    }
+
+    public void setCreaturesChunkSize(int creaturesChunkSize) {
+        if (creaturesChunkSize < 1)
+            throw new IllegalArgumentException("Размер части списка существ должен быть положительным");
+        this.creaturesChunkSize = creaturesChunkSize;
+    }
+
+    /**
+     * @return Интервал в миллисекундах, с которым метрики сервера пишутся в лог. 0 - не писать
+     */
+    public long getMetricsLogInterval() {
+        return metricsLogInterval;
+    }
+
+    public void setMetricsLogInterval(long metricsLogInterval) {
+        this.metricsLogInterval = metricsLogInterval;
+    }
+
+    /**
+     * Возвращает максимальный размер запроса в байтах. Кадры длиннее отвергаются
+     * по заголовку, до чтения и разбора тела, а соединение с клиентом разрывается.
      * @return Максимальный размер запроса, который следует обрабатывать серверу
      */
     public int getMaxRequestSize() {
@@ -333,6 +590,8 @@ public class ServerConfig {
     }
 
     public void setMaxRequestSize(int maxRequestSize) {
+        if (maxRequestSize < 1)
+            throw new IllegalArgumentException("Макс. размер запроса должен быть положительным");
         this.maxRequestSize = maxRequestSize;
     }
 
@@ -362,6 +621,35 @@ public class ServerConfig {
         this.maxUserElements = maxUserElements;
     }
 
+    /**
+     * Возвращает наибольшую вложенность объектов в сериализованной части запроса, см. {@link RequestFilter}
+     * @return Максимальная глубина графа объектов в запросе
+     */
+    public int getMaxRequestDepth() {
+        return maxRequestDepth;
+    }
+
+    public void setMaxRequestDepth(int maxRequestDepth) {
+        if (maxRequestDepth < 1)
+            throw new IllegalArgumentException("Макс. глубина запроса должна быть положительной");
+        this.maxRequestDepth = maxRequestDepth;
+    }
+
+    /**
+     * Возвращает наибольшую длину массива в сериализованной части запроса, см. {@link RequestFilter}.
+     * Ограничивает и размер коллекций: HashSet и Properties при восстановлении создают массив под элементы.
+     * @return Максимальная длина массива в запросе
+     */
+    public int getMaxRequestArrayLength() {
+        return maxRequestArrayLength;
+    }
+
+    public void setMaxRequestArrayLength(int maxRequestArrayLength) {
+        if (maxRequestArrayLength < 0)
+            throw new IllegalArgumentException("Макс. длина массива в запросе не может быть отрицательной");
+        this.maxRequestArrayLength = maxRequestArrayLength;
+    }
+
     /**
      * @return хост базы данных к которой следует подключаться серверу
      */
@@ -423,6 +711,81 @@ public class ServerConfig {
         this.databasePassword = databasePassword;
     }
 
+    /**
+     * Возвращает количество соединений с базой данных, которые {@link ConnectionPool}
+     * держит открытыми, даже если они простаивают
+     * @return Наименьший размер пула соединений
+     */
+    public int getDatabasePoolMinSize() {
+        return databasePoolMinSize;
+    }
+
+    public void setDatabasePoolMinSize(int databasePoolMinSize) {
+        if (databasePoolMinSize < 0)
+            throw new IllegalArgumentException("Наименьший размер пула соединений не может быть отрицательным");
+        if (databasePoolMinSize > databasePoolMaxSize)
+            throw new IllegalArgumentException("Наименьший размер пула соединений не может быть больше наибольшего, " +
+                    "проверьте значения параметров 'db_pool_min_size' и 'db_pool_max_size'");
+        this.databasePoolMinSize = databasePoolMinSize;
+    }
+
+    /**
+     * @return Наибольшее количество одновременно открытых соединений с базой данных
+     */
+    public int getDatabasePoolMaxSize() {
+        return databasePoolMaxSize;
+    }
+
+    public void setDatabasePoolMaxSize(int databasePoolMaxSize) {
+        if (databasePoolMaxSize < 1)
+            throw new IllegalArgumentException("Наибольший размер пула соединений должен быть положительным");
+        this.databasePoolMaxSize = databasePoolMaxSize;
+    }
+
+    /**
+     * Возвращает, сколько запрос ждёт свободного соединения, если все соединения пула заняты.
+     * Если за это время соединение не освободилось, запрос завершается ошибкой базы данных.
+     * @return Время ожидания соединения в миллисекундах
+     */
+    public long getDatabasePoolBorrowTimeout() {
+        return databasePoolBorrowTimeout;
+    }
+
+    public void setDatabasePoolBorrowTimeout(long databasePoolBorrowTimeout) {
+        if (databasePoolBorrowTimeout < 0)
+            throw new IllegalArgumentException("Время ожидания соединения с базой данных не может быть отрицательным");
+        this.databasePoolBorrowTimeout = databasePoolBorrowTimeout;
+    }
+
+    /**
+     * Возвращает, сколько соединение сверх наименьшего размера пула может простаивать, прежде чем будет закрыто
+     * @return Время простоя соединения в миллисекундах
+     */
+    public long getDatabasePoolIdleTimeout() {
+        return databasePoolIdleTimeout;
+    }
+
+    public void setDatabasePoolIdleTimeout(long databasePoolIdleTimeout) {
+        if (databasePoolIdleTimeout < 1)
+            throw new IllegalArgumentException("Время простоя соединения с базой данных должно быть положительным");
+        this.databasePoolIdleTimeout = databasePoolIdleTimeout;
+    }
+
+    /**
+     * Возвращает, сколько подготовленных выражений {@link StatementCache} хранит для каждого
+     * соединения с базой данных. 0 - не хранить, каждый раз готовить выражение заново.
+     * @return Размер кэша выражений одного соединения
+     */
+    public int getDatabaseStatementCacheSize() {
+        return databaseStatementCacheSize;
+    }
+
+    public void setDatabaseStatementCacheSize(int databaseStatementCacheSize) {
+        if (databaseStatementCacheSize < 0)
+            throw new IllegalArgumentException("Размер кэша выражений не может быть отрицательным");
+        this.databaseStatementCacheSize = databaseStatementCacheSize;
+    }
+
     /**
      * @return Время жизни токена сброса пароля
      */
@@ -456,6 +819,69 @@ public class ServerConfig {
         this.userTokenTimeout = userTokenTimeout;
     }
 
+    /**
+     * Возвращает интервал, с которым продления сессий пользователей записываются в базу данных.
+     * Сессии, срок которых в базе данных истекает раньше, записываются сразу. При перезапуске
+     * сервера теряется не больше этого интервала продления.
+     *
+     * Интервал не больше половины времени жизни токена пользователя: иначе срок любой сессии
+     * в базе данных истекал бы раньше очередной записи, и каждый запрос требовал бы срочной.
+     * @return Интервал записи продлений сессий в миллисекундах
+     */
+    public long getSessionFlushInterval() {
+        return Math.max(1, Math.min(sessionFlushInterval, userTokenTimeout / 2));
+    }
+
+    public void setSessionFlushInterval(long sessionFlushInterval) {
+        if (sessionFlushInterval < 1)
+            throw new IllegalArgumentException("Интервал записи продлений сессий должен быть положительным");
+        this.sessionFlushInterval = sessionFlushInterval;
+    }
+
+    /**
+     * Возвращает количество потоков, которые хешируют пароли. Каждое хеширование занимает
+     * несколько мегабайт памяти, поэтому потоков не больше, чем ядер процессора и чем помещается в кучу.
+     * @return Количество потоков хеширования паролей, 0 - подобрать по процессору и размеру кучи
+     */
+    public int getPasswordHashWorkers() {
+        return passwordHashWorkers;
+    }
+
+    public void setPasswordHashWorkers(int passwordHashWorkers) {
+        if (passwordHashWorkers < 0)
+            throw new IllegalArgumentException("Количество потоков хеширования паролей не может быть отрицательным");
+        this.passwordHashWorkers = passwordHashWorkers;
+    }
+
+    /**
+     * @return Сколько паролей может ждать хеширования, остальные запросы сразу получают ответ BUSY
+     */
+    public int getPasswordHashQueueSize() {
+        return passwordHashQueueSize;
+    }
+
+    public void setPasswordHashQueueSize(int passwordHashQueueSize) {
+        if (passwordHashQueueSize < 1)
+            throw new IllegalArgumentException("Очередь хеширования паролей должна быть положительной");
+        this.passwordHashQueueSize = passwordHashQueueSize;
+    }
+
+    /**
+     * Возвращает параметр p scrypt - количество дорожек, которые считаются одновременно на разных ядрах.
+     * Больше дорожек - сильнее хеш при том же времени входа, но каждый вход занимает больше ядер.
+     * Внимание! Параметр входит в хеш: пароли, сохранённые с другим значением, перестанут подходить.
+     * @return Количество дорожек scrypt при хешировании паролей
+     */
+    public int getPasswordHashLanes() {
+        return passwordHashLanes;
+    }
+
+    public void setPasswordHashLanes(int passwordHashLanes) {
+        if (passwordHashLanes < 1 || passwordHashLanes > 255)
+            throw new IllegalArgumentException("Количество дорожек хеширования паролей должно быть от 1 до 255");
+        this.passwordHashLanes = passwordHashLanes;
+    }
+
     /**
      * @return Имя файла, в который будет записан стандартный лог сервера
      */
@@ -573,4 +999,141 @@ public class ServerConfig {
     public void setEmailFrom(String emailFrom) {
         this.emailFrom = emailFrom;
     }
+
+    /**
+     * Возвращает значение необязательного строкового параметра
+     * @param object объект с настройками
+     * @param key имя параметра
+     * @param defaultValue значение, если параметр не указан
+     * @return значение параметра
+     * @throws IllegalStateException Когда параметр имеет неверный тип
+     */
+    private static String getOptionalString(JSONObject object, String key, String defaultValue) throws IllegalStateException {
+        JSONEntity entity = object.getItem(key);
+        if (entity == null)
+            return defaultValue;
+        return entity.toString(
+                "Параметр '" + key + "' должен быть строкой, но это " + entity.getTypeName()
+        ).getContent();
+    }
+
+    /**
+     * Возвращает значение необязательного числового параметра
+     * @param object объект с настройками
+     * @param key имя параметра
+     * @param defaultValue значение, если параметр не указан
+     * @return значение параметра
+     * @throws IllegalStateException Когда параметр имеет неверный тип
+     */
+    private static double getOptionalNumber(JSONObject object, String key, double defaultValue) throws IllegalStateException {
+        JSONEntity entity = object.getItem(key);
+        if (entity == null)
+            return defaultValue;
+        return entity.toNumber(
+                "Параметр '" + key + "' должен быть числом, но это " + entity.getTypeName()
+        ).getValue();
+    }
+
+    /**
+     * Способ, которым сервер обслуживает соединения
+     */
+    public enum Transport {
+        /**
+         * Отдельный поток на каждое соединение. Обслуживает и клиентов, собранных
+         * до появления кадров.
+         */
+        BLOCKING,
+
+        /**
+         * Несколько циклов событий на основе {@link java.nio.channels.Selector} на все соединения.
+         * Понимает только кадры, так что клиенты, собранные до их появления, сразу отключаются.
+         */
+        NIO;
+
+        /**
+         * @param name имя транспорта из файла настроек: "blocking" или "nio"
+         * @return транспорт с указанным именем
+         * @throws IllegalArgumentException Когда транспорта с таким именем нет
+         */
+        static Transport fromName(String name) throws IllegalArgumentException {
+            for (Transport transport : values())
+                if (transport.name().equalsIgnoreCase(name))
+                    return transport;
+            throw new IllegalArgumentException(
+                    "Неизвестный транспорт '" + name + "', проверьте значение параметра 'transport' (blocking или nio)"
+            );
+        }
+    }
+
+    /**
+     * Режим, в котором выполняются задачи сервера, см. {@link Hub#getThreadFactory()}
+     */
+    public enum ExecutionMode {
+        /**
+         * Обычные платформенные потоки
+         */
+        THREADS,
+
+        /**
+         * Виртуальные потоки. Блокирующие операции
+         * не занимают поток операционной системы, пока ждут
+         */
+        VIRTUAL;
+
+        /**
+         * @param name имя режима из файла настроек: "threads" или "virtual"
+         * @return режим с указанным именем
+         * @throws IllegalArgumentException Когда режима с таким именем нет
+         */
+        static ExecutionMode fromName(String name) throws IllegalArgumentException {
+            for (ExecutionMode mode : values())
+                if (mode.name().equalsIgnoreCase(name))
+                    return mode;
+            throw new IllegalArgumentException(
+                    "Неизвестный режим выполнения '" + name + "', проверьте значение параметра 'execution_mode' (threads или virtual)"
+            );
+        }
+    }
+
+    /**
+     * Что делать с переполненной очередью отправки медленного клиента.
+     * Ответы на запросы клиента не выбрасываются ни при какой политике,
+     * выбрасываться могут только события, разосланные всем клиентам.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Выбросить самое старое событие из очереди. События - это изменения состояния,
+         * а не замеры, и без выброшенного клиент разошёлся бы с сервером, поэтому вслед
+         * за ним клиенту тоже отправляется команда resync, а новые события до неё не ставятся.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Выбросить из очереди все события и вместо них отправить клиенту
+         * команду resync, по которой он заново запросит всё состояние.
+         * Политика по умолчанию.
+         */
+        RESYNC,
+
+        /**
+         * Разорвать соединение. Ответы на запросы при этом тоже не ставятся сверх размера
+         * очереди: клиент, который не забирает события, не заберёт и ответы, а эта политика
+         * обещает, что очередь одного соединения никогда не станет длиннее заданной.
+         */
+        DISCONNECT;
+
+        /**
+         * @param name имя политики из файла настроек: "drop_oldest", "resync" или "disconnect"
+         * @return политика с указанным именем
+         * @throws IllegalArgumentException Когда политики с таким именем нет
+         */
+        static OverflowPolicy fromName(String name) throws IllegalArgumentException {
+            for (OverflowPolicy policy : values())
+                if (policy.name().equalsIgnoreCase(name))
+                    return policy;
+            throw new IllegalArgumentException(
+                    "Неизвестная политика '" + name + "', проверьте значение параметра 'outbound_overflow_policy' (drop_oldest, resync или disconnect)"
+            );
+        }
+    }
 }
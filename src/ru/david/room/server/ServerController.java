@@ -1,6 +1,5 @@
 package ru.david.room.server;
 
-import com.lambdaworks.crypto.SCrypt;
 import ru.david.room.CreatureModel;
 import ru.david.room.Utils;
 
@@ -9,10 +8,11 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import java.security.GeneralSecurityException;
 import java.sql.*;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Контроллер операций между сервером и внешним миром.
@@ -21,10 +21,21 @@ import java.util.Properties;
 public class ServerController implements HubFriendly {
     private static byte[] PASSWORD_SALT = "Hg6trUBbHfgH7ggGV7yuv".getBytes();
 
+    /**
+     * Через сколько миллисекунд повторить удаление истёкших токенов или загрузку сессий после ошибки
+     */
+    private static final long EXPIRY_RETRY_INTERVAL = 3000;
+
     private Hub hub;
     private ServerConfig config;
     private Logger logger;
-    private Connection connection;
+    private ConnectionPool connectionPool;
+    private PasswordHasher passwordHasher;
+    private final SessionTable sessions = new SessionTable();
+    private volatile boolean sessionsLoaded;
+
+    private final Object flushSignal = new Object();
+    private boolean flushRequested;
 
     private Session mailSession;
 
@@ -47,11 +58,23 @@ public class ServerController implements HubFriendly {
             System.exit(1);
         }
 
-        initConnection();
-        if (connection != null)
+        hub.getMetrics().registerGauge("sessions.active", sessions::size);
+        hub.getMetrics().registerGauge("sessions.dirty", sessions::dirtyCount);
+
+        passwordHasher = new PasswordHasher(hub);
+
+        connectionPool = new ConnectionPool(hub);
+        if (connectionPool.start()) {
             initTables();
+            try {
+                loadSessions();
+            } catch (SQLException e) {
+                logger.err("Не получилось загрузить сессии пользователей: " + e.toString());
+            }
+        }
         initEmail();
         initAutoLogout();
+        initSessionFlush();
     }
 
     /**
@@ -75,57 +98,168 @@ public class ServerController implements HubFriendly {
         mailSession = Session.getDefaultInstance(properties, mailAuth);
     }
 
+    /**
+     * Запускает поток, который завершает сессии пользователей в тот момент, когда они истекают.
+     * Пока ни одна сессия не истекает, поток спит и не обращается к базе данных.
+     * Ошибка базы данных не останавливает поток: сессии, токены которых не получилось удалить,
+     * возвращаются в таблицу, и удаление повторяется через {@link #EXPIRY_RETRY_INTERVAL}.
+     * Если сессии не загрузились при запуске, поток пробует загрузить их с тем же интервалом.
+     */
     private void initAutoLogout() {
         new Thread(() -> {
+            boolean failing = false;
             try {
                 while (true) {
-                    PreparedStatement statement = connection.prepareStatement(
-                            "select * from user_tokens where expires < ?"
-                    );
-                    statement.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
-                    ResultSet resultSet = statement.executeQuery();
-
-                    statement = connection.prepareStatement(
-                            "delete from user_tokens where expires < ?"
-                    );
-                    statement.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
-                    statement.execute();
-
-                    while (resultSet.next()) {
-                        logger.log("Пользователь с id " + resultSet.getInt("userid") + " вышел по таймауту");
-                        hub.getClientPool().makeStrongStatement(
-                                new ru.david.room.Message(
-                                        "users_list_updated", generateOnlineUsersList()
-                                )
+                    try {
+                        if (!sessionsLoaded)
+                            loadSessions();
+                        List<SessionTable.Session> expired = sessions.takeExpired(
+                                sessionsLoaded ? Long.MAX_VALUE : EXPIRY_RETRY_INTERVAL
                         );
+                        if (!expired.isEmpty())
+                            expireSessions(expired);
+                        failing = false;
+                    } catch (SQLException e) {
+                        if (!failing)
+                            logger.err("Во время автоматического удаления устаревших токенов произошла ошибка: " + e.toString());
+                        failing = true;
+                        Thread.sleep(EXPIRY_RETRY_INTERVAL);
+                    }
+                }
+            } catch (InterruptedException ignored) {}
+        }, "session-expiry").start();
+    }
+
+    /**
+     * Запускает поток, который записывает продления сессий в базу данных раз в интервал
+     * из настроек или сразу, если этого потребовал {@link #extendSession}. При остановке
+     * сервера продления записываются в последний раз.
+     */
+    private void initSessionFlush() {
+        Thread thread = new Thread(() -> {
+            boolean failing = false;
+            try {
+                while (true) {
+                    synchronized (flushSignal) {
+                        // После ошибки срочные запросы не учитываются, чтобы не обращаться к недоступной базе на каждый запрос
+                        if (!flushRequested || failing)
+                            flushSignal.wait(config.getSessionFlushInterval());
+                        flushRequested = false;
+                    }
+                    try {
+                        flushSessions();
+                        failing = false;
+                    } catch (SQLException e) {
+                        if (!failing)
+                            logger.err("Не получилось записать продления сессий в базу данных: " + e.toString());
+                        failing = true;
                     }
-                    Thread.sleep(3000);
                 }
-            } catch (InterruptedException ignored) {
+            } catch (InterruptedException ignored) {}
+        }, "session-flusher");
+        thread.setDaemon(true);
+        thread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                flushSessions();
             } catch (SQLException e) {
-                logger.err("Во время автоматического удаления устаревших токенов произошла ошибка: " + e.toString());
+                logger.err("Не получилось записать продления сессий при остановке сервера: " + e.toString());
             }
-        }).start();
+        }, "session-final-flush"));
     }
 
     /**
-     * Инициализирует соединение с базой данных
+     * Продлевает сессию в памяти. Если срок сессии в базе данных истечёт раньше,
+     * чем наступит очередная запись продлений, просит записать их сейчас: иначе
+     * после перезапуска сервера такая сессия была бы потеряна.
+     *
+     * @param session сессия
+     *
+     * @param now текущее время в миллисекундах
      */
-    private void initConnection() {
-        try {
-            String databaseUrl = String.format(
-                    "jdbc:%s://%s:%s/%s",
-                    config.getJdbcLangProtocol(),
-                    config.getDatabaseHost(),
-                    config.getDatabasePort(),
-                    config.getDatabaseName()
-            );
-            logger.log("Соединение с базой данных...");
-            connection = DriverManager.getConnection(databaseUrl, config.getDatabaseUser(), config.getDatabasePassword());
-            logger.log("Соединение с базой данных успешно");
+    private void extendSession(SessionTable.Session session, long now) {
+        sessions.extend(session, now + config.getUserTokenTimeout());
+        if (session.persistedExpires - now < config.getSessionFlushInterval()) {
+            synchronized (flushSignal) {
+                flushRequested = true;
+                flushSignal.notify();
+            }
+        }
+    }
+
+    /**
+     * Записывает в базу данных одним пакетом все продления сессий с прошлой записи.
+     * Если записать не получилось, сессии останутся помеченными до следующей попытки.
+     */
+    private void flushSessions() throws SQLException {
+        List<SessionTable.Session> flushed = sessions.drainDirty();
+        if (flushed.isEmpty())
+            return;
+
+        long[] expires = new long[flushed.size()];
+        try (Connection connection = getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "update user_tokens set expires = ? where userid = ? and token = ?"
+             )) {
+            for (int i = 0; i < expires.length; i++) {
+                SessionTable.Session session = flushed.get(i);
+                expires[i] = session.expires;
+                statement.setTimestamp(1, new Timestamp(expires[i]));
+                statement.setInt(2, session.userid);
+                statement.setInt(3, session.token);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        } catch (SQLException e) {
+            sessions.markDirty(flushed);
+            throw e;
+        }
+
+        for (int i = 0; i < expires.length; i++)
+            flushed.get(i).persistedExpires = expires[i];
+        hub.getMetrics().increment("sessions.flushes");
+        hub.getMetrics().add("sessions.flushed", expires.length);
+    }
+
+    /**
+     * Загружает действующие сессии пользователей из базы данных в {@link SessionTable}
+     */
+    private void loadSessions() throws SQLException {
+        try (Connection connection = getConnection()) {
+            sessions.load(connection);
+        }
+        hub.getPresence().reset(sessions.getAll());
+        sessionsLoaded = true;
+        logger.log("Загружено сессий пользователей: " + sessions.size());
+    }
+
+    /**
+     * Завершает истёкшие сессии: удаляет их токены из базы данных одним пакетом
+     * и одним сообщением рассылает клиентам, кто из пользователей вышел, см. {@link Presence}.
+     * Если удалить токены не получилось, сессии возвращаются в таблицу до следующей попытки.
+     *
+     * @param expired сессии, уже удалённые из таблицы
+     */
+    private void expireSessions(List<SessionTable.Session> expired) throws SQLException {
+        try (Connection connection = getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "delete from user_tokens where userid = ? and token = ?"
+             )) {
+            for (SessionTable.Session session : expired) {
+                statement.setInt(1, session.userid);
+                statement.setInt(2, session.token);
+                statement.addBatch();
+            }
+            statement.executeBatch();
         } catch (SQLException e) {
-            logger.err("Ошибка общения с базой данных: " + e.getMessage());
+            expired.forEach(sessions::put);
+            throw e;
         }
+
+        for (SessionTable.Session session : expired)
+            logger.log("Пользователь с id " + session.userid + " вышел по таймауту");
+        hub.getPresence().leave(expired);
     }
 
     /**
@@ -169,17 +303,12 @@ public class ServerController implements HubFriendly {
      * @param structure описание структуры таблицы в sql-формате (имена колонн и их типы)
      */
     private void autoCreateTable(String name, String structure) {
-        try {
-            DatabaseMetaData metaData = connection.getMetaData();
-            if (
-                    !metaData.getTables(
-                            null,
-                            null,
-                            name,
-                            new String[]{"TABLE"}
-                    ).next()
-            ) {
-                connection.createStatement().execute("create table if not exists " + name +" (" + structure + ")");
+        try (Connection connection = getConnection();
+             ResultSet tables = connection.getMetaData().getTables(null, null, name, new String[]{"TABLE"})) {
+            if (!tables.next()) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("create table if not exists " + name +" (" + structure + ")");
+                }
                 logger.log("Создана таблица " + name);
             }
         } catch (SQLException e) {
@@ -187,84 +316,94 @@ public class ServerController implements HubFriendly {
         }
     }
 
-    public Connection getConnection() {
-        return connection;
+    /**
+     * Берёт соединение из пула. Соединение обязательно нужно вернуть, закрыв его,
+     * удобнее всего в try-with-resources. Вложенные вызовы в том же потоке получают
+     * то же соединение, см. {@link ConnectionPool}.
+     *
+     * @return соединение с базой данных
+     *
+     * @throws SQLException если получить соединение не удалось
+     */
+    public Connection getConnection() throws SQLException {
+        return connectionPool.borrow();
     }
 
     /**
-     * Генерирует токен и добавляет его в базу данных. Если нет соединения с базой данных, возвращает -1
+     * Генерирует токен и добавляет его в базу данных. Если у пользователя уже есть
+     * действующий токен, продлевает и возвращает его.
      *
      * @param userid id пользователя, для которого следует создать токен
      *
      * @param name имя пользователя для бродкастинга
      *
+     * @param color888 цвет пользователя для бродкастинга
+     *
      * @return созданный токен
      */
-    public int generateUserToken(int userid, String name) throws SQLException {
-        if (connection == null)
-            return -1;
-        PreparedStatement statement = connection.prepareStatement(
-                "select * from user_tokens where userid = ? and expires > ?"
-        );
-        statement.setInt(1, userid);
-        statement.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
-        ResultSet resultSet = statement.executeQuery();
+    public int generateUserToken(int userid, String name, int color888) throws SQLException {
+        long now = System.currentTimeMillis();
+        SessionTable.Session session = sessions.findByUser(userid, now);
+        if (session != null) {
+            extendSession(session, now);
+            return session.token;
+        }
 
-        if (resultSet.next()) {
-            int token = resultSet.getInt("token");
-            updateUserToken(userid, token);
-            return token;
-        } else {
-            statement = connection.prepareStatement(
-                    "insert into user_tokens values (?, ?, ?)"
-            );
-            int token = generateRandomToken(6);
+        int token = generateRandomToken(6);
+        long expires = now + config.getUserTokenTimeout();
+        try (Connection connection = getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "insert into user_tokens values (?, ?, ?)"
+             )) {
             statement.setInt(1, token);
             statement.setInt(2, userid);
-            statement.setTimestamp(3, new Timestamp(System.currentTimeMillis() + config.getUserTokenTimeout()));
+            statement.setTimestamp(3, new Timestamp(expires));
             statement.execute();
-            return token;
         }
+        session = new SessionTable.Session(userid, token, expires, name, color888);
+        sessions.put(session);
+        hub.getPresence().join(session);
+        return token;
     }
 
     /**
-     * Обновляет время жизни токена пользователя. Если токена нет для указанного пользователя,
-     * ничего не делает. Если нет соединения с базой данных, тоже ничего не делает.
+     * Продлевает время жизни токена пользователя. Если токена нет для указанного пользователя
+     * или он уже истёк, ничего не делает. Новое время окончания записывается в базу данных
+     * не сразу, а вместе с другими продлениями, см. {@link #flushSessions()}.
      *
      * @param userid id пользователя, для которого следует обновить токен
      *
      * @param token токен пользователя
      *
      */
-    void updateUserToken(int userid, int token) throws SQLException {
-        if (connection == null)
-            return;
-        PreparedStatement statement = connection.prepareStatement(
-                "update user_tokens set expires = ? where userid = ? and token = ?"
-        );
-        statement.setTimestamp(1, new Timestamp(System.currentTimeMillis() + config.getUserTokenTimeout()));
-        statement.setInt(2, userid);
-        statement.setInt(3, token);
-        statement.execute();
+    void updateUserToken(int userid, int token) {
+        long now = System.currentTimeMillis();
+        SessionTable.Session session = sessions.get(userid, token, now);
+        if (session != null)
+            extendSession(session, now);
     }
 
     /**
-     * Удаляет токен пользователя для указанного <code>userid</code>. Если нет соединения с базой данных или
-     * нет указанного пользователя или нет токена указанного пользователя, ничего не делает.
+     * Удаляет токен пользователя для указанного <code>userid</code>. Если нет указанного
+     * пользователя или нет токена указанного пользователя, ничего не делает.
+     * Если это была последняя сессия пользователя, клиентам рассылается, что он вышел.
      *
      * @param userid пользователь, токен которого следует удалить
      *
      * @param token токен пользователя
      */
-    private void removeUserToken(int userid, int token) throws SQLException {
-        if (connection == null)
-            return;
-        PreparedStatement statement = connection.prepareStatement(
-                "delete from user_tokens where userid = ? and token = ?"
-        );
-        statement.setInt(1, userid);
-        statement.setInt(2, token);
-        statement.execute();
+    public void removeUserToken(int userid, int token) throws SQLException {
+        try (Connection connection = getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "delete from user_tokens where userid = ? and token = ?"
+             )) {
+            statement.setInt(1, userid);
+            statement.setInt(2, token);
+            statement.execute();
+        }
+        SessionTable.Session session = sessions.remove(userid, token);
+        if (session != null)
+            hub.getPresence().leave(Collections.singletonList(session));
     }
 
     /**
@@ -273,8 +412,13 @@ public class ServerController implements HubFriendly {
      * @param token токен, который надо удалить
      */
     public void removeRegistrationToken(String token) throws SQLException {
-        connection.createStatement().execute("delete from registration_tokens " +
-                "where token = " + token);
+        try (Connection connection = getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "delete from registration_tokens where token = ?"
+             )) {
+            statement.setString(1, token);
+            statement.execute();
+        }
     }
 
     /**
@@ -282,13 +426,11 @@ public class ServerController implements HubFriendly {
      * Если нет соединения с базой данных, ничего не делает.
      */
     public void removeAllExpiredRegistrationTokens() {
-        if (connection == null)
-            return;
-        try {
-            PreparedStatement statement = connection.prepareStatement(
-                    "delete from registration_tokens " +
-                            "where expires < ?"
-            );
+        try (Connection connection = getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "delete from registration_tokens " +
+                             "where expires < ?"
+             )) {
             statement.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
             statement.execute();
         } catch (SQLException e) {
@@ -301,13 +443,11 @@ public class ServerController implements HubFriendly {
      * Если нет соединения с базой данных, ничего не делает.
      */
     public void removeAllExpiredPasswordResetTokens() {
-        if (connection == null)
-            return;
-        try {
-            PreparedStatement statement = connection.prepareStatement(
-                    "delete from password_reset_tokens  " +
-                            "where expires < ?"
-            );
+        try (Connection connection = getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "delete from password_reset_tokens  " +
+                             "where expires < ?"
+             )) {
             statement.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
             statement.execute();
         } catch (SQLException e) {
@@ -329,46 +469,43 @@ public class ServerController implements HubFriendly {
      * @return Результат изменения
      */
     ServerResponse.ChangePassword changePassword(int userid, int token, String oldPassword, String newPassword) {
-        if (connection == null)
-            return ServerResponse.ChangePassword.DB_NOT_SUPPORTED;
-
         try {
-            if (isUserAuthorized(userid, token, true)) {
-                PreparedStatement statement = connection.prepareStatement(
-                        "select * from users where id = ? and password_hash = ?"
-                );
-
-                if (newPassword.length() < 6 || Utils.isPasswordTooWeak(newPassword))
-                    return ServerResponse.ChangePassword.INCORRECT_NEW_PASSWORD;
+            if (!isUserAuthorized(userid, token, true))
+                return ServerResponse.ChangePassword.WRONG_TOKEN;
 
-                statement.setInt(1, userid);
-                statement.setBytes(2, hashPassword(oldPassword));
-                ResultSet resultSet = statement.executeQuery();
-                if (resultSet.next()) {
-                    statement = connection.prepareStatement(
-                            "update users set password_hash = ? where id = ?"
-                    );
-                    statement.setBytes(1, hashPassword(newPassword));
-                    statement.setInt(2, userid);
-                    statement.execute();
+            if (newPassword.length() < 6 || Utils.isPasswordTooWeak(newPassword))
+                return ServerResponse.ChangePassword.INCORRECT_NEW_PASSWORD;
+
+            // Пароли хешируются до того, как взять соединение, чтобы не держать его занятым
+            byte[] oldPasswordHash = hashPassword(oldPassword);
+            byte[] newPasswordHash = hashPassword(newPassword);
+
+            try (Connection connection = getConnection();
+                 PreparedStatement statement = connection.prepareStatement(
+                         "update users set password_hash = ? where id = ? and password_hash = ?"
+                 )) {
+                statement.setBytes(1, newPasswordHash);
+                statement.setInt(2, userid);
+                statement.setBytes(3, oldPasswordHash);
+                if (statement.executeUpdate() > 0)
                     return ServerResponse.ChangePassword.OK;
-                }
                 return ServerResponse.ChangePassword.WRONG_PASSWORD;
-            } else
-                return ServerResponse.ChangePassword.WRONG_TOKEN;
+            }
         } catch (SQLException e) {
             logger.err("Во время изменения пароля произошла ошибка SQL: " + e.toString());
             return ServerResponse.ChangePassword.INTERNAL_ERROR;
         } catch (GeneralSecurityException e) {
             logger.err("Во время изменения пароля произошла ошибка безопасности: " + e.toString());
             return ServerResponse.ChangePassword.INTERNAL_ERROR;
+        } catch (RejectedExecutionException e) {
+            return ServerResponse.ChangePassword.BUSY;
         }
     }
 
     /**
      * Проверяет, авторизован ли пользователь.
      * Пользователь считается авторизованным, если предоставил верную пару id/токен и если его токен не устарел.
-     * Если нет соединения с базой данных, возвращает false.
+     * Проверка выполняется по {@link SessionTable} без обращения к базе данных.
      *
      * @param userId id пользователя
      *
@@ -379,44 +516,15 @@ public class ServerController implements HubFriendly {
      *
      * @return true, если пользователь авторизован
      */
-    public boolean isUserAuthorized(int userId, int token, boolean updateToken) throws SQLException {
-        if (connection == null)
+    public boolean isUserAuthorized(int userId, int token, boolean updateToken) {
+        long now = System.currentTimeMillis();
+        SessionTable.Session session = sessions.get(userId, token, now);
+        if (session == null)
             return false;
-        PreparedStatement statement = connection.prepareStatement(
-                "select * from user_tokens where userid = ? and token = ?"
-        );
-        statement.setInt(1, userId);
-        statement.setInt(2, token);
-        ResultSet resultSet = statement.executeQuery();
-        if (resultSet.next()) {
-            Timestamp expires = resultSet.getTimestamp("expires");
-
-            if (expires.before(new Timestamp(System.currentTimeMillis())))
-                return false;
-
-            if (updateToken)
-                updateUserToken(userId, token);
-            return true;
-        }
-        return false;
-    }
-
-    public HashSet<Properties> generateOnlineUsersList() throws SQLException {
-        ResultSet resultSet = connection.createStatement().executeQuery("" +
-                "select * from user_tokens inner join users on users.id = user_tokens.userid"
-        );
-        HashSet<Properties> result = new HashSet<>();
 
-        while (resultSet.next()) {
-            Properties properties = new Properties();
-
-            properties.setProperty("id", resultSet.getString("id"));
-            properties.setProperty("name", resultSet.getString("name"));
-            properties.setProperty("color", String.format("#%06x", resultSet.getInt("color888")));
-
-            result.add(properties);
-        }
-        return result;
+        if (updateToken)
+            extendSession(session, now);
+        return true;
     }
 
     /**
@@ -433,28 +541,39 @@ public class ServerController implements HubFriendly {
      * @throws SQLException если что-то пойдёт не так
      */
     public int generatePasswordResetToken(int userid) throws SQLException {
-        PreparedStatement statement = connection.prepareStatement(
-                "select * from password_reset_tokens where userid = ?"
-        );
-        statement.setInt(1, userid);
-        ResultSet resultSet = statement.executeQuery();
-        if (resultSet.next()) {
-            statement = connection.prepareStatement(
-                    "update password_reset_tokens set expires = ?"
-            );
-            statement.setTimestamp(1, new Timestamp(System.currentTimeMillis() + config.getPasswordResetTokenTimeout()));
-            statement.execute();
-            return resultSet.getInt("token");
-        } else {
-            statement = connection.prepareStatement(
+        try (Connection connection = getConnection()) {
+            Integer existing = null;
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "select * from password_reset_tokens where userid = ?"
+            )) {
+                statement.setInt(1, userid);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (resultSet.next())
+                        existing = resultSet.getInt("token");
+                }
+            }
+
+            if (existing != null) {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "update password_reset_tokens set expires = ? where userid = ?"
+                )) {
+                    statement.setTimestamp(1, new Timestamp(System.currentTimeMillis() + config.getPasswordResetTokenTimeout()));
+                    statement.setInt(2, userid);
+                    statement.execute();
+                    return existing;
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement(
                     "insert into password_reset_tokens VALUES (?, ?, ?)"
-            );
-            int token = generateRandomToken(6);
-            statement.setInt(1, token);
-            statement.setInt(2, userid);
-            statement.setTimestamp(3, new Timestamp(System.currentTimeMillis() + config.getPasswordResetTokenTimeout()));
-            statement.execute();
-            return token;
+            )) {
+                int token = generateRandomToken(6);
+                statement.setInt(1, token);
+                statement.setInt(2, userid);
+                statement.setTimestamp(3, new Timestamp(System.currentTimeMillis() + config.getPasswordResetTokenTimeout()));
+                statement.execute();
+                return token;
+            }
         }
     }
     /**
@@ -472,20 +591,24 @@ public class ServerController implements HubFriendly {
      * @throws GeneralSecurityException Если что-то совсем пойдёт не так
      */
     public int generateRegistrationToken(String name, String email, String password) throws SQLException, GeneralSecurityException {
-        PreparedStatement statement = connection.prepareStatement(
-                "insert into registration_tokens VALUES (?, ?, ?, ?, ?)"
-        );
-        int token = generateRandomToken(6);
-        statement.setInt(1, token);
-        statement.setString(2, name);
-        statement.setString(3, email);
-        statement.setBytes(4, hashPassword(password));
-        statement.setTimestamp(
-                5,
-                new Timestamp(System.currentTimeMillis() + config.getRegistrationTokenTimeout())
-        );
-        statement.execute();
-        return token;
+        // Пароль хешируется до того, как взять соединение, чтобы не держать его занятым
+        byte[] passwordHash = hashPassword(password);
+        try (Connection connection = getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "insert into registration_tokens VALUES (?, ?, ?, ?, ?)"
+             )) {
+            int token = generateRandomToken(6);
+            statement.setInt(1, token);
+            statement.setString(2, name);
+            statement.setString(3, email);
+            statement.setBytes(4, passwordHash);
+            statement.setTimestamp(
+                    5,
+                    new Timestamp(System.currentTimeMillis() + config.getRegistrationTokenTimeout())
+            );
+            statement.execute();
+            return token;
+        }
     }
 
     /**
@@ -500,16 +623,18 @@ public class ServerController implements HubFriendly {
     }
 
     /**
-     * Хеширует и солит пароль
+     * Хеширует и солит пароль. Хеширование выполняется в ограниченном пуле {@link PasswordHasher},
+     * вызывающий поток ждёт результата.
      *
      * @param password пароль для хеширования
      *
      * @return хешированный пароль
      *
      * @throws GeneralSecurityException Если что-то пойдёт совсем не так
+     * @throws RejectedExecutionException Если слишком много паролей уже ждут хеширования
      */
     public byte[] hashPassword(String password) throws GeneralSecurityException {
-        return SCrypt.scrypt(password.getBytes(), PASSWORD_SALT, 16384, 8, 1, 32);
+        return passwordHasher.hash(password.getBytes(), PASSWORD_SALT);
     }
 
     /**
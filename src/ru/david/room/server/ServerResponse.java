@@ -26,7 +26,7 @@ class ServerResponse {
     }
 
     enum ChangePassword {
-        OK, WRONG_TOKEN, WRONG_PASSWORD, INCORRECT_NEW_PASSWORD, DB_NOT_SUPPORTED, INTERNAL_ERROR
+        OK, WRONG_TOKEN, WRONG_PASSWORD, INCORRECT_NEW_PASSWORD, DB_NOT_SUPPORTED, INTERNAL_ERROR, BUSY
     }
 
     enum RequestPasswordReset {
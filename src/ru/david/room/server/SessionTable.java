@@ -0,0 +1,293 @@
+package ru.david.room.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сессии пользователей в памяти: пары id пользователя и токен вместе со временем окончания.
+ * Таблица загружается из user_tokens при запуске сервера и после этого главная для проверок
+ * авторизации, так что проверка токена - это поиск в хэш-таблице без запросов к базе данных.
+ *
+ * В базу данных пишутся только появление сессии (вход), её удаление (выход) и истечение.
+ * Продление сессии меняет время окончания в памяти и помечает сессию изменённой,
+ * а изменённые сессии периодически записываются в базу одним пакетом, см. {@link #drainDirty()}.
+ *
+ * Истечение сессий отслеживается очередью с задержкой: каждая сессия стоит в ней один раз
+ * со сроком, известным в момент постановки. Продление очередь не трогает. Когда срок наступает,
+ * продлённая за это время сессия ставится в очередь заново, а остальные истекают,
+ * см. {@link #takeExpired(long)}. Так поток истечения спит, пока ни одна сессия не истекает.
+ */
+class SessionTable {
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final Set<Session> dirty = ConcurrentHashMap.newKeySet();
+    private final DelayQueue<Expiry> expiries = new DelayQueue<>();
+
+    /**
+     * Заменяет содержимое таблицы действующими сессиями из базы данных.
+     * Истёкшие сессии при этом удаляются из базы.
+     *
+     * @param connection соединение с базой данных
+     *
+     * @throws SQLException если что-то пойдёт не так
+     */
+    void load(Connection connection) throws SQLException {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        try (PreparedStatement statement = connection.prepareStatement(
+                "delete from user_tokens where expires < ?"
+        )) {
+            statement.setTimestamp(1, now);
+            statement.execute();
+        }
+
+        List<Session> loaded = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "select user_tokens.*, users.name, users.color888 from user_tokens " +
+                        "left join users on users.id = user_tokens.userid where expires >= ?"
+        )) {
+            statement.setTimestamp(1, now);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next())
+                    loaded.add(new Session(
+                            resultSet.getInt("userid"),
+                            resultSet.getInt("token"),
+                            resultSet.getTimestamp("expires").getTime(),
+                            resultSet.getString("name"),
+                            resultSet.getInt("color888")
+                    ));
+            }
+        }
+
+        sessions.clear();
+        dirty.clear();
+        expiries.clear();
+        for (Session session : loaded)
+            put(session);
+    }
+
+    /**
+     * @param userid id пользователя
+     *
+     * @param token токен пользователя
+     *
+     * @param now текущее время в миллисекундах
+     *
+     * @return действующая сессия или null, если её нет или она истекла
+     */
+    Session get(int userid, int token, long now) {
+        Session session = sessions.get(key(userid, token));
+        return session == null || session.expires < now ? null : session;
+    }
+
+    /**
+     * Ищет действующую сессию пользователя. Просматривает всю таблицу,
+     * поэтому используется только при входе.
+     *
+     * @param userid id пользователя
+     *
+     * @param now текущее время в миллисекундах
+     *
+     * @return любая действующая сессия пользователя или null
+     */
+    Session findByUser(int userid, long now) {
+        for (Session session : sessions.values())
+            if (session.userid == userid && session.expires >= now)
+                return session;
+        return null;
+    }
+
+    /**
+     * Продлевает сессию до указанного времени и помечает её для записи в базу данных
+     *
+     * @param session сессия
+     *
+     * @param expires новое время окончания в миллисекундах
+     */
+    void extend(Session session, long expires) {
+        session.expires = expires;
+        dirty.add(session);
+    }
+
+    /**
+     * Забирает сессии, продлённые с прошлой записи в базу данных. Сессии, которые
+     * тем временем удалены из таблицы, пропускаются.
+     *
+     * @return продлённые сессии
+     */
+    List<Session> drainDirty() {
+        List<Session> result = new ArrayList<>();
+        for (Iterator<Session> iterator = dirty.iterator(); iterator.hasNext(); ) {
+            Session session = iterator.next();
+            iterator.remove();
+            if (sessions.get(key(session.userid, session.token)) == session)
+                result.add(session);
+        }
+        return result;
+    }
+
+    /**
+     * Снова помечает сессии для записи, например, если записать их не получилось
+     *
+     * @param sessions сессии
+     */
+    void markDirty(List<Session> sessions) {
+        dirty.addAll(sessions);
+    }
+
+    /**
+     * @return количество сессий, продления которых ещё не записаны в базу данных
+     */
+    int dirtyCount() {
+        return dirty.size();
+    }
+
+    /**
+     * Добавляет сессию, уже записанную в базу данных
+     *
+     * @param session сессия
+     */
+    void put(Session session) {
+        sessions.put(key(session.userid, session.token), session);
+        expiries.add(new Expiry(session, session.expires));
+    }
+
+    /**
+     * Удаляет сессию
+     *
+     * @param userid id пользователя
+     *
+     * @param token токен пользователя
+     *
+     * @return удалённая сессия или null, если её не было
+     */
+    Session remove(int userid, int token) {
+        return sessions.remove(key(userid, token));
+    }
+
+    /**
+     * Ждёт, пока истечёт хотя бы одна сессия, и удаляет из таблицы все сессии,
+     * срок которых наступил к этому моменту. Сессии, продлённые после постановки
+     * в очередь, ставятся в неё заново с новым сроком.
+     *
+     * @param timeout наибольшее время ожидания в миллисекундах
+     *
+     * @return истёкшие сессии, пустой список, если за это время ни одна сессия не истекла
+     *
+     * @throws InterruptedException если ожидание прервано
+     */
+    List<Session> takeExpired(long timeout) throws InterruptedException {
+        List<Session> expired = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + Math.min(timeout, Long.MAX_VALUE / 2);
+        while (expired.isEmpty()) {
+            long left = deadline - System.currentTimeMillis();
+            Expiry expiry = expiries.poll(Math.max(left, 0), TimeUnit.MILLISECONDS);
+            if (expiry == null)
+                break;
+            for (; expiry != null; expiry = expiries.poll()) {
+                Session session = expiry.session;
+                if (session.expires > expiry.deadline)
+                    expiries.add(new Expiry(session, session.expires));
+                else if (sessions.remove(key(session.userid, session.token), session)) {
+                    dirty.remove(session);
+                    expired.add(session);
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return все сессии таблицы. Коллекция отражает последующие изменения.
+     */
+    Collection<Session> getAll() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    /**
+     * @return количество сессий в таблице
+     */
+    int size() {
+        return sessions.size();
+    }
+
+    private static long key(int userid, int token) {
+        return (long) userid << 32 | (token & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Место сессии в очереди истечения со сроком, известным в момент постановки
+     */
+    private static class Expiry implements Delayed {
+        private final Session session;
+        private final long deadline;
+
+        private Expiry(Session session, long deadline) {
+            this.session = session;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(deadline, ((Expiry) o).deadline);
+        }
+    }
+
+    /**
+     * Сессия пользователя
+     */
+    static class Session {
+        final int userid;
+        final int token;
+
+        /**
+         * Имя и цвет пользователя для списка пользователей в сети, см. {@link Presence}.
+         * Имя равно null, если пользователя нет в таблице users.
+         */
+        final String name;
+        final int color888;
+
+        volatile long expires;
+
+        /**
+         * Время окончания, которое записано в базу данных
+         */
+        volatile long persistedExpires;
+
+        /**
+         * @param userid id пользователя
+         *
+         * @param token токен пользователя
+         *
+         * @param expires время окончания в миллисекундах, уже записанное в базу данных
+         *
+         * @param name имя пользователя
+         *
+         * @param color888 цвет пользователя
+         */
+        Session(int userid, int token, long expires, String name, int color888) {
+            this.userid = userid;
+            this.token = token;
+            this.name = name;
+            this.color888 = color888;
+            this.expires = expires;
+            this.persistedExpires = expires;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package ru.david.room.server;
+
+import ru.david.room.MessageInputStream;
+import ru.david.room.MessageOutputStream;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Блокирующий коннектор: на каждое соединение заводится отдельный поток,
+ * который ждёт сообщений от клиента. Кадры из очереди отправки пишет в сокет
+ * отдельная задача, так что медленный клиент задерживает только её.
+ *
+ * Только этот коннектор обслуживает клиентов, собранных до появления кадров: их поток
+ * сериализации узнаётся по первым байтам, см. {@link MessageInputStream#startsWithStreamHeader()}.
+ */
+class SocketConnector extends ClientConnector implements Runnable {
+    private final Socket socket;
+    private final MessageInputStream in;
+    private final MessageOutputStream out;
+
+    /**
+     * Поднят, пока задача записи кадров запланирована или работает
+     */
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+
+    private volatile boolean closing = false;
+
+    SocketConnector(Hub hub, Socket socket) throws IOException {
+        super(hub);
+        this.socket = socket;
+        in = new MessageInputStream(socket.getInputStream());
+        in.setMaxFrameSize(hub.getConfig().getMaxRequestSize());
+        out = new MessageOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Запускает чтение сообщений клиента на исполнителе хаба
+     */
+    void start() {
+        hub.getExecutor().execute(this);
+    }
+
+    @Override
+    void flush() {
+        if (writing.compareAndSet(false, true))
+            hub.getExecutor().execute(this::writeQueuedFrames);
+    }
+
+    /**
+     * Пишет в сокет кадры из очереди отправки, пока она не опустеет.
+     * Одновременно работает не больше одной такой задачи на соединение.
+     */
+    private void writeQueuedFrames() {
+        while (true) {
+            byte[] frame = outboundQueue.poll();
+            if (frame == null) {
+                // Последний кадр мог прийти перед самой просьбой закрыть соединение
+                if (closing && outboundQueue.isEmpty()) {
+                    abort();
+                    return;
+                }
+                if (closing)
+                    continue;
+                writing.set(false);
+                // Кадр или просьба закрыть соединение могли прийти, пока флаг ещё был поднят,
+                // и тогда их никто не обработает
+                if (outboundQueue.isEmpty() && !closing || !writing.compareAndSet(false, true))
+                    return;
+                continue;
+            }
+
+            try {
+                out.writeFrame(frame);
+            } catch (IOException e) {
+                logger.log("Не получилось отправить сообщение клиенту " + socket.getInetAddress());
+                outboundQueue.clear();
+                abort();
+                hub.getClientPool().removeConnector(this);
+                return;
+            }
+        }
+    }
+
+    @Override
+    void close() {
+        closing = true;
+        flush();
+    }
+
+    @Override
+    void abort() {
+        closing = true;
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    @Override
+    public void run() {
+        boolean disconnected = false;
+        try {
+            if (in.startsWithStreamHeader()) {
+                // Клиент, собранный до появления кадров, пишет сообщения одним потоком
+                in.openLegacyStream();
+                onLegacyStreamStarted();
+                while (!socket.isClosed()) {
+                    if (!onMessageReceived(in.readMessage())) {
+                        disconnected = true;
+                        return;
+                    }
+                }
+            }
+
+            while (!socket.isClosed()) {
+                byte[] payload = in.readFrame();
+                if (!onFrameReceived(payload, 0, payload.length)) {
+                    // Соединение закроется само, когда будут отправлены ответы на все запросы
+                    disconnected = true;
+                    return;
+                }
+            }
+        } catch (ClassNotFoundException | IOException | RuntimeException e) {
+            onReadFailed(e);
+        } finally {
+            if (!disconnected) {
+                close();
+                hub.getClientPool().removeConnector(this);
+            }
+        }
+    }
+}
@@ -5,6 +5,8 @@ import ru.david.room.json.JSONParseException;
 import java.io.*;
 import java.nio.file.AccessDeniedException;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Слушай сюда, салага!
@@ -34,6 +36,13 @@ public class Starter {
         }
 
         Logger logger = initLogger(config);
+        ThreadFactory threadFactory = initThreadFactory(config, logger);
+        hub.setThreadFactory(threadFactory);
+        hub.setExecutor(Executors.newCachedThreadPool(threadFactory));
+
+        Metrics metrics = new Metrics();
+        hub.setMetrics(metrics);
+        metrics.onHubConnected(hub);
 
         ServerController controller = new ServerController();
         hub.setController(controller);
@@ -51,11 +60,31 @@ public class Starter {
         hub.setRequestResolver(requestResolver);
         requestResolver.onHubConnected(hub);
 
+        CreatureRepository creatureRepository = new CreatureRepository();
+        hub.setCreatureRepository(creatureRepository);
+        creatureRepository.onHubConnected(hub);
+
+        Presence presence = new Presence();
+        hub.setPresence(presence);
+        presence.onHubConnected(hub);
+
+        CreatureEvents creatureEvents = new CreatureEvents();
+        hub.setCreatureEvents(creatureEvents);
+        creatureEvents.onHubConnected(hub);
+
+        RequestFilter requestFilter = new RequestFilter();
+        requestFilter.onHubConnected(hub);
+
         hub.setConfig(config);
         hub.setLogger(logger);
 
+        metrics.onHubReady();
+        requestFilter.onHubReady();
         requestResolver.onHubReady();
+        presence.onHubReady();
         controller.onHubReady();
+        creatureRepository.onHubReady();
+        creatureEvents.onHubReady();
         server.onHubReady();
         pool.onHubReady();
     }
@@ -96,6 +125,33 @@ public class Starter {
         return null;
     }
 
+    /**
+     * Создаёт фабрику потоков сервера в соответствии с режимом выполнения из настроек.
+     * Виртуальные потоки появились только в Java 21, поэтому их фабрика ищется через рефлексию:
+     * на более старой JVM сервер предупредит об этом и будет работать на платформенных потоках.
+     *
+     * @param config настройки сервера
+     *
+     * @param logger логгер
+     *
+     * @return фабрика потоков
+     */
+    private static ThreadFactory initThreadFactory(ServerConfig config, Logger logger) {
+        if (config.getExecutionMode() == ServerConfig.ExecutionMode.VIRTUAL) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                        .getMethod("factory")
+                        .invoke(builder);
+                logger.log("Задачи сервера выполняются на виртуальных потоках");
+                return factory;
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Эта JVM не поддерживает виртуальные потоки, будут использованы платформенные потоки");
+            }
+        }
+        return Executors.defaultThreadFactory();
+    }
+
     /**
      * Инициализирует конфигурирование сервера из файла
      *
@@ -0,0 +1,263 @@
+package ru.david.room.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Кэш подготовленных выражений одного соединения из {@link ConnectionPool}. Выражения хранятся
+ * по тексту sql, так что повторный prepareStatement с тем же запросом не разбирает его заново,
+ * а выдаёт уже подготовленное выражение. Когда выражений становится больше, чем помещается,
+ * закрываются те, которые дольше всего не использовались.
+ *
+ * Выражение выдаётся в виде обёртки. Закрытие обёртки не закрывает выражение, а возвращает его
+ * в кэш, поэтому выражения по-прежнему нужно закрывать, удобнее всего в try-with-resources.
+ * Если выражение с тем же текстом уже выдано и ещё не закрыто (например, его результат
+ * обходится во вложенном вызове), выдаётся новое выражение в обход кэша.
+ * Результаты выражения тоже обёрнуты: их {@link ResultSet#getStatement()} возвращает
+ * обёртку, а не само выражение, иначе его можно было бы закрыть в обход кэша.
+ *
+ * Кэш используется только потоком, который держит соединение, и не потокобезопасен.
+ */
+class StatementCache {
+    private final Connection connection;
+    private final int capacity;
+    private final Metrics metrics;
+    private final AtomicInteger cachedTotal;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<Handle> handles = new ArrayList<>();
+
+    /**
+     * @param connection настоящее соединение
+     *
+     * @param capacity сколько выражений хранить, 0 - не хранить
+     *
+     * @param metrics метрики сервера
+     *
+     * @param cachedTotal общий для всего пула счётчик хранимых выражений
+     */
+    StatementCache(Connection connection, int capacity, Metrics metrics, AtomicInteger cachedTotal) {
+        this.connection = connection;
+        this.capacity = capacity;
+        this.metrics = metrics;
+        this.cachedTotal = cachedTotal;
+    }
+
+    /**
+     * Выдаёт подготовленное выражение
+     *
+     * @param owner обёртка соединения, которую вернёт {@link PreparedStatement#getConnection()}
+     *
+     * @param sql текст запроса
+     *
+     * @param autoGeneratedKeys флаг возврата сгенерированных ключей
+     *                          или null, если он не указан при подготовке
+     *
+     * @return обёртка над выражением
+     *
+     * @throws SQLException если подготовить выражение не удалось
+     */
+    PreparedStatement prepare(Connection owner, String sql, Integer autoGeneratedKeys) throws SQLException {
+        String key = autoGeneratedKeys == null ? sql : autoGeneratedKeys + ":" + sql;
+
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.inUse) {
+            metrics.increment("db.statements.hits");
+        } else {
+            metrics.increment("db.statements.misses");
+            PreparedStatement statement = autoGeneratedKeys == null
+                    ? connection.prepareStatement(sql)
+                    : connection.prepareStatement(sql, autoGeneratedKeys);
+
+            if (entry != null || capacity == 0)
+                return checkOut(owner, null, statement);
+
+            entry = new Entry(statement);
+            entries.put(key, entry);
+            cachedTotal.incrementAndGet();
+            trim();
+        }
+        entry.inUse = true;
+        return checkOut(owner, entry, entry.statement);
+    }
+
+    /**
+     * Закрывает все обёртки, которые ещё не закрыли сами, и возвращает их выражения в кэш.
+     * Вызывается, когда соединение возвращается в пул.
+     */
+    void closeHandles() {
+        while (!handles.isEmpty())
+            handles.get(handles.size() - 1).close();
+    }
+
+    /**
+     * Забывает все выражения. Вызывается, когда соединение закрывается: вместе с ним
+     * закрываются и его выражения.
+     */
+    void clear() {
+        cachedTotal.addAndGet(-entries.size());
+        entries.clear();
+    }
+
+    private PreparedStatement checkOut(Connection owner, Entry entry, PreparedStatement statement) {
+        Handle handle = new Handle(owner, entry, statement);
+        handles.add(handle);
+        return (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class},
+                handle
+        );
+    }
+
+    /**
+     * Закрывает выражения, которые дольше всего не использовались, пока их не станет не больше
+     * вместимости. Выданные выражения пропускаются, их закроют, когда до них дойдёт очередь.
+     */
+    private void trim() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (entries.size() > capacity && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.inUse)
+                continue;
+            iterator.remove();
+            cachedTotal.decrementAndGet();
+            metrics.increment("db.statements.evictions");
+            closeQuietly(entry.statement);
+        }
+    }
+
+    private void evict(Entry entry) {
+        for (Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().getValue() == entry) {
+                iterator.remove();
+                cachedTotal.decrementAndGet();
+                break;
+            }
+        }
+        closeQuietly(entry.statement);
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {}
+    }
+
+    private static class Entry {
+        private final PreparedStatement statement;
+        private boolean inUse;
+
+        private Entry(PreparedStatement statement) {
+            this.statement = statement;
+        }
+    }
+
+    /**
+     * Обработчик вызовов выданной обёртки выражения
+     */
+    private class Handle implements InvocationHandler {
+        private final Connection owner;
+        private final Entry entry;
+        private final PreparedStatement statement;
+        private boolean closed;
+
+        private Handle(Connection owner, Entry entry, PreparedStatement statement) {
+            this.owner = owner;
+            this.entry = entry;
+            this.statement = statement;
+        }
+
+        /**
+         * Возвращает выражение в кэш или закрывает его, если оно было выдано в обход кэша.
+         * Открытый результат выражения закрывается, а параметры сбрасываются.
+         */
+        private void close() {
+            if (closed)
+                return;
+            closed = true;
+            handles.remove(this);
+
+            if (entry == null) {
+                closeQuietly(statement);
+                return;
+            }
+            entry.inUse = false;
+            try {
+                statement.clearParameters();
+                if (statement.getResultSet() != null)
+                    statement.getResultSet().close();
+            } catch (SQLException e) {
+                evict(entry);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return closed || statement.isClosed();
+                case "getConnection":
+                    return owner;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Выражение из кэша " + statement;
+            }
+
+            if (closed)
+                throw new SQLException("Выражение уже закрыто");
+
+            Object result;
+            try {
+                result = method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof ResultSet)
+                return wrapResultSet((PreparedStatement) proxy, (ResultSet) result);
+            return result;
+        }
+    }
+
+    /**
+     * @return обёртка над результатом, которая вместо настоящего выражения возвращает его обёртку
+     */
+    private static ResultSet wrapResultSet(PreparedStatement owner, ResultSet resultSet) {
+        return (ResultSet) Proxy.newProxyInstance(
+                ResultSet.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getStatement":
+                            return owner;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                    }
+                    try {
+                        return method.invoke(resultSet, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+        );
+    }
+}
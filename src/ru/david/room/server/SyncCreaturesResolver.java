@@ -0,0 +1,34 @@
+package ru.david.room.server;
+
+import ru.david.room.CreatureDigests;
+import ru.david.room.Message;
+import ru.david.room.server.resolvers.RequiresAuthorization;
+import ru.david.room.server.resolvers.UpdatesTokenLifetime;
+
+import java.util.Map;
+
+/**
+ * Команда sync_creatures: клиент присылает {@link CreatureDigests} своих существ
+ * и получает командой creatures_synced содержимое только тех корзин, которые у него
+ * устарели, см. {@link CreatureEvents#sync(ClientConnector, CreatureDigests)}.
+ * Так после переподключения или resync клиенту не нужно заново получать весь мир.
+ */
+class SyncCreaturesResolver implements ConnectionResolver, RequiresAuthorization, UpdatesTokenLifetime {
+    @Override
+    public Message resolve(ClientConnector connector, Message message) {
+        if (!(message.getAttachment() instanceof CreatureDigests))
+            return new Message("BAD_REQUEST");
+        CreatureDigests digests = (CreatureDigests) message.getAttachment();
+
+        // Сериализованный объект мог прийти с чем угодно внутри
+        Map<?, ?> entries = digests.getDigests();
+        if (entries == null)
+            return new Message("BAD_REQUEST");
+        for (Map.Entry<?, ?> entry : entries.entrySet())
+            if (!(entry.getKey() instanceof Long) || !(entry.getValue() instanceof Long))
+                return new Message("BAD_REQUEST");
+
+        connector.hub.getCreatureEvents().sync(connector, digests);
+        return null;
+    }
+}
@@ -0,0 +1,17 @@
+package ru.david.room.server;
+
+import ru.david.room.Message;
+import ru.david.room.server.resolvers.RequiresAuthorization;
+import ru.david.room.server.resolvers.UpdatesTokenLifetime;
+
+/**
+ * Команда request_users. Полный список пользователей в сети берётся из {@link Presence}
+ * и отправляется под её блокировкой, чтобы он не обогнал рассылаемые изменения списка.
+ */
+class UsersSnapshotResolver implements ConnectionResolver, RequiresAuthorization, UpdatesTokenLifetime {
+    @Override
+    public Message resolve(ClientConnector connector, Message message) {
+        connector.hub.getPresence().sendSnapshot(connector);
+        return null;
+    }
+}
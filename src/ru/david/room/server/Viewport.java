@@ -0,0 +1,70 @@
+package ru.david.room.server;
+
+import ru.david.room.CreatureModel;
+
+import java.util.Properties;
+
+/**
+ * Прямоугольная область мира, которую видит клиент
+ */
+class Viewport {
+    /**
+     * Наибольшее расстояние от начала координат, на которое может заходить область видимости.
+     * Существа живут в квадрате 0..1000, так что дальше клиенту смотреть незачем.
+     */
+    static final double MAX_COORDINATE = 1_000_000;
+
+    final double x, y, width, height;
+
+    Viewport(double x, double y, double width, double height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Читает область из приложения команды set_viewport
+     *
+     * @param properties свойства x, y, width и height
+     *
+     * @return область видимости
+     *
+     * @throws IllegalArgumentException если какого-то свойства нет, оно не число
+     * или область выходит дальше {@link #MAX_COORDINATE}
+     */
+    static Viewport fromProperties(Properties properties) {
+        try {
+            double x = Double.parseDouble(properties.getProperty("x"));
+            double y = Double.parseDouble(properties.getProperty("y"));
+            double width = Double.parseDouble(properties.getProperty("width"));
+            double height = Double.parseDouble(properties.getProperty("height"));
+
+            if (!Double.isFinite(x) || !Double.isFinite(y) || !Double.isFinite(width) || !Double.isFinite(height))
+                throw new IllegalArgumentException("Координаты области видимости должны быть конечными");
+            if (width < 0 || height < 0)
+                throw new IllegalArgumentException("Размеры области видимости не могут быть отрицательными");
+            if (Math.abs(x) > MAX_COORDINATE || Math.abs(y) > MAX_COORDINATE ||
+                    Math.abs(x + width) > MAX_COORDINATE || Math.abs(y + height) > MAX_COORDINATE)
+                throw new IllegalArgumentException("Область видимости слишком далеко за пределами мира");
+            return new Viewport(x, y, width, height);
+        } catch (NullPointerException | NumberFormatException e) {
+            throw new IllegalArgumentException("Область видимости указана неверно: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Проверяет, видно ли существо в области хотя бы частично
+     *
+     * @param model существо
+     *
+     * @return true, если круг существа пересекается с областью
+     */
+    boolean overlaps(CreatureModel model) {
+        double nearestX = Math.max(x, Math.min(model.getX(), x + width));
+        double nearestY = Math.max(y, Math.min(model.getY(), y + height));
+        double dx = model.getX() - nearestX;
+        double dy = model.getY() - nearestY;
+        return dx * dx + dy * dy <= (double) model.getRadius() * model.getRadius();
+    }
+}
@@ -0,0 +1,42 @@
+package ru.david.room.server;
+
+import ru.david.room.Message;
+import ru.david.room.server.resolvers.RequiresAuthorization;
+import ru.david.room.server.resolvers.UpdatesTokenLifetime;
+
+import java.util.Properties;
+
+/**
+ * Команда set_viewport: клиент сообщает, какую область мира он видит, и дальше получает
+ * изменения только тех существ, которые в неё попадают, см. {@link CreatureEvents}.
+ * Если в приложении есть reset=true, клиент считается ничего не знающим и получает
+ * все существа области, иначе - только разницу с предыдущей областью.
+ * Если в приложении есть sync=true, не отправляется ничего: клиент следом
+ * пришлёт sync_creatures и получит только то, что у него устарело.
+ */
+class ViewportResolver implements ConnectionResolver, RequiresAuthorization, UpdatesTokenLifetime {
+    @Override
+    public Message resolve(ClientConnector connector, Message message) {
+        // Изменения в области видимости приходят командой creatures_changed, которой нет в старом формате
+        if (connector.getCodec().getVersion() == 0)
+            return new Message("COMMAND_NOT_SUPPORTED");
+
+        if (!(message.getAttachment() instanceof Properties))
+            return new Message("BAD_REQUEST");
+        Properties arguments = (Properties) message.getAttachment();
+
+        Viewport viewport;
+        try {
+            viewport = Viewport.fromProperties(arguments);
+        } catch (IllegalArgumentException e) {
+            return new Message("BAD_REQUEST");
+        }
+
+        connector.hub.getCreatureEvents().setViewport(
+                connector, viewport,
+                "true".equals(arguments.getProperty("reset")),
+                "true".equals(arguments.getProperty("sync"))
+        );
+        return null;
+    }
+}
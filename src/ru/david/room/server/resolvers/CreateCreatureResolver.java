@@ -5,12 +5,12 @@ import ru.david.room.Message;
 import ru.david.room.server.Hub;
 
 import java.sql.*;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.util.Properties;
 
-@SuppressWarnings("unused")
 public class CreateCreatureResolver implements Resolver, RequiresAuthorization, UpdatesTokenLifetime {
     public Message resolve(Message message, Hub hub) throws SQLException {
-        Connection connection = hub.getController().getConnection();
         Properties properties = (Properties)message.getAttachment();
 
         try {
@@ -19,40 +19,41 @@ public class CreateCreatureResolver implements Resolver, RequiresAuthorization,
             int y = Integer.parseInt(properties.getProperty("y"));
             float radius = Float.parseFloat(properties.getProperty("radius"));
             int ownerid = message.getUserid();
-            Timestamp created = new Timestamp(System.currentTimeMillis());
+            // Время создания округляется до секунд, чтобы в памяти оно было таким же, как в базе
+            Timestamp created = new Timestamp(System.currentTimeMillis() / 1000 * 1000);
 
             if (name.length() == 0 || name.length() > 32 || x < 0 || x > 1000 || y < 0 || y > 1000 || radius < 15 || radius > 300)
                 return new Message("BAD_REQUEST");
 
-            PreparedStatement statement = connection.prepareStatement(
-                    "insert into creatures (name, x, y, radius, ownerid, created) VALUES (?, ?, ?, ?, ?, ?)",
-                    PreparedStatement.RETURN_GENERATED_KEYS
+            long id;
+            try (Connection connection = hub.getController().getConnection();
+                 PreparedStatement statement = connection.prepareStatement(
+                         "insert into creatures (name, x, y, radius, ownerid, created) VALUES (?, ?, ?, ?, ?, ?)",
+                         PreparedStatement.RETURN_GENERATED_KEYS
+                 )) {
+
+                statement.setString(1, name);
+                statement.setInt(2, x);
+                statement.setInt(3, y);
+                statement.setFloat(4, radius);
+                statement.setInt(5, ownerid);
+                statement.setTimestamp(6, created);
+
+                statement.execute();
+
+                try (ResultSet resultSet = statement.getGeneratedKeys()) {
+                    resultSet.next();
+                    id = resultSet.getLong(1);
+                }
+            }
+
+            CreatureModel model = new CreatureModel(
+                    id, x, y, radius, ownerid, name,
+                    ZonedDateTime.ofInstant(created.toInstant(), ZoneId.systemDefault())
             );
 
-            statement.setString(1, name);
-            statement.setInt(2, x);
-            statement.setInt(3, y);
-            statement.setFloat(4, radius);
-            statement.setInt(5, ownerid);
-            statement.setTimestamp(6, created);
-
-            statement.execute();
-
-            ResultSet resultSet = statement.getGeneratedKeys();
-            resultSet.next();
-
-            long id = resultSet.getLong(1);
-
-            statement = connection.prepareStatement(
-                    "select * from creatures where id = ?"
-            );
-            statement.setLong(1, id);
-            resultSet = statement.executeQuery();
-            resultSet.next();
-
-            CreatureModel model = CreatureModel.fromResultSet(resultSet);
-
-            hub.getClientPool().makeStrongStatement(new Message("creature_added", model));
+            hub.getCreatureRepository().put(model);
+            hub.getCreatureEvents().creatureAdded(model);
             return null;
 
         } catch (NumberFormatException e) {
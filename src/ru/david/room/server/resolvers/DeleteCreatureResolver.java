@@ -2,14 +2,14 @@ package ru.david.room.server.resolvers;
 
 import ru.david.room.CreatureModel;
 import ru.david.room.Message;
+import ru.david.room.server.CreatureRepository;
 import ru.david.room.server.Hub;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.locks.ReentrantLock;
 
-@SuppressWarnings("unused")
 public class DeleteCreatureResolver implements Resolver, RequiresAuthorization, UpdatesTokenLifetime {
     @Override
     public Message resolve(Message message, Hub hub) throws SQLException {
@@ -17,23 +17,24 @@ public class DeleteCreatureResolver implements Resolver, RequiresAuthorization,
         if (creatureId == null)
             return new Message("BAD_REQUEST");
 
-        Connection connection = hub.getController().getConnection();
+        CreatureRepository repository = hub.getCreatureRepository();
 
-        PreparedStatement statement = connection.prepareStatement(
-                "select * from creatures where id = ? and ownerid = ?"
-        );
-        statement.setLong(1, creatureId);
-        statement.setInt(2, message.getUserid());
-        ResultSet resultSet = statement.executeQuery();
+        ReentrantLock lock = repository.lock(creatureId);
+        try {
+            CreatureModel model = repository.getOwned(creatureId, message.getUserid());
+            if (model == null)
+                return null;
 
-        if (resultSet.next()) {
-            CreatureModel model = CreatureModel.fromResultSet(resultSet);
+            try (Connection connection = hub.getController().getConnection();
+                 PreparedStatement statement = connection.prepareStatement("delete from creatures where id = ?;")) {
+                statement.setLong(1, creatureId);
+                statement.execute();
+            }
 
-            statement = connection.prepareStatement("delete from creatures where id = ?;");
-            statement.setLong(1, creatureId);
-            statement.execute();
-
-            hub.getClientPool().makeStrongStatement(new Message("creature_deleted", model));
+            repository.remove(creatureId);
+            hub.getCreatureEvents().creatureDeleted(model);
+        } finally {
+            lock.unlock();
         }
 
         return null;
@@ -9,12 +9,12 @@ import javax.mail.MessagingException;
 import java.security.GeneralSecurityException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Locale;
 import java.util.Properties;
 import java.util.ResourceBundle;
 
-@SuppressWarnings("unused")
 public class RegisterResolver implements Resolver {
     @Override
     public Message resolve(Message message, Hub hub) throws SQLException, GeneralSecurityException, MessagingException {
@@ -41,17 +41,13 @@ public class RegisterResolver implements Resolver {
         ServerController controller = hub.getController();
         controller.removeAllExpiredRegistrationTokens();
 
-        Connection connection = controller.getConnection();
+        try (Connection connection = controller.getConnection()) {
+            if (exists(connection, "select email from users WHERE email = ?", email))
+                return new Message("EMAIL_EXISTS");
 
-        PreparedStatement statement = connection.prepareStatement("select email from users WHERE email = ?");
-        statement.setString(1, email);
-        if (statement.executeQuery().next())
-            return new Message("EMAIL_EXISTS");
-
-        statement = connection.prepareStatement("select email from registration_tokens WHERE email = ?");
-        statement.setString(1, email);
-        if (statement.executeQuery().next())
-            return new Message("EMAIL_IN_USE");
+            if (exists(connection, "select email from registration_tokens WHERE email = ?", email))
+                return new Message("EMAIL_IN_USE");
+        }
 
         int token = controller.generateRegistrationToken(name, email, password);
 
@@ -65,4 +61,16 @@ public class RegisterResolver implements Resolver {
 
         return new Message("OK");
     }
+
+    /**
+     * @return true, если запрос с одним строковым параметром вернул хотя бы одну строку
+     */
+    private boolean exists(Connection connection, String sql, String parameter) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, parameter);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
 }
@@ -13,7 +13,6 @@ import java.util.Locale;
 import java.util.Properties;
 import java.util.ResourceBundle;
 
-@SuppressWarnings("unused")
 public class RequestPasswordResetResolver implements Resolver {
     @Override
     public Message resolve(Message message, Hub hub) throws SQLException, MessagingException {
@@ -24,29 +23,32 @@ public class RequestPasswordResetResolver implements Resolver {
 
         hub.getController().removeAllExpiredPasswordResetTokens();
 
-        Connection connection = hub.getController().getConnection();
-
-        PreparedStatement emailCheckingStatement = connection.prepareStatement(
-                "select * from users where email = ?"
-        );
-        emailCheckingStatement.setString(1, email);
-        ResultSet users = emailCheckingStatement.executeQuery();
-
-        if (users.next()) {
-            int userid = users.getInt("id");
-            int token = hub.getController().generatePasswordResetToken(userid);
-
-            ResourceBundle bundle = ResourceBundle.getBundle("i18n/text", new Locale(localeLanguage, localeCountry));
-
-            hub.getController().sendMail(email, bundle.getString("forgot-password-dialog.mail-title"),
-                    "<p style=\"text-align: center; padding: 25px;\">" +
-                            bundle.getString("forgot-password-dialog.your-id") +
-                            " <b style=\"padding: 12px; margin: 12px; background: antiquewhite; border-radius: 3px\">" + userid + "</b></p>" +
-                            "<p style=\"text-align: center; padding: 25px;\">" +
-                            bundle.getString("forgot-password-dialog.your-code") +
-                            " <b style=\"padding: 12px; margin: 12px; background: antiquewhite; border-radius: 3px\">" + token + "</b></p>");
-            return new Message("OK");
-        } else
-            return new Message("EMAIL_NOT_EXIST");
+        int userid;
+        int token;
+        // Соединение возвращается в пул до отправки письма, которая может занять много времени
+        try (Connection connection = hub.getController().getConnection()) {
+            try (PreparedStatement emailCheckingStatement = connection.prepareStatement(
+                    "select * from users where email = ?"
+            )) {
+                emailCheckingStatement.setString(1, email);
+                try (ResultSet users = emailCheckingStatement.executeQuery()) {
+                    if (!users.next())
+                        return new Message("EMAIL_NOT_EXIST");
+                    userid = users.getInt("id");
+                }
+            }
+            token = hub.getController().generatePasswordResetToken(userid);
+        }
+
+        ResourceBundle bundle = ResourceBundle.getBundle("i18n/text", new Locale(localeLanguage, localeCountry));
+
+        hub.getController().sendMail(email, bundle.getString("forgot-password-dialog.mail-title"),
+                "<p style=\"text-align: center; padding: 25px;\">" +
+                        bundle.getString("forgot-password-dialog.your-id") +
+                        " <b style=\"padding: 12px; margin: 12px; background: antiquewhite; border-radius: 3px\">" + userid + "</b></p>" +
+                        "<p style=\"text-align: center; padding: 25px;\">" +
+                        bundle.getString("forgot-password-dialog.your-code") +
+                        " <b style=\"padding: 12px; margin: 12px; background: antiquewhite; border-radius: 3px\">" + token + "</b></p>");
+        return new Message("OK");
     }
 }
@@ -12,7 +12,6 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Properties;
 
-@SuppressWarnings("unused")
 public class ResetPasswordResolver implements Resolver {
     @Override
     public Message resolve(Message message, Hub hub) throws SQLException, GeneralSecurityException, MessagingException {
@@ -23,38 +22,43 @@ public class ResetPasswordResolver implements Resolver {
 
         hub.getController().removeAllExpiredPasswordResetTokens();
 
-        Connection connection = hub.getController().getConnection();
-
-        PreparedStatement statement = connection.prepareStatement(
-                "select * from password_reset_tokens where token = ?"
-        );
-
         if (newPassword.length() < 8)
             return new Message("SHORT_PASSWORD");
 
         if (Utils.isPasswordTooWeak(newPassword))
             return new Message("WEAK_PASSWORD");
 
-        statement.setString(1, token);
+        byte[] passwordHash = hub.getController().hashPassword(newPassword);
 
-        ResultSet resultSet = statement.executeQuery();
+        try (Connection connection = hub.getController().getConnection()) {
+            int userid;
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "select * from password_reset_tokens where token = ?"
+            )) {
+                statement.setString(1, token);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (!resultSet.next())
+                        return new Message("WRONG");
+                    userid = resultSet.getInt("userid");
+                }
+            }
 
-        if (resultSet.next()) {
-            statement = connection.prepareStatement(
+            try (PreparedStatement statement = connection.prepareStatement(
                     "update users set password_hash = ? where id = ?"
-            );
-            statement.setBytes(1, hub.getController().hashPassword(newPassword));
-            statement.setInt(2, resultSet.getInt("userid"));
-            statement.execute();
+            )) {
+                statement.setBytes(1, passwordHash);
+                statement.setInt(2, userid);
+                statement.execute();
+            }
 
-            statement = connection.prepareStatement(
+            try (PreparedStatement statement = connection.prepareStatement(
                     "delete from password_reset_tokens where token = ? and userid = ?"
-            );
-            statement.setString(1, token);
-            statement.setInt(2, resultSet.getInt("userid"));
-            statement.execute();
+            )) {
+                statement.setString(1, token);
+                statement.setInt(2, userid);
+                statement.execute();
+            }
             return new Message("OK");
-        } else
-            return new Message("WRONG");
+        }
     }
 }